@@ -0,0 +1,114 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package core.algos;
+
+import core.algos.PlacementProcess.Score;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the kernels of ScoreKernel to the loops they replace, for
+ * growing numbers of selected nodes:\n
+ * - correction: scores indexed by nodeId through selectedNodes (previous
+ * layout, arrays sized on the tree) vs ScoreKernel.correct() on the
+ * contiguous counters;\n
+ * - selection of the best scores: every score offered to the heap vs the
+ * scan by blocks of fillBestScoreList().\n
+ * JMH is not part of the build, this is a plain harness: warmup rounds,
+ * then the median of the measured rounds, in ns per query.\n
+ * This source is not part of RAPPAS.jar, compile and run it with
+ * ant -f build-cli.xml benchmark
+ * @author ben
+ */
+public class ScoreKernelBenchmark {
+
+    private static final int NODE_COUNT=65536;
+    private static final int KEEP_AT_MOST=7;
+    private static final int WARMUP_ROUNDS=10;
+    private static final int MEASURED_ROUNDS=15;
+    private static final int[] SELECTED={64, 512, 4096, 32768, 65536};
+
+    static float sink=0.0f;
+
+    public static void main(String[] args) {
+        Random rand=new Random(1);
+        System.out.println("selected\tcorrect_indirect\tcorrect_kernel\tselect_heap\tselect_blocks");
+        for (int selectedCount:SELECTED) {
+            //selected nodes spread over the tree, in order of encounter
+            int[] ids=new int[NODE_COUNT];
+            for (int i = 0; i < NODE_COUNT; i++) {
+                ids[i]=i;
+            }
+            for (int i = NODE_COUNT-1; i > 0; i--) {
+                int r=rand.nextInt(i+1);
+                int t=ids[i]; ids[i]=ids[r]; ids[r]=t;
+            }
+            IntArrayList selectedNodes=new IntArrayList(Arrays.copyOf(ids, selectedCount));
+            int wordCount=300;
+            int[] occurences=new int[selectedCount];
+            float[] scores=new float[selectedCount];
+            int[] nodeOccurences=new int[NODE_COUNT];
+            float[] nodeScores=new float[NODE_COUNT];
+            for (int p = 0; p < selectedCount; p++) {
+                occurences[p]=1+rand.nextInt(wordCount);
+                scores[p]=-0.5f*occurences[p]*rand.nextFloat();
+                nodeOccurences[ids[p]]=occurences[p];
+                nodeScores[ids[p]]=scores[p];
+            }
+            //corrected repeatedly, only the time matters
+            float[] work=Arrays.copyOf(scores, selectedCount);
+            float[] nodeWork=Arrays.copyOf(nodeScores, NODE_COUNT);
+            float[] heapScores=new float[KEEP_AT_MOST];
+            int[] heapPositions=new int[KEEP_AT_MOST];
+            Score[] bestScoreList=new Score[KEEP_AT_MOST];
+            for (int i = 0; i < KEEP_AT_MOST; i++) {
+                bestScoreList[i]=new Score(-1, Float.NEGATIVE_INFINITY);
+            }
+            int n=Math.min(KEEP_AT_MOST, selectedCount);
+            //repeat small cases to get measurable rounds
+            int iterations=Math.max(50, 2000000/selectedCount);
+
+            long[] times=new long[4];
+            for (int kernel = 0; kernel < 4; kernel++) {
+                long[] rounds=new long[MEASURED_ROUNDS];
+                for (int round = 0; round < WARMUP_ROUNDS+MEASURED_ROUNDS; round++) {
+                    long start=System.nanoTime();
+                    for (int it = 0; it < iterations; it++) {
+                        switch (kernel) {
+                            case 0:
+                                for (int p = 0; p < selectedCount; p++) {
+                                    int nodeId=selectedNodes.getInt(p);
+                                    nodeWork[nodeId]+=(-2.0f*(wordCount-nodeOccurences[nodeId]));
+                                }
+                                sink+=nodeWork[ids[0]];
+                                break;
+                            case 1:
+                                ScoreKernel.correct(work, occurences, selectedCount, -2.0f, wordCount, 1.0f);
+                                sink+=work[0];
+                                break;
+                            case 2:
+                                sink+=PlacementProcess.fillBestScoreList(scores, selectedNodes, bestScoreList, n, heapScores, heapPositions, false);
+                                break;
+                            default:
+                                sink+=PlacementProcess.fillBestScoreList(scores, selectedNodes, bestScoreList, n, heapScores, heapPositions, true);
+                        }
+                    }
+                    if (round>=WARMUP_ROUNDS) {
+                        rounds[round-WARMUP_ROUNDS]=System.nanoTime()-start;
+                    }
+                }
+                Arrays.sort(rounds);
+                times[kernel]=rounds[MEASURED_ROUNDS/2]/iterations;
+            }
+            System.out.println(selectedCount+"\t"+times[0]+"\t"+times[1]+"\t"+times[2]+"\t"+times[3]);
+        }
+        if (sink==1.0f) {
+            System.out.println();
+        }
+    }
+
+}
@@ -168,6 +168,27 @@ public class AAStates extends AbstractStates implements States,Serializable {
         return bytes;
     }
 
+    /**
+     * packs a mer in a long, 5 bits per amino acid,
+     * 1st amino acid in the highest bits
+     * @param mer
+     * @param k
+     * @return 
+     */
+    @Override
+    public long merToCode(byte[] mer, int k) {
+        long code=0L;
+        for (int i = 0; i < k; i++) {
+            code= (code << 5) | mer[i];
+        }
+        return code;
+    }
+
+    @Override
+    public int getBitsPerState() {
+        return 5;
+    }
+
     @Override
     public char[] expandMer(byte[] mer, int k) {
         char[] c=new char[bytes.length];
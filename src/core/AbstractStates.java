@@ -40,5 +40,14 @@ public abstract class AbstractStates implements States,Serializable {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
+    /**
+     * no default packing, it depends on the bits used per state
+     * @param mer
+     * @param k
+     * @return 
+     */
+    @Override
+    public abstract long merToCode(byte[] mer, int k);
+
     
 }
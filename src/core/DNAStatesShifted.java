@@ -8,6 +8,7 @@ package core;
 import etc.Infos;
 import etc.exceptions.NonSupportedStateException;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -64,7 +65,7 @@ public class DNAStatesShifted extends AbstractStates implements Serializable {
     public byte[] compressMer(byte[] bytes) {
         //chose number of bytes necessary to represent this DNA
         //we can code 4 bases in 1 byte
-        int byteCount=new Double(Math.ceil((0.0+bytes.length)/4)).intValue();
+        int byteCount=(bytes.length+3)/4;
         //the kmer compressed in byteCount bytes
         byte[] kmer=new byte[byteCount];
         
@@ -72,8 +73,8 @@ public class DNAStatesShifted extends AbstractStates implements Serializable {
         int insertions=0;
         for (int i = 0; i < bytes.length; i++) {
             if ( (i>0) & (i%4==0) ) {      
-                //instance copy this byte in byte array
-                kmer[(i/4)-1]=new Byte(fourBasesByte).byteValue();
+                //copy this byte in byte array
+                kmer[(i/4)-1]=fourBasesByte;
                 //reset pivot byte
                 fourBasesByte=0x00;
             }
@@ -91,6 +92,41 @@ public class DNAStatesShifted extends AbstractStates implements Serializable {
         
     }
     
+    /**
+     * same compression as compressMer(byte[]), but written in a buffer
+     * provided by the caller, which must be of length ceil(mer.length/4)
+     * @param bytes
+     * @param kmer the buffer receiving the compressed mer
+     */
+    public void compressMer(byte[] bytes, byte[] kmer) {
+        Arrays.fill(kmer, (byte)0x00);
+        for (int i = 0; i < bytes.length; i++) {
+            //shift the 2 bits coding the i-th base, in the i/4 byte
+            kmer[i/4]= (byte) ( kmer[i/4] | (bytes[i] << (2*(i%4))) ) ;
+        }
+    }
+    
+    /**
+     * packs a compressed DNA mer in a long, 2 bits per base,
+     * 1st base in the highest bits
+     * @param mer compressed mer, as produced by compressMer()
+     * @param k
+     * @return 
+     */
+    @Override
+    public long merToCode(byte[] mer, int k) {
+        long code=0L;
+        for (int i = 0; i < k; i++) {
+            code= (code << 2) | ((mer[i/4] >> (2*(i%4))) & 0x03);
+        }
+        return code;
+    }
+    
+    @Override
+    public int getBitsPerState() {
+        return 2;
+    }
+    
     /**
      * expand compressed DNA mer into char array
      * @param mer
@@ -54,4 +54,21 @@ public interface States {
      */
     public char[] expandMer(byte[] mer, int k);
     
+    /**
+     * number of bits used to pack a state in a mer code
+     * (see SequenceKnife.getNextCode())
+     * @return 
+     */
+    public int getBitsPerState();
+    
+    /**
+     * packs a mer, as stored in the hash (i.e. compressed if this
+     * states support compression), in a long code, 1st state in the
+     * highest bits
+     * @param mer
+     * @param k
+     * @return 
+     */
+    public long merToCode(byte[] mer, int k);
+    
 }
@@ -0,0 +1,457 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package core.algos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Register of the query sequences already encountered during a placement,
+ * so that identical queries are placed only once.\n
+ * A sequence is identified by its 128 bits MurmurHash3 (see hash128()),
+ * the 2 halves of the hash are the keys of an open addressing table which
+ * associates each distinct sequence to a compact id. For each id are kept
+ * in primitive arrays: the placement status, the multiplicity of the
+ * sequence and, once its jplace object was written, the "p" array as json
+ * text, to report identical queries found later.\n
+ * The identifiers of the identical queries found after the jplace object
+ * of their sequence was written are kept as a chain of records, each one
+ * pointing to the previous identifier of the same sequence.\n
+ * "p" arrays and identifiers are stored in memory, or appended to a file
+ * once the register exceeds its memory budget.
+ * @author ben
+ */
+public class DuplicateRegister {
+
+    //placement status of an id
+    public static final byte PENDING=0;
+    public static final byte NOT_PLACED=1; //no query kmer found in the DB
+    public static final byte BELOW_BOUND=2; //score below nsBound
+    public static final byte PLACED=3;
+    public static final byte REJECTED=4; //not scored, see PlacementProcess.rejectQuery()
+
+    private static final int CHUNK_SIZE=1048576; // chunks of 1mo
+    //end of a chain of identifiers
+    private static final long NO_RECORD=Long.MIN_VALUE;
+    //previous record of the chain and length of the identifier
+    private static final int RECORD_HEADER_SIZE=12;
+
+    //open addressing table, linear probing, slotIds[i]=-1 for empty slots
+    long[] keysHigh=null;
+    long[] keysLow=null;
+    int[] slotIds=null;
+    int mask=-1;
+    int size=0;
+
+    //index=id
+    byte[] status=null;
+    int[] multiplicity=null;
+    //"p" arrays, offset<0 if in the spill file, at -(offset+1)
+    long[] pOffsets=null;
+    int[] pLengths=null;
+    //last identifier found after the jplace object was written
+    long[] lateNames=null;
+
+    //"p" arrays kept in memory, offset=chunk<<32|position
+    ArrayList<byte[]> chunks=new ArrayList<>();
+    int chunkPosition=CHUNK_SIZE;
+    long chunksBytes=0;
+
+    //"p" arrays spilled to disk
+    long memoryBudget=0;
+    File spillDir=null;
+    File spillFile=null;
+    FileChannel spill=null;
+    long spillPosition=0;
+
+    /**
+     * register kept entirely in memory
+     */
+    public DuplicateRegister() {
+        this(0, null);
+    }
+
+    /**
+     *
+     * @param memoryBudget in bytes, 0 for no limit
+     * @param spillDir directory of the spill file, used only if the
+     * memory budget is exceeded
+     */
+    public DuplicateRegister(long memoryBudget, File spillDir) {
+        this.memoryBudget=memoryBudget;
+        this.spillDir=spillDir;
+        int capacity=1024;
+        keysHigh=new long[capacity];
+        keysLow=new long[capacity];
+        slotIds=new int[capacity];
+        Arrays.fill(slotIds, -1);
+        mask=capacity-1;
+        status=new byte[capacity];
+        multiplicity=new int[capacity];
+        pOffsets=new long[capacity];
+        pLengths=new int[capacity];
+        lateNames=new long[capacity];
+    }
+
+    /**
+     *
+     * @param keyHigh
+     * @param keyLow
+     * @return the id of this sequence, -1 if not registered
+     */
+    public int find(long keyHigh, long keyLow) {
+        int pos=(int)keyLow & mask;
+        int id;
+        while ((id=slotIds[pos])>-1) {
+            if (keysLow[pos]==keyLow && keysHigh[pos]==keyHigh) {
+                return id;
+            }
+            pos=(pos+1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * registers a new sequence, which must not be already registered
+     * @param keyHigh
+     * @param keyLow
+     * @return the id of this sequence, with status PENDING and
+     * multiplicity 1
+     */
+    public int add(long keyHigh, long keyLow) {
+        if (size>=slotIds.length*3/4) {
+            grow();
+        }
+        int pos=(int)keyLow & mask;
+        while (slotIds[pos]>-1) {
+            pos=(pos+1) & mask;
+        }
+        int id=size++;
+        keysHigh[pos]=keyHigh;
+        keysLow[pos]=keyLow;
+        slotIds[pos]=id;
+        if (id==status.length) {
+            int capacity=2*status.length;
+            status=Arrays.copyOf(status, capacity);
+            multiplicity=Arrays.copyOf(multiplicity, capacity);
+            pOffsets=Arrays.copyOf(pOffsets, capacity);
+            pLengths=Arrays.copyOf(pLengths, capacity);
+            lateNames=Arrays.copyOf(lateNames, capacity);
+        }
+        status[id]=PENDING;
+        multiplicity[id]=1;
+        lateNames[id]=NO_RECORD;
+        return id;
+    }
+
+    private void grow() {
+        long[] oldHigh=keysHigh;
+        long[] oldLow=keysLow;
+        int[] oldIds=slotIds;
+        int capacity=2*oldIds.length;
+        keysHigh=new long[capacity];
+        keysLow=new long[capacity];
+        slotIds=new int[capacity];
+        Arrays.fill(slotIds, -1);
+        mask=capacity-1;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i]>-1) {
+                int pos=(int)oldLow[i] & mask;
+                while (slotIds[pos]>-1) {
+                    pos=(pos+1) & mask;
+                }
+                keysHigh[pos]=oldHigh[i];
+                keysLow[pos]=oldLow[i];
+                slotIds[pos]=oldIds[i];
+            }
+        }
+    }
+
+    public byte getStatus(int id) {
+        return status[id];
+    }
+
+    public void setStatus(int id, byte s) {
+        status[id]=s;
+    }
+
+    /**
+     * one more occurence of this sequence
+     * @param id
+     */
+    public void addOccurence(int id) {
+        multiplicity[id]++;
+    }
+
+    public int getMultiplicity(int id) {
+        return multiplicity[id];
+    }
+
+    /**
+     * number of queries registered, identical ones included
+     * @return the sum of the multiplicities
+     */
+    public long getOccurenceCount() {
+        long count=0;
+        for (int id = 0; id < size; id++) {
+            count+=multiplicity[id];
+        }
+        return count;
+    }
+
+    /**
+     * number of queries registered with a given placement status,
+     * identical ones included
+     * @param s
+     * @return the sum of the multiplicities of the sequences of status s
+     */
+    public long getOccurenceCount(byte s) {
+        long count=0;
+        for (int id = 0; id < size; id++) {
+            if (status[id]==s) {
+                count+=multiplicity[id];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * number of distinct sequences registered
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * keeps the "p" array of a placed sequence, which then gets the status
+     * PLACED
+     * @param id
+     * @param p json text of the "p" array
+     * @throws IOException
+     */
+    public void setPlacement(int id, String p) throws IOException {
+        byte[] b=p.getBytes(StandardCharsets.UTF_8);
+        status[id]=PLACED;
+        pLengths[id]=b.length;
+        pOffsets[id]=store(b);
+    }
+
+    /**
+     *
+     * @param id
+     * @return json text of the "p" array of a sequence with status PLACED
+     * @throws IOException
+     */
+    public String getPlacement(int id) throws IOException {
+        return new String(load(pOffsets[id], pLengths[id]), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * keeps the identifier of a query identical to a sequence whose jplace
+     * object was already written (see setPlacement())
+     * @param id
+     * @param name
+     * @throws IOException
+     */
+    public void addLateName(int id, String name) throws IOException {
+        byte[] n=name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record=ByteBuffer.allocate(RECORD_HEADER_SIZE+n.length);
+        record.putLong(lateNames[id]);
+        record.putInt(n.length);
+        record.put(n);
+        lateNames[id]=store(record.array());
+    }
+
+    /**
+     *
+     * @param id
+     * @return true if addLateName() was called for this sequence
+     */
+    public boolean hasLateNames(int id) {
+        return lateNames[id]!=NO_RECORD;
+    }
+
+    /**
+     *
+     * @param id
+     * @return the identifiers given to addLateName() for this sequence, in
+     * the order they were added
+     * @throws IOException
+     */
+    public ArrayList<String> getLateNames(int id) throws IOException {
+        ArrayList<String> names=new ArrayList<>();
+        long offset=lateNames[id];
+        while (offset!=NO_RECORD) {
+            ByteBuffer header=ByteBuffer.wrap(load(offset, RECORD_HEADER_SIZE));
+            long previous=header.getLong();
+            int length=header.getInt();
+            byte[] record=load(offset, RECORD_HEADER_SIZE+length);
+            names.add(new String(record, RECORD_HEADER_SIZE, length, StandardCharsets.UTF_8));
+            offset=previous;
+        }
+        Collections.reverse(names);
+        return names;
+    }
+
+    /**
+     * stores bytes in memory, or in the spill file once the memory budget
+     * is exceeded
+     * @param b
+     * @return offset=chunk&lt;&lt;32|position in memory, offset&lt;0 in
+     * the spill file, at -(offset+1)
+     * @throws IOException
+     */
+    private long store(byte[] b) throws IOException {
+        if (memoryBudget>0 && spillDir!=null && getMemoryUsage()+b.length>memoryBudget) {
+            if (spill==null) {
+                spillFile=File.createTempFile("duplicates_", ".tmp", spillDir);
+                spillFile.deleteOnExit();
+                spill=FileChannel.open(spillFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            long offset=-(spillPosition+1);
+            ByteBuffer buffer=ByteBuffer.wrap(b);
+            while (buffer.hasRemaining()) {
+                spillPosition+=spill.write(buffer, spillPosition);
+            }
+            return offset;
+        }
+        if (chunks.isEmpty() || CHUNK_SIZE-chunkPosition<b.length) {
+            chunks.add(new byte[Math.max(CHUNK_SIZE, b.length)]);
+            chunksBytes+=chunks.get(chunks.size()-1).length;
+            chunkPosition=0;
+        }
+        System.arraycopy(b, 0, chunks.get(chunks.size()-1), chunkPosition, b.length);
+        long offset=((long)(chunks.size()-1)<<32)|chunkPosition;
+        chunkPosition+=b.length;
+        return offset;
+    }
+
+    /**
+     * bytes written by store()
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    private byte[] load(long offset, int length) throws IOException {
+        byte[] b=new byte[length];
+        if (offset<0) {
+            ByteBuffer buffer=ByteBuffer.wrap(b);
+            long position=-(offset+1);
+            while (buffer.hasRemaining()) {
+                int read=spill.read(buffer, position+buffer.position());
+                if (read<0) {
+                    throw new IOException("Unexpected end of file: "+spillFile.getAbsolutePath());
+                }
+            }
+        } else {
+            System.arraycopy(chunks.get((int)(offset>>>32)), (int)offset, b, 0, b.length);
+        }
+        return b;
+    }
+
+    /**
+     * approximate memory used by the register
+     * @return in bytes
+     */
+    public long getMemoryUsage() {
+        return 20L*slotIds.length+25L*status.length+chunksBytes;
+    }
+
+    /**
+     * true if some "p" arrays or identifiers were written to disk
+     * @return
+     */
+    public boolean hasSpilled() {
+        return spill!=null;
+    }
+
+    /**
+     * deletes the spill file, if any
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (spill!=null) {
+            spill.close();
+            spillFile.delete();
+            spill=null;
+        }
+    }
+
+    /**
+     * MurmurHash3 (x64, 128 bits, seed 0) of a sequence. The chars are
+     * packed 4 per long, without copying the sequence to a byte array.
+     * @param seq
+     * @param hash filled with the 2 halves of the hash
+     */
+    public static void hash128(CharSequence seq, long[] hash) {
+        final long c1=0x87c37b91114253d5L;
+        final long c2=0x4cf5ad432745937fL;
+        long h1=0L;
+        long h2=0L;
+        int length=seq.length();
+        //blocks of 16 bytes, i.e. 8 chars
+        int end=length-(length%8);
+        for (int i = 0; i < end; i+=8) {
+            long k1=pack(seq, i, 4);
+            long k2=pack(seq, i+4, 4);
+            k1*=c1; k1=Long.rotateLeft(k1, 31); k1*=c2; h1^=k1;
+            h1=Long.rotateLeft(h1, 27); h1+=h2; h1=h1*5+0x52dce729;
+            k2*=c2; k2=Long.rotateLeft(k2, 33); k2*=c1; h2^=k2;
+            h2=Long.rotateLeft(h2, 31); h2+=h1; h2=h2*5+0x38495ab5;
+        }
+        //tail
+        int tail=length-end;
+        if (tail>4) {
+            long k2=pack(seq, end+4, tail-4);
+            k2*=c2; k2=Long.rotateLeft(k2, 33); k2*=c1; h2^=k2;
+        }
+        if (tail>0) {
+            long k1=pack(seq, end, Math.min(tail, 4));
+            k1*=c1; k1=Long.rotateLeft(k1, 31); k1*=c2; h1^=k1;
+        }
+        //finalization, length in bytes
+        h1^=2L*length;
+        h2^=2L*length;
+        h1+=h2;
+        h2+=h1;
+        h1=fmix(h1);
+        h2=fmix(h2);
+        h1+=h2;
+        h2+=h1;
+        hash[0]=h1;
+        hash[1]=h2;
+    }
+
+    /**
+     * n chars (n&lt;=4) as a little-endian long
+     */
+    private static long pack(CharSequence seq, int start, int n) {
+        long k=0L;
+        for (int j = 0; j < n; j++) {
+            k|=((long)seq.charAt(start+j))<<(16*j);
+        }
+        return k;
+    }
+
+    private static long fmix(long k) {
+        k^=k>>>33;
+        k*=0xff51afd7ed558ccdL;
+        k^=k>>>33;
+        k*=0xc4ceb9fe1a85ec53L;
+        k^=k>>>33;
+        return k;
+    }
+
+}
@@ -7,32 +7,32 @@ package core.algos;
 
 import com.google.common.math.Quantiles;
 import core.DNAStatesShifted;
+import core.hash.FrozenHash;
 import core.hash.Pair;
 import etc.Infos;
 import inputs.Fasta;
 import inputs.SequencePointer;
-import it.unimi.dsi.fastutil.Hash;
 import it.unimi.dsi.fastutil.chars.Char2FloatMap;
-import it.unimi.dsi.fastutil.objects.Object2ObjectOpenCustomHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.security.NoSuchAlgorithmException;
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import jonelo.jacksum.JacksumAPI;
-import jonelo.jacksum.algorithm.AbstractChecksum;
-import main_v2.Main_PLACEMENT_v07;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import main_v2.SessionNext_v2;
 import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import outputs.JplaceWriter;
 import tree.PhyloNode;
 import tree.PhyloTree;
 
@@ -54,7 +54,7 @@ public class PlacementProcess {
     boolean merStats=false; //log outputing stats associated with mers, CAUTION produces big files
     //test different way to select best score
     boolean useTopTwo=false; //score only searcing top 2 values
-    boolean useSelectionAlgo=true; // score using Hoare's selection algorithm
+    boolean useSelectionAlgo=true; // score using a bounded min-heap of the n best scores
     //debug/////////////////////////////////////////////////////////////
     
     
@@ -64,11 +64,72 @@ public class PlacementProcess {
     
     //elements related to fil outputs
     //filled while the placement process is running
-    JSONArray placements=null;
+    JplaceWriter jplaceWriter=null;
     BufferedWriter bwTSV=null;
+    BufferedWriter bwNotPlaced=null;
+    //queries rejected by the pre-check, as fasta (see rejectQuery())
+    BufferedWriter bwRejected=null;
     StringBuffer sb=null;
     NumberFormat nf = NumberFormat.getInstance(Locale.UK);
     
+    //elements related to the merge of placement blocks
+    //# queries dispatched together to a placement thread
+    public static final int QUERY_BLOCK_SIZE=1000;
+    //# queries merged after a placement before its jplace object is
+    //written, identical queries found later are kept in the register and
+    //reported in a 2nd object of the sequence, at the end of the jplace
+    public static final int JPLACE_GROUPING_WINDOW=100000;
+    //register of the distinct query sequences
+    DuplicateRegister duplicates=null;
+    //memory budget of the register in bytes, 0=no limit
+    long duplicatesMemoryBudget=0;
+    //placements not written yet, in merge order, and by register id
+    ArrayDeque<QueryPlacement> openPlacements=null;
+    Int2ObjectOpenHashMap<QueryPlacement> openPlacementsById=null;
+    int mergedQueryCounter=0;
+    int duplicateCounter=0;
+    
+    //early termination of the scan of the query words
+    //a word can bring to a node at most -PPStarThresholdAsLog10 more
+    //than an unmatched word, the scan stops when the lead of the best
+    //node is larger than what the remaining words can bring
+    boolean earlyStop=false;
+    //absorbs the rounding of the float scores in the comparison
+    public static final float EARLY_STOP_SLACK=0.001f;
+    //all words of a query are resolved in one batch, sorted by their
+    //position in the hash tables (not compatible with earlyStop)
+    //only worth it when the tables do not fit in the processor caches,
+    //the sort costs more than it saves on small DBs
+    boolean batchLookups=false;
+    public static final long BATCH_LOOKUPS_MIN_BYTES=64L*1048576L;
+    //shared lookups: the distinct words of a block of queries are looked
+    //up once, each query is then still scored on its own, word by word,
+    //from the resolved posting ranges (no k-mer-major scoring)
+    boolean sharedLookups=false;
+    //max # words resolved together, i.e. 24Mb of buffers per thread
+    public static final int SHARED_LOOKUPS_MAX_CODES=1048576;
+    //integer scoring, PP* as fixed-point offsets above the threshold
+    boolean integerScores=false;
+    //precision of the fixed-point PP*, 1/65536 log10 unit, queries of
+    //more than ~6000 words (for a threshold of -5) are scored with floats
+    public static final int FIXED_POINT_SCALE=65536;
+    //w of the minimizers when query words are subsampled
+    //(SequenceKnife.SAMPLING_MINIMIZER)
+    int minimizerWindow=10;
+    //# words probed before scoring a query, 0 for no pre-check
+    int rejectSample=0;
+    //max probability to reject a query whose hit rate could reach
+    //nsBound, with words sampled at random (see rejectQuery())
+    public static final double REJECT_ERROR=0.01;
+    //queries rejected by the pre-check, duplicates included
+    int rejectedCounter=0;
+    //# query words looked up / # query words, placed queries only
+    long scannedWordCounter=0;
+    long queryWordCounter=0;
+    //queries being placed, for the progress
+    SequencePointer queries=null;
+    long startTotalPlacementTime=0;
+    
     /**
      *
      * @param session
@@ -390,87 +451,272 @@ public class PlacementProcess {
     }
     
 
-    public static float computeWeightRatioShift(float lowest, float best) {
-    	float weightRatioShift = 0.0f;
-    	if ( -308f >= lowest ) { // this is Double.MIN_NORMAL=2.2250738585072014E-308 as reported by javadoc
-            weightRatioShift=best;
-    	}
-    	return weightRatioShift;
+    /**
+     * likelihood weight ratio of a score, all powers of 10 being shifted
+     * by the best score (log-sum-exp), so that none underflows the double
+     * boundary
+     * @param s
+     * @param best best score of the query
+     * @param allLikelihoodSums sum of the 10^(score-best) of the reported scores
+     * @return 
+     */
+    public static double computeWeightRatio(Score s, float best, double allLikelihoodSums) {
+    	return Math.pow(10.0, (double)(s.score-best))/allLikelihoodSums;
     }
     
-    public static double computeWeightRatio(Score s, double weightRatioShift, double allLikelihoodSums) {
-    	return Math.pow(10.0, (double)(s.score-weightRatioShift))/allLikelihoodSums;
+    /**
+     * fills the end of bestScoreList with the n best scores of the selected
+     * nodes, in ascending order. Only the selected nodes are visited, through
+     * a bounded min-heap of size n, O(selected.log(n)). When scores are equal,
+     * the node selected first is preferred.
+     * For dense candidate sets (see ScoreKernel.DENSE_MIN_NODES), once the
+     * heap is full, blocks of scores of which none can enter it are
+     * skipped without being offered to the heap.
+     * @param scores index=position in selectedNodes
+     * @param selectedNodes
+     * @param bestScoreList
+     * @param numberOfBestScoreToConsiderForOutput n
+     * @param heapScores buffer of size &gt;= n
+     * @param heapPositions buffer of size &gt;= n, positions in selectedNodes
+     * @return the sum of the 10^(score-best) of these n scores
+     */
+    public static double fillBestScoreList(float[] scores, IntArrayList selectedNodes, Score[] bestScoreList, int numberOfBestScoreToConsiderForOutput, float[] heapScores, int[] heapPositions) {
+        boolean blocks=(selectedNodes.size()>=ScoreKernel.DENSE_MIN_NODES);
+        return fillBestScoreList(scores, selectedNodes, bestScoreList, numberOfBestScoreToConsiderForOutput, heapScores, heapPositions, blocks);
     }
-    
-    public static double fillBestScoreList(float[] nodeScores, float[] nodeScoresCopy, List<Integer> selectedNodes, Score[] bestScoreList, int numberOfBestScoreToConsiderForOutput) {
-    	double allLikelihoodSums = 0.0;
-    	
-    	System.arraycopy(nodeScores, 0, nodeScoresCopy, 0, nodeScores.length);
-        
-    	//selection algo, on average O(n)
-        //the kth value to select is selectedNodes.size()-keepAtMost, because ascending order:
-        // <-- nodes with scores =selectedNodes    --> <-- not scored = 0   -->
-        //[-3.5,-3.2,...,-1.6,-0.5,-2e-2,-1e-5,0.0,0.0 ,0,0,0,0,0,0,0,...,0,0,0]
-        float kthLargestValue=selectKthLargestValue(nodeScoresCopy, selectedNodes.size()-numberOfBestScoreToConsiderForOutput);
-    	
-        float lowest = 0.0f;
-        float best = -Float.MAX_VALUE;
-        
-        //System.out.println("kthLargestValue:"+kthLargestValue);
-        //search all node scores larger than this kth value
-        int i=0;
-        for (int nodeId:selectedNodes) {
-            if (i==numberOfBestScoreToConsiderForOutput) { 
-                break;
-                //we already got the nth best scores,
-                //no need to iterate more because nothing more will be
-                //output to the jplace 
-            }
-            if (nodeScores[nodeId]>=kthLargestValue) {
-                //System.out.println("nodeId:"+nodeId+" nodeScores[nodeId]:"+nodeScores[nodeId]+"\t\tnodeScores[nodeId]:"+nodeScores[nodeId]);
-                //division by kmer count to normalize
-                bestScoreList[i].score=nodeScores[nodeId];
-                bestScoreList[i].nodeId=nodeId;
-                
-                //build the total likelihood sum (for the likelihood weight ratio)
-                //before the power of ten, divide by #words, to use the normalized score
-                allLikelihoodSums+=Math.pow(10.0, (double)(bestScoreList[i].score));
-
-                //remind lower power of 10, if goes below double limit, 
-                //will need to shift the values
-                if (bestScoreList[i].score<lowest) {
-                	lowest=bestScoreList[i].score;
-                }
-                if (bestScoreList[i].score > best) {
-                	best=bestScoreList[i].score;
+
+    /**
+     * see fillBestScoreList() above
+     * @param blocks true to skip the blocks which cannot enter the heap
+     */
+    static double fillBestScoreList(float[] scores, IntArrayList selectedNodes, Score[] bestScoreList, int numberOfBestScoreToConsiderForOutput, float[] heapScores, int[] heapPositions, boolean blocks) {
+        int n=numberOfBestScoreToConsiderForOutput;
+        int selectedCount=selectedNodes.size();
+        blocks=(blocks && n>0);
+        int size=0;
+        int j=0;
+        while (j<selectedCount) {
+            if (blocks && size==n && selectedCount-j>=ScoreKernel.BLOCK) {
+                int end=j+ScoreKernel.BLOCK;
+                //an equal score comes later, so it is not better
+                if (ScoreKernel.exceeds(scores, j, end, heapScores[0])) {
+                    for (; j < end; j++) {
+                        size=offer(scores[j], j, size, n, heapScores, heapPositions);
+                    }
                 }
-                i++;
+                j=end;
+                continue;
             }
+            size=offer(scores[j], j, size, n, heapScores, heapPositions);
+            j++;
         }
         
-        //finally do a sort of bestScoreList, O(k.log(k))
-        Arrays.sort(bestScoreList);
-        
-        //if necessary
-        //prepare variable weightRatioShift for allowing
-        //weight-ratio computations when proba is < to "double" primitive boundary
-        float weightRatioShift = computeWeightRatioShift(lowest, best);
-        if (weightRatioShift != 0.0f) {
-            //System.out.println("weightRatioShift set to: "+weightRatioShift);
-            //rebuild allLikelihoodSums using the shift
-            allLikelihoodSums=0.0;
-            for (int ii=bestScoreList.length-numberOfBestScoreToConsiderForOutput;ii<bestScoreList.length;ii++) {
-                allLikelihoodSums+=Math.pow(10.0, (double)(bestScoreList[ii].score-weightRatioShift));
+        //ascending order, equal scores in selection order, O(n^2) but n
+        //is the few scores reported in the jplace
+        for (int i = 1; i < size; i++) {
+            float score=heapScores[i];
+            int position=heapPositions[i];
+            int c=i;
+            while (c>0 && (heapScores[c-1]>score || (heapScores[c-1]==score && heapPositions[c-1]>position))) {
+                heapScores[c]=heapScores[c-1];
+                heapPositions[c]=heapPositions[c-1];
+                c--;
             }
+            heapScores[c]=score;
+            heapPositions[c]=position;
+        }
+        int offset=bestScoreList.length-size;
+        for (int i = 0; i < size; i++) {
+            bestScoreList[offset+i].score=heapScores[i];
+            bestScoreList[offset+i].nodeId=selectedNodes.getInt(heapPositions[i]);
         }
         
+        //total likelihood sum (for the likelihood weight ratio), shifted
+        //by the best score, the largest term is then 10^0 and the sum
+        //can neither overflow nor underflow
+        double allLikelihoodSums=0.0;
+        if (size>0) {
+            float best=heapScores[size-1];
+            for (int i = 0; i < size; i++) {
+                allLikelihoodSums+=Math.pow(10.0, (double)(heapScores[i]-best));
+            }
+        }
         return allLikelihoodSums;
     }
+
+    /**
+     * offers the score of a selected node to the bounded min-heap of
+     * fillBestScoreList()
+     * @param score
+     * @param position position of the node in selectedNodes
+     * @param size current size of the heap
+     * @param n maximum size of the heap
+     * @param heapScores
+     * @param heapPositions
+     * @return new size of the heap
+     */
+    private static int offer(float score, int position, int size, int n, float[] heapScores, int[] heapPositions) {
+        if (size<n) {
+            //sift up
+            int c=size++;
+            while (c>0) {
+                int parent=(c-1)>>1;
+                if (!heapBefore(score, position, heapScores[parent], heapPositions[parent])) {
+                    break;
+                }
+                heapScores[c]=heapScores[parent];
+                heapPositions[c]=heapPositions[parent];
+                c=parent;
+            }
+            heapScores[c]=score;
+            heapPositions[c]=position;
+        } else if (score>heapScores[0]) {
+            //replace the worst of the n best, then sift down
+            //(an equal score comes later, so it is not better)
+            int c=0;
+            while (true) {
+                int child=2*c+1;
+                if (child>=size) {
+                    break;
+                }
+                if (child+1<size && heapBefore(heapScores[child+1], heapPositions[child+1], heapScores[child], heapPositions[child])) {
+                    child++;
+                }
+                if (!heapBefore(heapScores[child], heapPositions[child], score, position)) {
+                    break;
+                }
+                heapScores[c]=heapScores[child];
+                heapPositions[c]=heapPositions[child];
+                c=child;
+            }
+            heapScores[c]=score;
+            heapPositions[c]=position;
+        }
+        return size;
+    }
+
+    /**
+     * order of the min-heap: lower score first, and for equal scores the
+     * node selected last first
+     */
+    private static boolean heapBefore(float score1, int position1, float score2, int position2) {
+        return score1<score2 || (score1==score2 && position1>position2);
+    }
+    
+    /**
+     * above this budget, the register of identical queries stores on disk
+     * the placements to report for the next duplicates
+     * @param bytes 0 for no limit
+     */
+    public void setDuplicatesMemoryBudget(long bytes) {
+        this.duplicatesMemoryBudget=bytes;
+    }
+    
+    /**
+     * if true, query words are looked up until the best node cannot be
+     * overturned by the remaining words, the other scores are then
+     * extrapolated to the whole query: only the best node is exact, the
+     * ranking of the other nodes and the like_weight_ratio of all the
+     * reported placements can differ from a full scan.
+     * Words should be provided in a spread-out order
+     * (SequenceKnife.SAMPLING_SEQUENTIAL)
+     * @param earlyStop 
+     */
+    public void setEarlyStop(boolean earlyStop) {
+        this.earlyStop=earlyStop;
+    }
+    
+    /**
+     * window of the minimizers, used only if queries are placed with
+     * SequenceKnife.SAMPLING_MINIMIZER, about 2/(w+1) of the query
+     * words are then looked up and the scores are extrapolated to the
+     * whole query
+     * @param w 
+     */
+    public void setMinimizerWindow(int w) {
+        this.minimizerWindow=w;
+    }
+    
+    /**
+     * if true, the words of all the queries of a block are resolved
+     * together, so that a word shared by several queries is looked up
+     * once (see QUERY_BLOCK_SIZE). Only the lookups are shared, the
+     * posting lists are still accumulated query per query, in word order,
+     * so the scores are the same than without this option.
+     * Not used with the early termination.
+     * @param sharedLookups 
+     */
+    public void setSharedLookups(boolean sharedLookups) {
+        this.sharedLookups=sharedLookups;
+    }
+    
+    /**
+     * if true, queries are scored with integers: PP* are converted once
+     * to fixed-point offsets above the PP* threshold, a node score is then
+     * a sum of int, without correction by the # unmatched words.
+     * Scores are approximated to 1/FIXED_POINT_SCALE per word.
+     * @param integerScores 
+     */
+    public void setIntegerScores(boolean integerScores) {
+        this.integerScores=integerScores;
+    }
+    
+    /**
+     * if &gt;0, this # of words spread over each query is looked up before
+     * the scan, the query is not scored if its score, estimated from the
+     * hit rate of this sample, does not reach nsBound (see rejectQuery()).
+     * Queries resolved by block (see setSharedLookups()) are not checked.
+     * @param rejectSample 
+     */
+    public void setRejectSample(int rejectSample) {
+        this.rejectSample=rejectSample;
+    }
+    
+    /**
+     * output of the queries rejected by the pre-check, in fasta, so that
+     * they can be placed later with a full scan; they are not reported
+     * in the not placed queries
+     * @param bwRejected 
+     */
+    public void setRejectedOutput(BufferedWriter bwRejected) {
+        this.bwRejected=bwRejected;
+    }
+    
+    /**
+     * number of queries rejected by the pre-check (see setRejectSample()),
+     * duplicates included, during the last call to processQueries()
+     * @return 
+     */
+    public int getRejectedCount() {
+        return rejectedCounter;
+    }
+    
+    /**
+     * proportion of the query words which were looked up in the DB, during
+     * the last call to processQueries() or parallelProcessReads()
+     * @return 1.0 if all words were looked up
+     */
+    public double getScannedWordsRatio() {
+        if (queryWordCounter==0) {
+            return 1.0;
+        }
+        return (0.0+scannedWordCounter)/queryWordCounter;
+    }
+    
+    /**
+     * number of queries identical to a query encountered before, during
+     * the last call to processQueries() or parallelProcessReads(), i.e.
+     * the sum of the multiplicities of the register minus its size
+     * @return 
+     */
+    public int getDuplicateCount() {
+        return duplicateCounter;
+    }
     
     /**
      * 
      * @param fp
-     * @param placements
+     * @param jplaceWriter
      * @param bwTSV
      * @param bwNotPLaced
      * @param queryWordSampling
@@ -483,7 +729,7 @@ public class PlacementProcess {
      * @throws java.io.IOException
      */
     public int processQueries(  SequencePointer fp,
-                                JSONArray placements,
+                                JplaceWriter jplaceWriter,
                                 BufferedWriter bwTSV,
                                 BufferedWriter bwNotPLaced,
                                 int queryWordSampling,
@@ -494,55 +740,90 @@ public class PlacementProcess {
                                 boolean guppyCompatible
             
                                 ) throws IOException {
+        //sequential placement is the parallel engine limited to the
+        //calling thread, no executor is created in this case
+        return parallelProcessReads(fp, jplaceWriter, bwTSV, bwNotPLaced, queryWordSampling, minOverlap, logDir, keepAtMost, keepFactor, guppyCompatible, 1);
+    }
+    
+    /**
+     * multi-threaded version of the placement process.\n
+     * Queries are read and deduplicated by the calling thread, then
+     * dispatched by blocks of QUERY_BLOCK_SIZE to a pool of placement
+     * threads. Each thread owns its scoring vectors, the session (hash
+     * and trees) is shared read-only. Blocks are merged back in the
+     * input order, so that jplace and TSV outputs are identical to a
+     * sequential run.
+     * @param fp
+     * @param jplaceWriter
+     * @param bwTSV
+     * @param bwNotPLaced
+     * @param queryWordSampling
+     * @param minOverlap
+     * @param logDir
+     * @param keepAtMost
+     * @param keepFactor
+     * @param guppyCompatible
+     * @param threads number of placement threads, 1 means placement is done in the calling thread
+     * @return the number of queries effectively placed (kmers were found in DB)
+     * @throws IOException 
+     */
+    public int parallelProcessReads(SequencePointer fp,
+                                    JplaceWriter jplaceWriter,
+                                    BufferedWriter bwTSV,
+                                    BufferedWriter bwNotPLaced,
+                                    int queryWordSampling,
+                                    int minOverlap,
+                                    File logDir,
+                                    int keepAtMost,
+                                    float keepFactor,
+                                    boolean guppyCompatible,
+                                    int threads
+                                    ) throws IOException {
         
-        
-        
-        
+        this.jplaceWriter=jplaceWriter;
+        this.bwTSV=bwTSV;
+        this.bwNotPlaced=bwNotPLaced;
         
         ///////////////////////////////////////////////////////            
         // PREPARE VECTORS USED TO ALIGN AND SCORE NODES
-
-        //list of nodes encountered during matches search in the hash
-        //variable size, expanded only at 1st encounter with the node
-        //when nodeOccurences[nodeId]==0
-        //,reset at each read
-        ArrayList<Integer> selectedNodes=new ArrayList<>(10);
-        //instanciated once
-        int[] nodeOccurences=new int[session.originalTree.getNodeCount()]; // tab[#times_encoutered] --> index=nodeId
-        float[] nodeScores=new float[session.originalTree.getNodeCount()]; // tab[score] --> index=nodeId
-        float[] nodeScoresCopy=new float[session.originalTree.getNodeCount()]; // copy that will be consumed in the Hoare's selection algorithm
-        //System.out.println("S/C size: "+nodeOccurences.length);
-        int numberOfBestScoreToConsiderForOutput=-1;
-        Score[] bestScoreList=new Score[keepAtMost]; //in ascending order
-        for (int i = 0; i < bestScoreList.length; i++) {
-            bestScoreList[i]=new Score(-1, Float.NEGATIVE_INFINITY);
-        }
-
-        ///////////////////////////////////////////////////////////////////       
-        // PREPARE CHECKSUM FOR IDENTICAL READS REGISTER
-        AbstractChecksum checksumGenerator=null;
-        try {
-            //128bits checksum should be enough to avoid collision over
-            //millions of queries (with 32bits, 4 collisions over 10^6 reads)
-            checksumGenerator = JacksumAPI.getChecksumInstance("md5"); 
-            checksumGenerator.setEncoding(AbstractChecksum.BIN);
-        } catch (NoSuchAlgorithmException ex) {
-            Logger.getLogger(Main_PLACEMENT_v07.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        //map to associate sequence checksums to JSONObject
-        //map(checksum)=JSON placement object to which identical reads
-        //              are associated (same score and placement)
-        Object2ObjectOpenCustomHashMap<byte[],JSONObject> checksumToJSONObject=new Object2ObjectOpenCustomHashMap(new Hash.Strategy<byte[]>() {
-            @Override
-            public int hashCode(byte[] o) {
-                return Arrays.hashCode(o);
+        //one set of vectors per placement thread, instanciated once
+        //hash nodeIds are original nodeIds, ARTree nodeIds if the DB
+        //contains kmers of original nodes
+        final int nodeCount=session.onlyFakes?session.jplaceEdgeIds.length:session.ARTree.getNodeCount();
+        ThreadLocal<ScoringWorkspace> workspaces=ThreadLocal.withInitial(() -> {
+            ScoringWorkspace ws=new ScoringWorkspace(nodeCount, keepAtMost, session.k, session.minK, session.states, queryWordSampling);
+            ws.knife.setMinimizerWindow(minimizerWindow);
+            if (earlyStop) {
+                ws.trackLeaders(session.PPStarThresholdAsLog10);
             }
-
-            @Override
-            public boolean equals(byte[] a, byte[] b) {
-                return Arrays.equals(a, b);
+            if (integerScores && session.frozenHash!=null) {
+                ws.enableFixedPoint(session.frozenHash);
             }
+            return ws;
         });
+
+        ///////////////////////////////////////////////////////////////////       
+        // PREPARE REGISTER OF IDENTICAL READS
+        //128bits hash should be enough to avoid collision over
+        //millions of queries (with 32bits, 4 collisions over 10^6 reads)
+        //register(hash)=compact id to which identical reads
+        //               are associated (same score and placement)
+        duplicates=new DuplicateRegister(duplicatesMemoryBudget, logDir);
+        long[] sequenceHash=new long[2];
+        duplicateCounter=0;
+        long namesBefore=jplaceWriter.getNameCount();
+        scannedWordCounter=0;
+        queryWordCounter=0;
+        rejectedCounter=0;
+        batchLookups=(session.frozenHash!=null && session.frozenHash.getTableBytes()>=BATCH_LOOKUPS_MIN_BYTES);
+        if (integerScores && session.frozenHash!=null) {
+            session.frozenHash.prepareFixedPoint(session.PPStarThresholdAsLog10, FIXED_POINT_SCALE);
+        }
+        if (batchLookups) {
+            Infos.println("Query words resolved by batches (hash tables: "+session.frozenHash.getTableBytes()/1048576+" Mb).");
+        }
+        openPlacementsById=new Int2ObjectOpenHashMap<>();
+        openPlacements=new ArrayDeque<>();
         
 
         //////////////////////////////////////////////////////////////////
@@ -558,7 +839,17 @@ public class PlacementProcess {
             bwMerStats = Files.newBufferedWriter(fileMerStats.toPath());
             merStatsHeader(bwMerStats);
         }
+        final BufferedWriter bwMerStatsFinal=bwMerStats;
         
+        //placement threads, none if single threaded
+        ExecutorService executor=null;
+        if (threads>1) {
+            executor=Executors.newFixedThreadPool(threads);
+        }
+        //blocks submitted to the threads, in input order
+        //limited in size to avoid loading the whole query file in memory
+        ArrayDeque<Future<ArrayList<QueryPlacement>>> pendingBlocks=new ArrayDeque<>();
+        int maxPendingBlocks=threads*4;
 
 
         ////////////////////////////////////////////////////////////////////
@@ -566,151 +857,552 @@ public class PlacementProcess {
         // DO KMERS ALIGNMENT AND SCORING FOR ALL SEQUENCE QUERIES
         ////////////////////////////////////////////////////////////////////
         ////////////////////////////////////////////////////////////////////
-        long startTotalPlacementTime=System.currentTimeMillis();
+        startTotalPlacementTime=System.currentTimeMillis();
         System.out.println("Starting to place queries...");
 
         int queryCounter=0;
-        int placedQueryCounter=0;
-        int selectedNodeSize=0;
-//        long totalKnifeTime=0;
-//        long totalAlignTime=0;
-//        long totalScoringTime=0;
-//        long totalWritingTime=0;
-//        long totalResetTime=0;
-//        long totalChecksumTime=0;
-//        long totalT1Time=0;
-//        long totalT2Time=0;
+        mergedQueryCounter=0;
+        queries=fp;
         
-        int totalQueries=fp.getContentSize();
-        Fasta fasta=null;
-        while ((fasta=fp.nextSequenceAsFastaObject())!=null) {  //<-- MAIN LOOP: QUERY PER QUERY, TODO PARALLELIZED VERSION
+        //the threads are stopped whatever the outcome, an exception
+        //thrown by a block must not leave them running
+        try {
+            ArrayList<QueryPlacement> block=new ArrayList<>(QUERY_BLOCK_SIZE);
+            Fasta fasta=null;
+            while ((fasta=fp.nextSequenceAsFastaObject())!=null) {  //<-- MAIN LOOP: QUERY PER QUERY, SCORED BY BLOCKS
 
-            queryCounter++;
+                queryCounter++;
+            
+                //debug
+                if (queryCounter>queryLimit)
+                    break;
+            
+                ///////////////////////////////////
+                // HASH OF THE SEQUENCE
+                //if already present do not compute placement
+                //again.
+                DuplicateRegister.hash128(fasta.getSequence(true), sequenceHash);
+                QueryPlacement qp=new QueryPlacement(fasta);
+                //if this query sequence was already encountered, it will
+                //not be scored again but associated to its 1st occurence
+                //when blocks are merged
+                qp.registerId=duplicates.find(sequenceHash[0], sequenceHash[1]);
+                if (qp.registerId>-1) {
+                    qp.duplicate=true;
+                    duplicates.addOccurence(qp.registerId);
+                } else {
+                    qp.registerId=duplicates.add(sequenceHash[0], sequenceHash[1]);
+                }
+                block.add(qp);
+            
+                //block complete, send it to the placement threads
+                if (block.size()==QUERY_BLOCK_SIZE) {
+                    if (executor==null) {
+                        mergeBlock(placeBlock(block, workspaces.get(), queryWordSampling, keepAtMost, keepFactor, guppyCompatible, bwMerStatsFinal));
+                    } else {
+                        final ArrayList<QueryPlacement> toPlace=block;
+                        pendingBlocks.add(executor.submit(() -> placeBlock(toPlace, workspaces.get(), queryWordSampling, keepAtMost, keepFactor, guppyCompatible, bwMerStatsFinal)));
+                        //wait for the oldest block before reading more queries
+                        if (pendingBlocks.size()>=maxPendingBlocks) {
+                            mergeBlock(waitForBlock(pendingBlocks.poll()));
+                        }
+                    }
+                    block=new ArrayList<>(QUERY_BLOCK_SIZE);
+                }
+            }
+        
+            //last incomplete block
+            if (block.size()>0) {
+                if (executor==null) {
+                    mergeBlock(placeBlock(block, workspaces.get(), queryWordSampling, keepAtMost, keepFactor, guppyCompatible, bwMerStatsFinal));
+                } else {
+                    final ArrayList<QueryPlacement> toPlace=block;
+                    pendingBlocks.add(executor.submit(() -> placeBlock(toPlace, workspaces.get(), queryWordSampling, keepAtMost, keepFactor, guppyCompatible, bwMerStatsFinal)));
+                }
+            }
+            //merge all remaining blocks
+            while (!pendingBlocks.isEmpty()) {
+                mergeBlock(waitForBlock(pendingBlocks.poll()));
+            }
+            writePlacements(true);
+            writeLatePlacements();
+            //each placed query, identical ones included, is reported once
+            //in the "nm" arrays
+            long placedQueries=duplicates.getOccurenceCount(DuplicateRegister.PLACED);
+            if (jplaceWriter.getNameCount()-namesBefore!=placedQueries) {
+                System.out.println("WARNING: "+(jplaceWriter.getNameCount()-namesBefore)+" identifiers written in the jplace for "+placedQueries+" placed queries.");
+            }
+            duplicateCounter=(int)(duplicates.getOccurenceCount()-duplicates.size());
+        } finally {
+            if (executor!=null) {
+                executor.shutdownNow();
+            }
+        }
+        
+        if (merStats) {
+            bwMerStats.close();
+        }
+        
+        //flush to disk the last CSV buffer
+        if (bwTSV != null) {
+            bwTSV.append(sb);
+        }
+        if (duplicates.hasSpilled()) {
+            Infos.println("Register of identical queries exceeded its memory budget, "+duplicates.size()+" distinct queries.");
+        }
+        duplicates.close();
+        duplicates=null;
+        openPlacements=null;
+        openPlacementsById=null;
+        
+        return queryCounter;
+    }
+    
+    /**
+     * waits for a block submitted to the placement threads
+     * @param f
+     * @return
+     * @throws IOException 
+     */
+    private ArrayList<QueryPlacement> waitForBlock(Future<ArrayList<QueryPlacement>> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Placement interrupted.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+    
+    /**
+     * scores all queries of a block, called from the placement threads
+     * @param block
+     * @param ws scoring vectors owned by the calling thread
+     * @return the same block, with placement results filled
+     * @throws IOException 
+     */
+    private ArrayList<QueryPlacement> placeBlock(ArrayList<QueryPlacement> block, ScoringWorkspace ws, int queryWordSampling, int keepAtMost, float keepFactor, boolean guppyCompatible, BufferedWriter bwMerStats) throws IOException {
+        if (sharedLookups && !earlyStop && !merStats && session.frozenHash!=null && ws.knife.supportsPackedCodes()) {
+            //shared lookups: words of consecutive queries are resolved
+            //together, then the queries are scored one by one from the
+            //resolved ranges
+            ws.keepCodes=true;
+            int from=0;
+            while (from<block.size()) {
+                ws.clearCodes();
+                int to=from;
+                while (to<block.size() && ws.getCodeCount()<SHARED_LOOKUPS_MAX_CODES) {
+                    QueryPlacement qp = block.get(to++);
+                    if (!qp.duplicate) {
+                        addCodes(qp, ws);
+                    }
+                }
+                ws.resolveCodes(session.frozenHash);
+                for (int i = from; i < to; i++) {
+                    QueryPlacement qp = block.get(i);
+                    if (!qp.duplicate) {
+                        placeQuery(qp, ws, queryWordSampling, keepAtMost, keepFactor, guppyCompatible, bwMerStats);
+                    }
+                }
+                from=to;
+            }
+            ws.keepCodes=false;
+            ws.clearCodes();
+            return block;
+        }
+        for (int i = 0; i < block.size(); i++) {
+            QueryPlacement qp = block.get(i);
+            if (!qp.duplicate) {
+                placeQuery(qp, ws, queryWordSampling, keepAtMost, keepFactor, guppyCompatible, bwMerStats);
+            }
+        }
+        return block;
+    }
+    
+    /**
+     * adds the codes of the words of a query to the batch of the workspace,
+     * their position in the batch is kept in the QueryPlacement
+     * @param qp
+     * @param ws 
+     */
+    private void addCodes(QueryPlacement qp, ScoringWorkspace ws) {
+        SequenceKnife sk=ws.knife;
+        sk.setSequence(qp.fasta);
+        qp.codeStart=ws.getCodeCount();
+        long code=SequenceKnife.NO_MORE_CODES;
+        while ((code=sk.getNextCode())!=SequenceKnife.NO_MORE_CODES) {
+            ws.addCode(code);
+        }
+        qp.codeEnd=ws.getCodeCount();
+        qp.fullWordCount=sk.getFullWordCount();
+    }
+    
+    /**
+     * merge the results of a block in the jplace and TSV outputs,
+     * always called from the thread which launched the placement and
+     * in the input order of the blocks
+     * @param block
+     * @throws IOException 
+     */
+    private void mergeBlock(ArrayList<QueryPlacement> block) throws IOException {
+        for (int i = 0; i < block.size(); i++) {
+            QueryPlacement qp = block.get(i);
+            mergedQueryCounter++;
             
             //console display to follow the process
-            if ((queryCounter%10000)==0) {
-                System.out.println(queryCounter+"/"+totalQueries+
+            if ((mergedQueryCounter%10000)==0) {
+                System.out.println(mergedQueryCounter+
                 " queries placed ("+
-                (((0.0+queryCounter)/totalQueries)*100)+
-                "%)  --  Time elapsed: "+
+                (queries.getProgress()*100)+
+                "% of the input read)  --  Time elapsed: "+
                 ((0.0+(System.currentTimeMillis()-startTotalPlacementTime))/1000)+" s");
             }
             
-            //debug
-            if (queryCounter>queryLimit)
-                break;
-            
-            ///////////////////////////////////
-            // CHECKSUM BUILD
-            //if already present do not compute placement
-            //again. this might need compression if fasta sequences headers
-            //are too heavy in memory
-//            long startChecksumTime=System.currentTimeMillis();
-            checksumGenerator.reset(); //make it ready before next checksum computation
-            checksumGenerator.update(fasta.getSequence(true).getBytes());
-            byte[] checksum = checksumGenerator.getByteArray();
-            int cutIndex=fasta.getHeader().indexOf(" ");
-            if (cutIndex<0) { //basically, space not found
-                cutIndex=fasta.getHeader().length();
-            }
-            String subHeader=fasta.getHeader().substring(0,cutIndex);
-            //if this query sequence was already encountered
-            JSONObject placement =null;
-            if ((placement=checksumToJSONObject.get(checksum))!=null) {
-                //ArrayList<String> array = identicalSeqsRegistry.get(checksum);
-                //array.add(subHeader);
-                Infos.println("! SKIPPED BECAUSE DUPLICATE: "+fasta.getHeader());
-                //+" MULTIPLICITY:"+identicalSeqsRegistry.get(checksum));
-                
-                //System.out.println(array);
-                //before skipping, update the outputs
-                //in the jplace block on the bottom of the main placement loop
-                //get back the placement out from the JSONObject
-                //if it passed the --nsbound debug option (if not, do not exists)
-                if (placement!=null) {
-                    //the "p" object values stay unchanged
-                    //the "nm" object has to be extended with the identifier
-                    //and multiplicity of this read
-                    JSONArray allQueryIdentifiers=(JSONArray)placement.get("nm");
-                    JSONArray queryMultiplicity=new JSONArray();
-                    queryMultiplicity.add(subHeader);
-                    queryMultiplicity.add(1);
-                    allQueryIdentifiers.add(queryMultiplicity);   
+            if (qp.duplicate) {
+                byte status=duplicates.getStatus(qp.registerId);
+                if (status==DuplicateRegister.PLACED) {
+                    Infos.println("! SKIPPED BECAUSE DUPLICATE: "+qp.header);
+                    QueryPlacement first=openPlacementsById.get(qp.registerId);
+                    if (first!=null) {
+                        //the "p" object values stay unchanged
+                        //the "nm" object has to be extended with the identifier
+                        //and multiplicity of this read
+                        first.names.add(qp.getSubHeader());
+                    } else {
+                        //object of the 1st occurence already written,
+                        //reported with the same "p" array at the end
+                        duplicates.addLateName(qp.registerId, qp.getSubHeader());
+                    }
+                } else if (status==DuplicateRegister.NOT_PLACED && bwNotPlaced!=null) {
+                    //same sequence as a query that could not be placed
+                    bwNotPlaced.append(qp.header);
+                    bwNotPlaced.newLine();
+                } else if (status==DuplicateRegister.REJECTED) {
+                    //same sequence as a query rejected by the pre-check
+                    writeRejected(qp);
                 }
-                //go to next query, as detected as duplicate and jplace file now updated
+                writePlacements(false);
                 continue;
+            }
+            
+            if (qp.rejected) {
+                //not scored, diverted to its own output
+                scannedWordCounter+=qp.scannedWords;
+                queryWordCounter+=qp.queryWords;
+                writeRejected(qp);
+                duplicates.setStatus(qp.registerId, DuplicateRegister.REJECTED);
+            } else if (!qp.placed) {
+                //report queries that could not be placed because
+                //none of its kmers found in DB
+                if (bwNotPlaced != null) {
+                    bwNotPlaced.append(qp.header);
+                    bwNotPlaced.newLine();
+                }
+                duplicates.setStatus(qp.registerId, DuplicateRegister.NOT_PLACED);
             } else {
-                placement=new JSONObject();
-                //ArrayList<String> a=new ArrayList<>();
-                //a.add(subHeader);
-                //identicalSeqsRegistry.put(checksum,1);
+                scannedWordCounter+=qp.scannedWords;
+                queryWordCounter+=qp.queryWords;
+                if (qp.tsvLine!=null) {
+                    sb.append(qp.tsvLine);
+                }
+                if (qp.p!=null) {
+                    //OUTPUT n°2: the JSON placement object (jplace file)
+                    //the "nm" array, containing the multiplicity of this
+                    //placement, if duplicates are found later, they will
+                    //be added to it until the object is written
+                    qp.pJSON=qp.p.toJSONString();
+                    duplicates.setStatus(qp.registerId, DuplicateRegister.PLACED);
+                    openPlacement(qp, qp.header);
+                } else {
+                    //score below --nsbound
+                    duplicates.setStatus(qp.registerId, DuplicateRegister.BELOW_BOUND);
+                }
             }
-//            long endChecksumTime=System.currentTimeMillis();
-//            totalChecksumTime+=endChecksumTime-startChecksumTime;
-
-            placedQueryCounter++;
+            //scoring data not needed anymore
+            qp.p=null;
+            qp.tsvLine=null;
+            writePlacements(false);
+            
+            //push the stringbuffer to the CSV bufferedwriter every 25000 sequences
+            if (bwTSV!=null) {
+                if ((mergedQueryCounter%25000)==0) {
+                    int size=sb.length();
+                    bwTSV.append(sb);
+                    sb=null;
+                    sb=new StringBuffer(size);
+                }   
+            }
+        }
+    }
+    
+    /**
+     * writes the placement objects which cannot be extended anymore
+     * @param all if true, all remaining objects are written
+     * @throws IOException 
+     */
+    private void writePlacements(boolean all) throws IOException {
+        while (!openPlacements.isEmpty() && (all || openPlacements.peek().mergeIndex<=mergedQueryCounter-JPLACE_GROUPING_WINDOW)) {
+            QueryPlacement qp=openPlacements.poll();
+            jplaceWriter.writePlacement(qp.pJSON, qp.names);
+            //kept for the identical queries merged later
+            if (!all) {
+                duplicates.setPlacement(qp.registerId, qp.pJSON);
+            }
+            openPlacementsById.remove(qp.registerId);
+            qp.names=null;
+            qp.pJSON=null;
+        }
+    }
+    
+    /**
+     * writes, for each sequence which has identical queries merged after
+     * its jplace object was written, a 2nd object with the same "p" array
+     * and the identifiers of these queries, in the order of the 1st
+     * occurences of the sequences
+     * @throws IOException 
+     */
+    private void writeLatePlacements() throws IOException {
+        int late=0;
+        for (int id = 0; id < duplicates.size(); id++) {
+            if (duplicates.hasLateNames(id)) {
+                jplaceWriter.writePlacement(duplicates.getPlacement(id), duplicates.getLateNames(id));
+                late++;
+            }
+        }
+        if (late>0) {
+            Infos.println(late+" sequences had identical queries more than "+JPLACE_GROUPING_WINDOW+" queries after their 1st occurence, reported in a 2nd jplace object.");
+        }
+    }
+    
+    /**
+     * a new jplace object, to which identical queries are added until
+     * it is written
+     * @param qp
+     * @param name 1st identifier of the "nm" array
+     */
+    private void openPlacement(QueryPlacement qp, String name) {
+        qp.names=new ArrayList<>(1);
+        qp.names.add(name);
+        qp.mergeIndex=mergedQueryCounter;
+        openPlacements.add(qp);
+        openPlacementsById.put(qp.registerId, qp);
+    }
+    
+    /**
+     * writes a query rejected by the pre-check in the rejected output
+     * @param qp
+     * @throws IOException 
+     */
+    private void writeRejected(QueryPlacement qp) throws IOException {
+        rejectedCounter++;
+        if (bwRejected!=null) {
+            bwRejected.append(qp.fasta.getFormatedFasta());
+            bwRejected.newLine();
+        }
+        qp.fasta=null;
+    }
+    
+    /**
+     * pre-check of a query: rejectSample words, at the middle of equal
+     * segments of the query, are looked up. With a hit rate h (words of
+     * the query present in the DB), the best score is at most
+     * threshold*#words*(1-h), as a word scores at most log10(1)=0.
+     * The query is rejected if even the upper confidence bound of h,
+     * measured on the sample, cannot bring this score to nsBound:
+     * h_sample+sqrt(ln(1/REJECT_ERROR)/(2*#probed)) (Hoeffding). If the
+     * sampled words were drawn at random, a query able to reach nsBound
+     * is then rejected with a probability of at most REJECT_ERROR. The
+     * sample being spread evenly, this holds as long as the hits are not
+     * clustered on a small part of the query (partial overlap with the
+     * reference, chimeras).\n
+     * Rejected queries are not scored and not reported as not placed,
+     * they are written to their own output (see setRejectedOutput()),
+     * from which they can be placed with a full scan. Without nsBound,
+     * no query is rejected.
+     * @param sk knife of the query
+     * @param frozenHash
+     * @param fullWordCount # words of the query
+     * @param qp
+     * @return true if the query is rejected
+     */
+    private boolean rejectQuery(SequenceKnife sk, FrozenHash frozenHash, int fullWordCount, QueryPlacement qp) {
+        int positions=sk.getSequenceLength()-session.k+1;
+        //short query, the sample would cost almost as much as the scan
+        if (positions<2*rejectSample) {
+            return false;
+        }
+        int probed=0;
+        int found=0;
+        for (int i = 0; i < rejectSample; i++) {
+            long code=sk.getCodeAt((int)(((2L*i+1)*positions)/(2*rejectSample)));
+            if (code==SequenceKnife.INVALID_CODE) {
+                continue;
+            }
+            probed++;
+            if (frozenHash.getRow(code)>-1) {
+                found++;
+            }
+        }
+        if (probed==0) {
+            return false;
+        }
+        float hitRate=(float)Math.min(1.0, (0.0+found)/probed+Math.sqrt(Math.log(1.0/REJECT_ERROR)/(2.0*probed)));
+        float bestBound=session.PPStarThresholdAsLog10*fullWordCount*(1.0f-hitRate);
+        if (bestBound<nsBound) {
+            Infos.println("Read rejected, its score cannot reach nsBound (error<="+REJECT_ERROR+").");
+            qp.rejected=true;
+            qp.p=null;
+            qp.scannedWords=probed;
+            qp.queryWords=fullWordCount;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * alignment and scoring of a single query, results are stored in
+     * the QueryPlacement, outputs themselves are written by mergeBlock()
+     * @param qp
+     * @param ws scoring vectors of the calling thread
+     * @param queryWordSampling
+     * @param keepAtMost
+     * @param keepFactor
+     * @param guppyCompatible
+     * @param bwMerStats
+     * @throws IOException 
+     */
+    private void placeQuery(QueryPlacement qp,
+                            ScoringWorkspace ws,
+                            int queryWordSampling,
+                            int keepAtMost,
+                            float keepFactor,
+                            boolean guppyCompatible,
+                            BufferedWriter bwMerStats
+                            ) throws IOException {
+        
+        Fasta fasta=qp.fasta;
+        IntArrayList selectedNodes=ws.selectedNodes;
+        Score[] bestScoreList=ws.bestScoreList;
+        int numberOfBestScoreToConsiderForOutput=-1;
+        //avoids building the log strings for each query when not in verbose mode
+        boolean verbose=Infos.isVerbose();
 
+        if (verbose) {
             Infos.println("#######################################################################");
-            Infos.println("### PLACEMENT FOR QUERY #"+queryCounter+" : "+fasta.getHeader());
+            Infos.println("### PLACEMENT FOR QUERY : "+fasta.getHeader());
             Infos.println("#######################################################################");
-            //fw.append(fasta.getFormatedFasta()+"\n");
-            int queryLength=fasta.getSequence(false).length();
-            Infos.println("Query length: "+queryLength);
+            Infos.println("Query length: "+fasta.getSequence(false).length());
+        }
 
 
-            ///////////////////////////////////
-            // PREPARE QUERY K-MERS
-//            long startKnifeTime=System.currentTimeMillis();
-            SequenceKnife sk=new SequenceKnife(fasta, session.k, session.minK, session.states, queryWordSampling);
-            int queryKmerCount=0;
-            int queryKmerMatchingDB=0;
-//            long endKnifeTime=System.currentTimeMillis();
-//            totalKnifeTime+=(endKnifeTime-startKnifeTime);
-
-
-
-            //if alignment graph are required
-//            double[][] graphDataForTopTuples =null;
-//            int xSize=-1;
-//            if (graphAlignment) {
-//                //preparing preplacement graph data :
-//                xSize=session.align.getLength();
-//                int ySize=queryLength;
-//                graphDataForTopTuples =new double[3][xSize*ySize];
-//                //init the Z axis (PP*) to very small values for all possible (X,Y)
-//                    for (int y = 0; y < ySize; y++) {
-//                        for (int x = 0; x < xSize; x++) {
-//                            //System.out.println(col+" "+line+" "+(col+(line*session.align.getLength())));
-//                            graphDataForTopTuples[0][x+(y*xSize)]=x;
-//                            graphDataForTopTuples[1][x+(y*xSize)]=y;
-//                            graphDataForTopTuples[2][x+(y*xSize)]=session.PPStarThresholdAsLog10;
-//                        }
-//                    }
-//            }
+        ///////////////////////////////////
+        // PREPARE QUERY K-MERS
+        //the knife of the workspace is reused, no allocation per query
+        //its words were already resolved if the query is part of a batch
+        SequenceKnife sk=ws.knife;
+        boolean resolved=(qp.codeStart>-1);
+        if (!resolved) {
+            sk.setSequence(fasta);
+        }
+        int queryKmerCount=0;
+        int queryKmerMatchingDB=0;
+        boolean compressDNA=(session.states instanceof DNAStatesShifted);
+        DNAStatesShifted dnaStates=compressDNA?(DNAStatesShifted)session.states:null;
+
+        ////////////////////////////////////////////////////////////////
+        // BUILD THE ALIGNMENT AND SCORE IN A SINGLE LOOP ON QUERY WORDS
+        ////////////////////////////////////////////////////////////////
+        Infos.println("Launching scoring on candidate nodes...");
+        //merFound[nodeId][merPos], only needed by the --merstats debug option
+        boolean[][] merFound=null;
+        if (merStats) {
+            merFound=new boolean[session.ARTree.getNodeCount()][sk.getMerCount()];
+        }
+        //early termination, 0 if all words are looked up
+        int wordCount=(earlyStop && !resolved)?sk.getWordCount():0;
+        //words of a linear scan, scores are extrapolated to this count
+        //if words were subsampled or if the scan was stopped
+        int fullWordCount=resolved?qp.fullWordCount:sk.getFullWordCount();
+        float maxWordGain=-session.PPStarThresholdAsLog10;
+        FrozenHash frozenHash=session.frozenHash;
+        //integer scoring, only through the frozen hash
+        boolean fixedPoint=ws.useFixedPoint(fullWordCount);
+        //a sample of the words decides if the query is worth the scan
+        if (rejectSample>0 && !resolved && sk.supportsPackedCodes() && frozenHash!=null) {
+            if (rejectQuery(sk, frozenHash, fullWordCount, qp)) {
+                //sequence kept for the rejected output
+                ws.reset();
+                return;
+            }
+        }
+        if (resolved) {
+            //words resolved with those of the other queries of the block
+            queryKmerCount=qp.codeEnd-qp.codeStart;
+            queryKmerMatchingDB=ws.hitRanges(frozenHash, qp.codeStart, qp.codeEnd);
+        } else if (sk.supportsPackedCodes() && frozenHash!=null && batchLookups && wordCount==0) {
+            //all words of the query resolved in a single batch, ordered
+            //by their position in the tables of the hash
+            long code=SequenceKnife.NO_MORE_CODES;
+            while ((code=sk.getNextCode())!=SequenceKnife.NO_MORE_CODES) {
+                queryKmerCount++;
+                //word with ambiguous states (INVALID_CODE) are ignored
+                ws.addCode(code);
+            }
+            queryKmerMatchingDB=ws.hitCodes(frozenHash);
+        } else if (sk.supportsPackedCodes() && frozenHash!=null) {
+            //loop on words, as packed codes rolled along the query
+            long code=SequenceKnife.NO_MORE_CODES;
+            while ((code=sk.getNextCode())!=SequenceKnife.NO_MORE_CODES) {
+                //the remaining words cannot change the best node
+                if (wordCount>0 && ws.getLead()>maxWordGain*(wordCount-queryKmerCount)+EARLY_STOP_SLACK) {
+                    break;
+                }
+                queryKmerCount++;
+                //word with ambiguous states, cannot be in the hash
+                if (code==SequenceKnife.INVALID_CODE) {
+                    continue;
+                }
+                //get row of pairs associated to this word
+                int row=frozenHash.getRow(code);
+                //word is not present in hash
+                if (row<0) {
+                    continue;
+                }
+                queryKmerMatchingDB++;
+                ws.hit(frozenHash, row);
+            }
+        } else {
+            //loop on words, copied in the buffer of the workspace
+            byte[] qw=ws.word;
+            int wordLength=-1;
+            while ((wordLength=sk.getNextByteWord(ws.word))>-1) {
+                //the remaining words cannot change the best node
+                if (wordCount>0 && ws.getLead()>maxWordGain*(wordCount-queryKmerCount)+EARLY_STOP_SLACK) {
+                    break;
+                }
+                //shorter words (minK<k) cannot use the buffer as a key
+                if (wordLength<ws.word.length) {
+                    qw=Arrays.copyOf(ws.word, wordLength);
+                } else {
+                    qw=ws.word;
+                }
 
-            ////////////////////////////////////////////////////////////////
-            // BUILD THE ALIGNMENT AND SCORE IN A SINGLE LOOP ON QUERY WORDS
-            ////////////////////////////////////////////////////////////////
-//            long startAlignTime=System.currentTimeMillis();
-            Infos.println("Launching scoring on candidate nodes...");
-            boolean[][] merFound=new boolean[session.ARTree.getNodeCount()][sk.getMerCount()]; //merFound[nodeId][merPos]
-            //loop on words
-            byte[] qw=null;
-            while ((qw=sk.getNextByteWord())!=null) {
-                //Infos.println("Query mer: "+qw.toString());
-                
                 //get Pairs associated to this word
-//                long startT1Time=System.currentTimeMillis();
                 Char2FloatMap.FastEntrySet allPairs =null;
-                //List<Pair> allPairs=null;
-                if (session.states instanceof DNAStatesShifted) {
-                    allPairs = session.hash.getPairsOfTopPosition2(session.states.compressMer(qw));
+                if (compressDNA) {
+                    if (wordLength<ws.word.length) {
+                        allPairs = session.hash.getPairsOfTopPosition2(dnaStates.compressMer(qw));
+                    } else {
+                        dnaStates.compressMer(qw, ws.compressedWord);
+                        allPairs = session.hash.getPairsOfTopPosition2(ws.compressedWord);
+                    }
                 } else {
                     allPairs = session.hash.getPairsOfTopPosition2(qw);
                 }
-//                long endT1Time=System.currentTimeMillis();
-//                totalT1Time+=(endT1Time-startT1Time);
-                
 
                 //word is not present in hash
                 if (allPairs==null) {
@@ -718,441 +1410,350 @@ public class PlacementProcess {
                     continue;
                 }
                 queryKmerMatchingDB++;
-                
-                //stream version, 5-10% faster than allPairs.fastIterator()
-                allPairs.stream().forEach( (entry) -> {
-                    int nodeId=entry.getCharKey();
-                    //int nodeId=entry.getNodeId();
-                    //we will score only encountered nodes, originalNode registered
-                    //at 1st encouter
-                    if (nodeOccurences[nodeId]==0) {
-                        selectedNodes.add(nodeId);
-                    }
-                    //count # times originalNode encountered
-                    nodeOccurences[nodeId]+=1;
-                    //score associated to originalNode x for current read
-                    nodeScores[nodeId]+=entry.getFloatValue();
-                });
-                
-                
-//                long endT2Time=System.currentTimeMillis();
-//                totalT2Time+=(endT2Time-startT2Time);
-                
-                //graph of alignment, if asked
-//                if(graphAlignment) {
-//                   int topPosition =session.hash.getTopPosition(qw);
-//                   //System.out.println((queryKmerCount*xSize+topPosition)+"="+allPairs.get(0).getPPStar());
-//                   graphDataForTopTuples[2][queryKmerCount*xSize+topPosition]= new Double((float)allPairs.toArray()[0]);                        
-//                }
+                ws.hit(allPairs);
                 queryKmerCount++;
 
             }
-//            System.out.println("  AFTER ALIGNMENT");
-//            System.out.println("  nodeOccurences:"+Arrays.toString(Arrays.copyOfRange(nodeOccurences,0,nodeOccurences.length)));
-//            System.out.println("  nodeScores:"+Arrays.toString(Arrays.copyOfRange(nodeScores,0,nodeOccurences.length)));
-            if (merStats) {
-            	merStats(session, merFound, fasta, bwMerStats);
+        }
+        if (merStats) {
+            synchronized (bwMerStats) {
+                merStats(session, merFound, fasta, bwMerStats);
             }
-            
-
-            //display alignment result of requested
-//            if (graphAlignment) {
-//                //graph for topTuplePerPos
-//                DefaultXYZDataset datasetForGraph=new DefaultXYZDataset();
-//                //datasetForGraph.addSeries(0, graphDataForTopTuples);
-//                datasetForGraph.addSeries(0, graphDataForTopTuples);
-//                JFrame infos=new JFrame();
-//                infos.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-//                infos.setLayout(new GridLayout(1, 1));
-//                infos.add(ChartsForNodes.buildReadMatchForANode4("Top_tuple_per_pos of read="+fasta.getHeader(),session.align.getLength(),queryLength, datasetForGraph,session.PPStarThresholdAsLog10,0));
-//                infos.setSize(1024, 250);
-//                infos.pack();
-//                RefineryUtilities.centerFrameOnScreen(infos);
-//                infos.setVisible(true);
-//            }
-
+        }
 
+        if (verbose) {
             Infos.println("Proportion of query words retrieved in the hash: "+queryKmerMatchingDB+"/"+queryKmerCount);
-//            long endAlignTime=System.currentTimeMillis();
-//            totalAlignTime+=(endAlignTime-startAlignTime);
-            //Infos.println("Candidate nodes: "+selectedNodes.size()+" ");      
-
-            //if selectedNodes is empty (no node could be associated)
-            //for instance when no query words could be found in the hash
-            if ( (selectedNodes.size()<1) ) {
-                Infos.println("Read cannot be placed.");
-                //report queries that could not be placed because
-                //none of its kmers found in DB
-                if (bwNotPLaced != null) {
-	            bwNotPLaced.append(fasta.getHeader());
-	            bwNotPLaced.newLine();
-                }
-                continue; //to next query
+        }
+        //the unmatched words correction is made on the words looked up,
+        //then scores are extrapolated to all the query words
+        float extrapolation=1.0f;
+        qp.scannedWords=queryKmerCount;
+        qp.queryWords=queryKmerCount;
+        if (queryKmerCount>0 && fullWordCount>queryKmerCount) {
+            extrapolation=((float)fullWordCount)/queryKmerCount;
+            qp.queryWords=fullWordCount;
+            if (verbose) {
+                Infos.println("Scores extrapolated from "+queryKmerCount+"/"+fullWordCount+" query words.");
             }
-            
-
+        }
 
-            // NOW CORRECTING SCORING BY UNMATCHED WORDS
-            ///////////////////////////////////////////////////////
-            long startScoringTime=System.currentTimeMillis();
-            
-            int bestNodeId=-1;
-            float bestScore=Float.NEGATIVE_INFINITY;
-            int secondBest=-1;
-            float secondScore=Float.NEGATIVE_INFINITY;
-            
-            //correct scoring by score of unmatched words (i.e. the threshold)
-            //and normalize by dividing by number of kmers involved in the score
-            for (Integer nodeId:selectedNodes) {
-                //System.out.println("Scoring originalNode:"+nodeId);
-                //System.out.println("nodeMapping:"+session.nodeMapping.get(nodeId));
-                //int extendedTreeId=session.nodeMapping.get(nodeId);
-                //System.out.println("extendedTreeId:"+extendedTreeId);
-                //Integer originalNodeId = extendedTree.getFakeToOriginalId(extendedTreeId);
-                //System.out.println("originalNodeId:"+originalNodeId);
-                //System.out.println("  scoring originalNode: ARTree="+session.ARTree.getById(nodeId)+" ExtendedTree="+session.extendedTree.getById(extendedTreeId)+" OriginalTree="+session.originalTree.getById(originalNodeId));
-                //correct scoring by score of unmatched words (i.e. the threshold)
-//                System.out.print("maxWords:"+queryKmerCount);
-//                System.out.print(" nodeId:"+nodeId);
-//                System.out.print("\tscore:"+nodeScores[nodeId]);
-//                System.out.print("\toccur:"+nodeOccurences[nodeId]);
-                nodeScores[nodeId]+=(session.PPStarThresholdAsLog10*(queryKmerCount-nodeOccurences[nodeId]));
-                
-                //here keep track of the 2 best scores
-                if (useTopTwo) {
-                    if (nodeScores[nodeId]>bestScore) {
-                        secondBest=bestNodeId;
-                        secondScore=bestScore;
-                        bestNodeId=nodeId;
-                        bestScore=nodeScores[nodeId];
-                    } else if (nodeScores[nodeId]>secondScore) {
-                        secondBest=nodeId;
-                        secondScore=nodeScores[nodeId];
-                    }
+        //if selectedNodes is empty (no node could be associated)
+        //for instance when no query words could be found in the hash
+        if ( (selectedNodes.size()<1) ) {
+            Infos.println("Read cannot be placed.");
+            qp.placed=false;
+            ws.reset();
+            qp.fasta=null;
+            return;
+        }
+        qp.placed=true;
+
+
+        // NOW CORRECTING SCORING BY UNMATCHED WORDS
+        ///////////////////////////////////////////////////////
+        int bestNodeId=-1;
+        float bestScore=Float.NEGATIVE_INFINITY;
+        int secondBest=-1;
+        float secondScore=Float.NEGATIVE_INFINITY;
+
+        //correct scoring by score of unmatched words (i.e. the threshold)
+        //and normalize by dividing by number of kmers involved in the score
+        //with the integer scoring, the correction is implicit
+        //the scores are in the order of selectedNodes, the correction is
+        //done on contiguous arrays
+        if (fixedPoint) {
+            ws.convertGains(session.PPStarThresholdAsLog10*queryKmerCount, extrapolation);
+        } else {
+            ws.correctScores(session.PPStarThresholdAsLog10, queryKmerCount, extrapolation);
+        }
+        float[] scores=ws.scores;
+        //here keep track of the 2 best scores
+        if (useTopTwo) {
+            for (int j = 0; j < selectedNodes.size(); j++) {
+                if (scores[j]>bestScore) {
+                    secondBest=bestNodeId;
+                    secondScore=bestScore;
+                    bestNodeId=selectedNodes.getInt(j);
+                    bestScore=scores[j];
+                } else if (scores[j]>secondScore) {
+                    secondBest=selectedNodes.getInt(j);
+                    secondScore=scores[j];
                 }
             }
-            
-            
-            //to check what is the real ordering
-//            float[] copyOf = new float[selectedNodes.size()];
-//            int c=0;
-//            for (int nodeId:selectedNodes) {
-//                copyOf[c]=nodeScores[nodeId];
-//                c++;
-//            }
-//            Arrays.sort(copyOf);
-//            System.out.println(Arrays.toString(Arrays.copyOfRange(copyOf, 0, 10)));
-//            System.out.println(Arrays.toString(Arrays.copyOfRange(copyOf, copyOf.length-10, copyOf.length)));
-
-
-            //here keep track of the nth best node scores using selection algorithm
-            //this should be on average O(k.log(k) + n)
-            double allLikelihoodSums = 0.0;
-            if (useSelectionAlgo) {
-                numberOfBestScoreToConsiderForOutput=keepAtMost;
-                //level down keepAtMost is less nodes were selected
-                if(selectedNodes.size()<keepAtMost) {
-                    numberOfBestScoreToConsiderForOutput=selectedNodes.size();
-                }
-            	
-                allLikelihoodSums = fillBestScoreList(nodeScores, nodeScoresCopy, selectedNodes, bestScoreList, numberOfBestScoreToConsiderForOutput);
+        }
 
-                bestScore=bestScoreList[bestScoreList.length-1].score;
-                bestNodeId=bestScoreList[bestScoreList.length-1].nodeId;
+        //here keep track of the nth best node scores using a bounded min-heap
+        //this should be O(n.log(k)), n=#selected nodes
+        double allLikelihoodSums = 0.0;
+        if (useSelectionAlgo) {
+            numberOfBestScoreToConsiderForOutput=keepAtMost;
+            //level down keepAtMost is less nodes were selected
+            if(selectedNodes.size()<keepAtMost) {
+                numberOfBestScoreToConsiderForOutput=selectedNodes.size();
             }
-            //System.out.println("bestScoreList:"+Arrays.toString(bestScoreList));
-            //System.out.println("numberOfBestScoreToConsiderForOutput: "+numberOfBestScoreToConsiderForOutput);
-            
-            
-            
-            
-            //System.out.println("  AFTER SCORING");
-            //System.out.println("  nodeOccurences:"+Arrays.toString(Arrays.copyOfRange(nodeOccurences,150,250)));
-            //System.out.println("  nodeScores:"+Arrays.toString(Arrays.copyOfRange(nodeScores,150,250)));
+
+            allLikelihoodSums = fillBestScoreList(scores, selectedNodes, bestScoreList, numberOfBestScoreToConsiderForOutput, ws.heapScores, ws.heapPositions);
+
+            bestScore=bestScoreList[bestScoreList.length-1].score;
+            bestNodeId=bestScoreList[bestScoreList.length-1].nodeId;
+        }
+        if (verbose) {
             Infos.println("Best node (originalTree) is : "+bestNodeId+" (score="+bestScore+")");
-            //Infos.println("mapping: ARTree="+session.ARTree.getById(bestNodeId)+" ExtendedTree="+session.extendedTree.getById(session.nodeMapping.get(bestNodeId))+" OriginalTree="+session.originalTree.getById(session.extendedTree.getFakeToOriginalId(session.nodeMapping.get(bestNodeId))));
-            //System.out.println("allLikelihoodSums: "+allLikelihoodSums);
-//            if (useSelectionAlgo) {
-//                System.out.println("selection algo + sort: "+Arrays.toString(bestScoreList));
-//            }
-            
+        }
 
-            // DEPRECATED !!!!
-            // THIS IS USED ONLY IF DEBUG OPTION --orinodes IS CALLED
-            // AT DB_BUILD. THEN, THIS BLOCK IS EXECUTED AS DB CONTAIN ARTREE
-            // NODEIDS. IF DB WAS BUILT WITHOUT THIS OPTION, IT CONTAINS
-            // ORIGINAL_TREE NODEIDS, NOT AR_TREE NODEIDS !!!
-            // SELECT BEST NEIGHBOOR FAKE NODE IF BEST NODE IS ORIGINAL NODE
-            ////////////////////////////////////////////////////////////////
-            
-            int extendedTreeId=-1;
-            int originalNodeId = -1;
-            PhyloNode nodeToTest = null;
-            
-            if (session.onlyFakes==false) {       
-            
-                //check if this was a fake originalNode or not
-                //to do that, retromapping from ARTree to extended tree 
-                extendedTreeId=session.nodeMapping.get(bestNodeId);
-                originalNodeId = session.extendedTree.getFakeToOriginalId(extendedTreeId);
-                nodeToTest = session.extendedTree.getById(extendedTreeId);
-                //if this is an original originalNode, select adjacent branch 
-                //leading to 2nd best PP*
-                if (!nodeToTest.isFakeNode() ) {
-                    //System.out.println("############### change best node to neighboors !");                    
-                    Infos.println("Current best node is an original node...");
-
-                    PhyloNode firstNode = null;
-                    PhyloNode secondNode = null;
-                    //if there was no other scored nodes ? this case happened when a single query mer was found in the DB
-                    if (secondBest<0) {
-                        //arbitrary choice, take FAKE node which is left son.
-                        firstNode = session.ARTree.getById(bestNodeId);
-                        secondNode = firstNode.getChildAt(0);
-                        bestNodeId =secondNode.getId();
 
-                    } else {
-                        firstNode = session.ARTree.getById(bestNodeId);
-                        //select node of 2nd best score
-                        secondNode = session.ARTree.getById(secondBest);
-                        //get path from this node to bestNodeId
-                        //System.out.println("1st node: "+ARTree.getById(bestNodeId)+" 2nd node:"+ARTree.getById(secondNodeId));
-                        PhyloTree.Path shortestPath = session.ARTree.shortestPath(session.ARTree.getRoot(), firstNode, secondNode);
-                        //System.out.println("Path to second: "+shortestPath.path.size());
-                        //path will be as:
-                        //firstNode-X0-...-secondNode
-                        //or nodeToTest-secondNode(X0) if immediate neighboor
-                        //in all case the 2nd elt of the path is the X0 chosen 
-                        //for the placement
-                        bestNodeId=shortestPath.path.get(1).getId();
+        // DEPRECATED !!!!
+        // THIS IS USED ONLY IF DEBUG OPTION --orinodes IS CALLED
+        // AT DB_BUILD. THEN, THIS BLOCK IS EXECUTED AS DB CONTAIN ARTREE
+        // NODEIDS. IF DB WAS BUILT WITHOUT THIS OPTION, IT CONTAINS
+        // ORIGINAL_TREE NODEIDS, NOT AR_TREE NODEIDS !!!
+        // SELECT BEST NEIGHBOOR FAKE NODE IF BEST NODE IS ORIGINAL NODE
+        ////////////////////////////////////////////////////////////////
 
-                    }
-                    extendedTreeId=session.nodeMapping.get(bestNodeId);
-                    originalNodeId = session.extendedTree.getFakeToOriginalId(extendedTreeId);        
+        int extendedTreeId=-1;
+        int originalNodeId = -1;
+        PhyloNode nodeToTest = null;
 
+        if (session.onlyFakes==false) {       
 
-                    //System.out.println("NEW Selected node (ARTree) is : "+bestNodeId+" (score="+bestScore+")");
-                    //System.out.println("mapping: ARTree="+ARTree.getById(bestNodeId)+" ExtendedTree="+extendedTree.getById(extendedTreeId)+" OriginalTree="+session.originalTree.getById(originalNodeId));
+            //check if this was a fake originalNode or not
+            //to do that, retromapping from ARTree to extended tree 
+            extendedTreeId=session.nodeMapping.get(bestNodeId);
+            originalNodeId = session.extendedTree.getFakeToOriginalId(extendedTreeId);
+            nodeToTest = session.extendedTree.getById(extendedTreeId);
+            //if this is an original originalNode, select adjacent branch 
+            //leading to 2nd best PP*
+            if (!nodeToTest.isFakeNode() ) {
+                Infos.println("Current best node is an original node...");
 
-                    if (!session.extendedTree.getById(extendedTreeId).isFakeNode()) {
-                        System.out.println("Something went wrong in neighboor node search !!!!");
-                        System.exit(1);
-                    }
+                PhyloNode firstNode = null;
+                PhyloNode secondNode = null;
+                //if there was no other scored nodes ? this case happened when a single query mer was found in the DB
+                if (secondBest<0) {
+                    //arbitrary choice, take FAKE node which is left son.
+                    firstNode = session.ARTree.getById(bestNodeId);
+                    secondNode = firstNode.getChildAt(0);
+                    bestNodeId =secondNode.getId();
 
-                } 
-                
-                
-                
-                
-                
-            }
+                } else {
+                    firstNode = session.ARTree.getById(bestNodeId);
+                    //select node of 2nd best score
+                    secondNode = session.ARTree.getById(secondBest);
+                    //get path from this node to bestNodeId
+                    PhyloTree.Path shortestPath = session.ARTree.shortestPath(session.ARTree.getRoot(), firstNode, secondNode);
+                    //path will be as:
+                    //firstNode-X0-...-secondNode
+                    //or nodeToTest-secondNode(X0) if immediate neighboor
+                    //in all case the 2nd elt of the path is the X0 chosen 
+                    //for the placement
+                    bestNodeId=shortestPath.path.get(1).getId();
 
+                }
+                extendedTreeId=session.nodeMapping.get(bestNodeId);
+                originalNodeId = session.extendedTree.getFakeToOriginalId(extendedTreeId);        
 
-//            long endScoringTime=System.currentTimeMillis();
-//            totalScoringTime+=endScoringTime-startScoringTime;
+                if (!session.extendedTree.getById(extendedTreeId).isFakeNode()) {
+                    System.out.println("Something went wrong in neighboor node search !!!!");
+                    System.exit(1);
+                }
 
+            } 
 
-            //TO DEBUG
-//                System.out.println(fasta.getHeader());
-//                System.out.print("bestNodeId:"+bestNodeId);
-//                System.out.print("\t\tbestScore:"+bestScore);
-//                System.out.println("\t\tbestSCore (normalized by #mers):"+(bestScore/sk.getMaxMerCount()));
-//                System.out.println("nodeScores:"+Arrays.toString(nodeScores));
-//                System.out.println("nodeOccurences:"+Arrays.toString(nodeOccurences));
-//                System.out.println("selectedNodes:"+selectedNodes.keySet().toString());
+        }
 
-//            long startWritingTime=System.currentTimeMillis();
-            
-            //write result in file if a originalNode was hit
-            if (csvLog && (bwTSV!=null) ) {
-                //only score passing --nsbound if this debug option is set
-                if (bestScoreList[bestScoreList.length-1].score>=nsBound) {
-                    //OUTPUT n°1: the CSV report of placement
-                    //allow in particular to check that nodes were correclty
-                    //mappes at every step (original tree, extended tree,
-                    //AR modified tree)
-                    sb.append(fasta.getHeader().split(" ")[0]).append("\t");
-                    if (session.onlyFakes==false) {
-                        sb.append(String.valueOf(bestNodeId)).append("\t"); //ARTree nodeID
-                        sb.append(String.valueOf(session.ARTree.getById(bestNodeId).getLabel())).append("\t"); //ARTree nodeName
-                        sb.append(String.valueOf(extendedTreeId)).append("\t"); //extended Tree nodeID
-                        sb.append(String.valueOf(session.extendedTree.getById(extendedTreeId).getLabel())).append("\t"); //extended Tree nodeName
-                        sb.append(String.valueOf(originalNodeId)).append("\t"); //edge of original tree (original nodeId)
-                        sb.append(String.valueOf(session.originalTree.getById(originalNodeId).getLabel())).append("\t"); //edge of original tree (original nodeName
-                        sb.append(String.valueOf(bestScoreList[bestScoreList.length-1].score)).append("\n");
-                    } else {
-                        sb.append("").append("\t"); //ARTree nodeID
-                        sb.append("").append("\t"); //ARTree nodeName
-                        sb.append("").append("\t"); //extended Tree nodeID
-                        sb.append("").append("\t"); //extended Tree nodeName
-                        sb.append(String.valueOf(bestNodeId)).append("\t"); //edge of original tree (original nodeId)
-                        sb.append(String.valueOf(session.originalTree.getById(bestNodeId).getLabel())).append("\t"); //edge of original tree (original nodeName
-                        sb.append(String.valueOf(bestScoreList[bestScoreList.length-1].score)).append("\n");
-                    }
-                }
-            }
-            
-            
-            //OUTPUT n°2: the JSON placement object (jplace file)
-            //2 possibilities in the process of adding a placement:
-            //-either do a new "placement" object and add ot to the list
-            // of placements (block below is executed)
-            //-or a previous placement object corresponding to an
-            //identical sequence exists, then we don't the block below
-            //as all the alignmnet/placement algo was skipped.
-            //(we didn't reached this block)
-            
+        //write result in file if a originalNode was hit
+        if (csvLog && (bwTSV!=null) ) {
             //only score passing --nsbound if this debug option is set
             if (bestScoreList[bestScoreList.length-1].score>=nsBound) {
-                //first we build the "p" array, containing the position/scores of all reads
-                JSONArray pMetadata=new JSONArray();
-                
-                float best = bestScoreList[bestScoreList.length-1].score;
-                float lowest = bestScoreList[bestScoreList.length-numberOfBestScoreToConsiderForOutput].score;
-                float weightRatioShift = computeWeightRatioShift(lowest, best);
-                
-                //we create as many lines in "p" block as asked by --keep-at-most and --keep-ratio
-                double bestRatio=-1;
-                for (int i = bestScoreList.length-1; i>bestScoreList.length-numberOfBestScoreToConsiderForOutput-1; i--) {
-                    //System.out.println("i: "+i);
-                    //calculate weight_ratio
-                    double weigth_ratio=-1;
-                    //System.out.println("bestScoreList[i].score-weightRatioShift : "+(bestScoreList[i].score-weightRatioShift));
-                    //System.out.println("Math.pow(10.0, (double)(bestScoreList[i].score-weightRatioShift)):"+ Math.pow(10.0, (double)(bestScoreList[i].score-weightRatioShift)));
-                    weigth_ratio=computeWeightRatio(bestScoreList[i], weightRatioShift, allLikelihoodSums);
-                    
-                    //if best score, memorize this ratio
-                    if (i==bestScoreList.length-1) {
-                        bestRatio=weigth_ratio;
-                    }
-                    //System.out.println("Likelihood weight ratio: "+weigth_ratio);
-                    //take into account option --keep-factor
-                    if (i<bestScoreList.length-1 && weigth_ratio<(bestRatio*keepFactor)) {
-                        break;
-                    }
-                    //in pplacer/EPA several placements can be associated to a query
-                    //we input only the best one, but that can be changed in the future
-                    //"distal_length","like_weight_ratio","pendant_length","edge_num","likelihood"
-                    JSONArray placeColumns=new JSONArray();
-                    if (guppyCompatible) {
-//                        System.out.println("bestScoreList[i].score : "+bestScoreList[i].score);
-//                        System.out.println("bestScoreList[i].nodeId : "+bestScoreList[i].nodeId);
-//                        System.out.println(session.originalTree.getById(bestScoreList[i].nodeId));
-//                        System.out.println(session.originalTree.getById(bestScoreList[i].nodeId).getJplaceEdgeId());
-                        placeColumns.add(session.originalTree.getById(bestScoreList[i].nodeId).getBranchLengthToAncestor()/2); //distal_length
-                        placeColumns.add(session.originalTree.getById(bestScoreList[i].nodeId).getJplaceEdgeId()); // 1. edge of original tree (original nodeId=edgeID)
-                        placeColumns.add(weigth_ratio); // 3. like_weight_ratio column of ML-based methods
-                        placeColumns.add(bestScoreList[i].score); // 2. PP*
-                        placeColumns.add(0.0); //pendant_length
-                    } else {
-                        placeColumns.add(session.originalTree.getById(bestScoreList[i].nodeId).getJplaceEdgeId()); // 1. edge of original tree (original nodeId=edgeID)
-                        placeColumns.add(bestScoreList[i].score); // 2. PP*
-                        placeColumns.add(weigth_ratio); // 3. like_weight_ratio column of ML-based methods
-                        //fake fields for compatibility with current tools (guppy, archeopteryx)
-                        //should be provided as an option
-                        placeColumns.add(session.originalTree.getById(bestScoreList[i].nodeId).getBranchLengthToAncestor()/2f); //distal_length
-                        placeColumns.add(0.0); //pendant_length
-                    }
-                    pMetadata.add(placeColumns);
+                //OUTPUT n°1: the CSV report of placement
+                //allow in particular to check that nodes were correclty
+                //mappes at every step (original tree, extended tree,
+                //AR modified tree)
+                StringBuilder line=new StringBuilder();
+                line.append(fasta.getHeader().split(" ")[0]).append("\t");
+                if (session.onlyFakes==false) {
+                    line.append(String.valueOf(bestNodeId)).append("\t"); //ARTree nodeID
+                    line.append(String.valueOf(session.ARTree.getById(bestNodeId).getLabel())).append("\t"); //ARTree nodeName
+                    line.append(String.valueOf(extendedTreeId)).append("\t"); //extended Tree nodeID
+                    line.append(String.valueOf(session.extendedTree.getById(extendedTreeId).getLabel())).append("\t"); //extended Tree nodeName
+                    line.append(String.valueOf(originalNodeId)).append("\t"); //edge of original tree (original nodeId)
+                    line.append(String.valueOf(session.originalTree.getById(originalNodeId).getLabel())).append("\t"); //edge of original tree (original nodeName
+                    line.append(String.valueOf(bestScoreList[bestScoreList.length-1].score)).append("\n");
+                } else {
+                    line.append("").append("\t"); //ARTree nodeID
+                    line.append("").append("\t"); //ARTree nodeName
+                    line.append("").append("\t"); //extended Tree nodeID
+                    line.append("").append("\t"); //extended Tree nodeName
+                    line.append(String.valueOf(bestNodeId)).append("\t"); //edge of original tree (original nodeId)
+                    line.append(String.valueOf(session.originalTree.getById(bestNodeId).getLabel())).append("\t"); //edge of original tree (original nodeName
+                    line.append(String.valueOf(bestScoreList[bestScoreList.length-1].score)).append("\n");
                 }
-                placement.put("p", pMetadata);
-
-                //second we build the "nm" array, containing the read identifier
-                //and its multiplicity. 
-                //Only one element as this is the 1st read,
-                //identical reads will be detected before the placement computation
-                //and will simply be added to this list (see checksum block before 
-                //the alignment/scoring blocks).
-                JSONArray allIdentifiers=new JSONArray();
-                JSONArray readMultiplicity=new JSONArray();
-                readMultiplicity.add(fasta.getHeader());
-                readMultiplicity.add(1);
-                allIdentifiers.add(readMultiplicity);
-                placement.put("nm", allIdentifiers);
-                //store the placement in the list of placements
-                placements.add(placement);
-                //JSON for this read DONE, if duplicates are found later,
-                //will be added to the corresponding "p" and "nm" array
-                //using the checksumToJSONObject map
-                //for now, just register the reference
-                checksumToJSONObject.put(checksum, placement); 
+                qp.tsvLine=line.toString();
             }
+        }
 
-//            long endWritingTime=System.currentTimeMillis();
-//            totalWritingTime+=endWritingTime-startWritingTime;
 
+        //OUTPUT n°2: the "p" array of the JSON placement object (jplace file)
+        //the placement object itself is built when blocks are merged,
+        //so that identical sequences are associated to the same object
 
-            //push the stringbuffer to the CSV bufferedwriter every 25000 sequences
-            if (bwTSV!=null) {
-                if ((queryCounter%25000)==0) {
-                    int size=sb.length();
-                    bwTSV.append(sb);
-                    sb=null;
-                    sb=new StringBuffer(size);
-                }   
-            }
-            
+        //only score passing --nsbound if this debug option is set
+        if (bestScoreList[bestScoreList.length-1].score>=nsBound) {
+            //first we build the "p" array, containing the position/scores of all reads
+            JSONArray pMetadata=new JSONArray();
 
+            float best = bestScoreList[bestScoreList.length-1].score;
 
-            //reset the scoring vectors
-            long startResetTime=System.currentTimeMillis();
-            for (Integer nodeId : selectedNodes) {
-                nodeScores[nodeId]=0.0f;
-                nodeScoresCopy[nodeId]=0.0f;
-                nodeOccurences[nodeId]=0;
-            }
-            for (int i = 0; i < bestScoreList.length; i++) {
-                bestScoreList[i]=new Score(-1, Float.NEGATIVE_INFINITY);
+            //we create as many lines in "p" block as asked by --keep-at-most and --keep-ratio
+            double bestRatio=-1;
+            for (int i = bestScoreList.length-1; i>bestScoreList.length-numberOfBestScoreToConsiderForOutput-1; i--) {
+                //calculate weight_ratio
+                double weigth_ratio=-1;
+                weigth_ratio=computeWeightRatio(bestScoreList[i], best, allLikelihoodSums);
+
+                //if best score, memorize this ratio
+                if (i==bestScoreList.length-1) {
+                    bestRatio=weigth_ratio;
+                }
+                //take into account option --keep-factor
+                if (i<bestScoreList.length-1 && weigth_ratio<(bestRatio*keepFactor)) {
+                    break;
+                }
+                //in pplacer/EPA several placements can be associated to a query
+                //we input only the best one, but that can be changed in the future
+                //"distal_length","like_weight_ratio","pendant_length","edge_num","likelihood"
+                JSONArray placeColumns=new JSONArray();
+                if (guppyCompatible) {
+                    placeColumns.add(session.branchLengths[bestScoreList[i].nodeId]/2); //distal_length
+                    placeColumns.add(session.jplaceEdgeIds[bestScoreList[i].nodeId]); // 1. edge of original tree (original nodeId=edgeID)
+                    placeColumns.add(weigth_ratio); // 3. like_weight_ratio column of ML-based methods
+                    placeColumns.add(bestScoreList[i].score); // 2. PP*
+                    placeColumns.add(0.0); //pendant_length
+                } else {
+                    placeColumns.add(session.jplaceEdgeIds[bestScoreList[i].nodeId]); // 1. edge of original tree (original nodeId=edgeID)
+                    placeColumns.add(bestScoreList[i].score); // 2. PP*
+                    placeColumns.add(weigth_ratio); // 3. like_weight_ratio column of ML-based methods
+                    //fake fields for compatibility with current tools (guppy, archeopteryx)
+                    //should be provided as an option
+                    placeColumns.add(session.branchLengths[bestScoreList[i].nodeId]/2f); //distal_length
+                    placeColumns.add(0.0); //pendant_length
+                }
+                pMetadata.add(placeColumns);
             }
-            selectedNodeSize+=selectedNodes.size();
-            selectedNodes.clear();
-//            long endResetTime=System.currentTimeMillis();
-//            totalResetTime+=endResetTime-startResetTime;
-            
+            qp.p=pMetadata;
+        }
 
+        //reset the scoring vectors
+        ws.reset();
+        //sequence not needed anymore
+        qp.fasta=null;
+    }
+    
+    
+    /**
+     * accuracy of the minimizer subsampling of the query words, to choose
+     * its window: a sample of queries is scored with all words then with
+     * the minimizers of each window, the proportion of words looked up and
+     * of queries associated to the same best node are reported in a TSV
+     * @param fp queries, the pointer is not reset
+     * @param windows
+     * @param sampleSize # queries scored
+     * @param report
+     * @throws IOException 
+     */
+    public void minimizersReport(SequencePointer fp, int[] windows, int sampleSize, File report) throws IOException {
+        if (session.frozenHash==null || !new SequenceKnife(session.k, session.minK, session.states, SequenceKnife.SAMPLING_MINIMIZER).supportsPackedCodes()) {
+            System.out.println("Minimizers report not available, k-mers of this DB cannot be packed.");
+            return;
         }
-        
-        if (merStats) {
-            bwMerStats.close();
+        int nodeCount=session.onlyFakes?session.jplaceEdgeIds.length:session.ARTree.getNodeCount();
+        ScoringWorkspace reference=new ScoringWorkspace(nodeCount, 1, session.k, session.minK, session.states, SequenceKnife.SAMPLING_LINEAR);
+        ScoringWorkspace[] workspaces=new ScoringWorkspace[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            workspaces[i]=new ScoringWorkspace(nodeCount, 1, session.k, session.minK, session.states, SequenceKnife.SAMPLING_MINIMIZER);
+            workspaces[i].knife.setMinimizerWindow(windows[i]);
         }
-        
-        //flush to disk the last CSV buffer
-        if (bwTSV != null) {
-            bwTSV.append(sb);
+        long referenceWords=0;
+        long[] words=new long[windows.length];
+        int[] sameBestNode=new int[windows.length];
+        double[] scoreDifferences=new double[windows.length];
+        int[] result=new int[2];
+        int queries=0;
+        Fasta fasta=null;
+        while (queries<sampleSize && (fasta=fp.nextSequenceAsFastaObject())!=null) {
+            float referenceScore=scoreBestNode(reference, fasta, result);
+            int referenceNode=result[0];
+            referenceWords+=result[1];
+            for (int i = 0; i < windows.length; i++) {
+                float score=scoreBestNode(workspaces[i], fasta, result);
+                words[i]+=result[1];
+                if (result[0]==referenceNode) {
+                    sameBestNode[i]++;
+                }
+                if (referenceNode>-1 && result[0]>-1) {
+                    scoreDifferences[i]+=Math.abs(score-referenceScore);
+                }
+            }
+            queries++;
         }
-
-            
-//        long endTotalPlacementTime=System.currentTimeMillis();
-//        System.out.println("############################################################");
-//        System.out.println("Checksum registry took in total: "+totalChecksumTime+" ms");
-//        System.out.println("Knife took in total: "+totalKnifeTime+" ms");
-//        System.out.println("kmer matching took in total: "+totalAlignTime+" ms");
-//        System.out.println(" T1 took in total: "+totalT1Time+" ms");
-//        System.out.println(" T2 took in total: "+totalT2Time+" ms");
-//        System.out.println("Scoring took in total: "+totalScoringTime+" ms");
-//        System.out.println("Writing .csv and .jplace took in total: "+totalWritingTime+" ms");
-//        System.out.println("Reset took in total: "+totalResetTime+" ms");
-//        System.out.println("------------------------------------------------------------");
-//        System.out.println("(per placement average)");
-//        System.out.println("Checksum registry took on average: "+((0.0+totalChecksumTime)/placedQueryCounter)+" ms");
-//        System.out.println("Knife took on average: "+((0.0+totalKnifeTime)/placedQueryCounter)+" ms");
-//        System.out.println("k-mer match/score took on average: "+((0.0+totalAlignTime)/placedQueryCounter)+" ms");
-//        System.out.println(" T1 took on average: "+((0.0+totalT1Time)/placedQueryCounter)+" ms");
-//        System.out.println(" T2 took on average: "+((0.0+totalT2Time)/placedQueryCounter)+" ms");
-//        System.out.println("Score correction/ratio took on average: "+((0.0+totalScoringTime)/placedQueryCounter)+" ms");
-//        System.out.println("Writing .jplace and/or .csv took on average: "+((0.0+totalWritingTime)/placedQueryCounter)+" ms");
-//        System.out.println("Reset took on average: "+((0.0+totalResetTime)/placedQueryCounter)+" ms");
-//        System.out.println("L average: "+((0.0+selectedNodeSize)/placedQueryCounter)+" nodes");
-//        System.out.println("------------------------------------------------------------");
-//        System.out.println("Placement Process (without DB load) took: "+(endTotalPlacementTime-startTotalPlacementTime)+" ms");
-//        System.out.println("############################################################");
-        
-        return queryCounter;
+        if (queries==0) {
+            return;
+        }
+        try (BufferedWriter bw=Files.newBufferedWriter(report.toPath())) {
+            bw.append("window\tlookups\tlookups_ratio\tsame_best_node\tmean_best_score_diff\n");
+            bw.append("1\t"+referenceWords+"\t1.0\t1.0\t0.0\n");
+            for (int i = 0; i < windows.length; i++) {
+                double ratio=(0.0+words[i])/referenceWords;
+                double same=(0.0+sameBestNode[i])/queries;
+                bw.append(windows[i]+"\t"+words[i]+"\t"+ratio+"\t"+same+"\t"+(scoreDifferences[i]/queries)+"\n");
+                System.out.println("Minimizers w="+windows[i]+": "+(ratio*100)+"% of the k-mers looked up, same best node for "+(same*100)+"% of the queries");
+            }
+        }
+        System.out.println("Minimizers report ("+queries+" queries): "+report.getAbsolutePath());
     }
     
-    
-    public boolean parallelProcessReads() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    /**
+     * scores a query as placeQuery() does, with the words provided by the
+     * knife of the workspace, but only keeps the best node
+     * @param ws
+     * @param fasta
+     * @param result filled with the best nodeId (-1 if no word matched)
+     * and the # words looked up
+     * @return the best score
+     */
+    private float scoreBestNode(ScoringWorkspace ws, Fasta fasta, int[] result) {
+        SequenceKnife sk=ws.knife;
+        sk.setSequence(fasta);
+        FrozenHash frozenHash=session.frozenHash;
+        int queryKmerCount=0;
+        long code=SequenceKnife.NO_MORE_CODES;
+        while ((code=sk.getNextCode())!=SequenceKnife.NO_MORE_CODES) {
+            queryKmerCount++;
+            if (code==SequenceKnife.INVALID_CODE) {
+                continue;
+            }
+            int row=frozenHash.getRow(code);
+            if (row>-1) {
+                ws.hit(frozenHash, row);
+            }
+        }
+        float extrapolation=1.0f;
+        if (queryKmerCount>0) {
+            extrapolation=((float)sk.getFullWordCount())/queryKmerCount;
+        }
+        int bestNodeId=-1;
+        float bestScore=Float.NEGATIVE_INFINITY;
+        for (int j = 0; j < ws.selectedNodes.size(); j++) {
+            float score=(ws.scores[j]+session.PPStarThresholdAsLog10*(queryKmerCount-ws.occurences[j]))*extrapolation;
+            if (score>bestScore) {
+                bestScore=score;
+                bestNodeId=ws.selectedNodes.getInt(j);
+            }
+        }
+        ws.reset();
+        result[0]=bestNodeId;
+        result[1]=queryKmerCount;
+        return bestScore;
     }
     
     /**
@@ -1163,11 +1764,26 @@ public class PlacementProcess {
      * @return 
      */
     public static float selectKthLargestValue(float[] arr, int k) {
-        if (arr == null || arr.length <= k) {
+        if (arr == null) {
+            throw new Error();
+        }
+        return selectKthLargestValue(arr, arr.length, k);
+    }
+    
+    /**
+     * same as selectKthLargestValue(float[],int), but considering only
+     * the 'length' first elements of the array
+     * @param arr
+     * @param length # elements considered, from index 0
+     * @param k th element to return
+     * @return 
+     */
+    public static float selectKthLargestValue(float[] arr, int length, int k) {
+        if (arr == null || length <= k || length > arr.length) {
             throw new Error();
         }
 
-        int from = 0, to = arr.length - 1;
+        int from = 0, to = length - 1;
 
         // if from == to we reached the kth element
         while (from < to) {
@@ -1228,6 +1844,54 @@ public class PlacementProcess {
         
     }
     
+    /**
+     * a query and the result of its placement, filled by the placement
+     * threads and consumed in input order when blocks are merged
+     */
+    private static class QueryPlacement {
+        Fasta fasta=null;
+        String header=null;
+        //id of the sequence in the register of identical queries
+        int registerId=-1;
+        //if true, identical sequence encountered before
+        boolean duplicate=false;
+        //false if no query kmer found in the DB
+        boolean placed=false;
+        //"p" array of the jplace, null if score below nsBound
+        JSONArray p=null;
+        String tsvLine=null;
+        //"p" array and "nm" identifiers of the jplace object,
+        //null once written
+        String pJSON=null;
+        ArrayList<String> names=null;
+        //merge order, the object is written JPLACE_GROUPING_WINDOW
+        //queries later
+        int mergeIndex=-1;
+        //# words looked up in the DB / # words of the query
+        int scannedWords=0;
+        int queryWords=0;
+        //words in the batch of the workspace, if resolved by block
+        int codeStart=-1;
+        int codeEnd=-1;
+        int fullWordCount=0;
+        //not scored, see rejectQuery()
+        boolean rejected=false;
+
+        QueryPlacement(Fasta fasta) {
+            this.fasta=fasta;
+            this.header=fasta.getHeader();
+        }
+        
+        String getSubHeader() {
+            int cutIndex=header.indexOf(" ");
+            if (cutIndex<0) { //basically, space not found
+                cutIndex=header.length();
+            }
+            return header.substring(0,cutIndex);
+        }
+    }
+    
+    
     private class ScoreComparator implements Comparator<Score> {
 
 //        float[] nodeScores=null;
@@ -0,0 +1,83 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package core.algos;
+
+/**
+ * Array kernels of the scoring of a query, applied to the counters of the
+ * selected nodes, which are contiguous (see ScoringWorkspace).\n
+ * The loops have no indirection and no branch, so that the JIT compiles
+ * them to SIMD instructions (superword auto-vectorization of C2). The tree
+ * targets Java 1.8, jdk.incubator.vector can then not be used: these
+ * loops are the scalar form of such a kernel.\n
+ * The kernel used to select the best scores is chosen at runtime from the
+ * number of selected nodes: under DENSE_MIN_NODES, scores are offered one
+ * by one to the heap of fillBestScoreList(); above it, each block of
+ * BLOCK scores is first compared as a whole to the worst score of the
+ * heap, and skipped if none of its scores can enter the heap.\n
+ * See benchmark/core/algos/ScoreKernelBenchmark (not shipped in the jar)
+ * for the comparison with the previous loops.
+ * @author ben
+ */
+public class ScoreKernel {
+
+    //# scores of a block compared to the heap as a whole
+    public static final int BLOCK=64;
+    //# selected nodes from which the scores are scanned by blocks
+    public static final int DENSE_MIN_NODES=512;
+
+    /**
+     * correction of the scores by the unmatched words
+     * @param scores index=position in selectedNodes
+     * @param occurences index=position in selectedNodes
+     * @param n # selected nodes
+     * @param threshold score of an unmatched word
+     * @param wordCount # words looked up
+     * @param extrapolation factor applied to the corrected scores
+     */
+    public static void correct(float[] scores, int[] occurences, int n, float threshold, int wordCount, float extrapolation) {
+        for (int i = 0; i < n; i++) {
+            scores[i]+=(threshold*(wordCount-occurences[i]));
+        }
+        if (extrapolation!=1.0f) {
+            for (int i = 0; i < n; i++) {
+                scores[i]*=extrapolation;
+            }
+        }
+    }
+
+    /**
+     * scores of the integer scoring
+     * @param scores index=position in selectedNodes, filled
+     * @param gains index=position in selectedNodes
+     * @param n # selected nodes
+     * @param unmatchedScore score of the query if no word was matched
+     * @param unit value of a fixed-point unit
+     * @param extrapolation factor applied to the scores
+     */
+    public static void convert(float[] scores, int[] gains, int n, float unmatchedScore, float unit, float extrapolation) {
+        for (int i = 0; i < n; i++) {
+            scores[i]=(unmatchedScore+gains[i]*unit)*extrapolation;
+        }
+    }
+
+    /**
+     * true if a score of the range is above a value, the comparisons are
+     * combined without branch
+     * @param scores
+     * @param from
+     * @param to excluded
+     * @param value
+     * @return
+     */
+    public static boolean exceeds(float[] scores, int from, int to, float value) {
+        boolean above=false;
+        for (int i = from; i < to; i++) {
+            above|=(scores[i]>value);
+        }
+        return above;
+    }
+
+}
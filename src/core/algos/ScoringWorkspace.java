@@ -0,0 +1,549 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package core.algos;
+
+import core.States;
+import core.algos.PlacementProcess.Score;
+import core.hash.CharTable;
+import core.hash.FloatTable;
+import core.hash.FrozenHash;
+import core.hash.IntTable;
+import it.unimi.dsi.fastutil.chars.Char2FloatMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Vectors used to align and score the nodes during the placement of a query.
+ * One workspace is owned by each placement thread and reused from query to
+ * query, so that the scoring loop does not allocate memory once the first
+ * queries were placed.
+ * The counters of a query are stored in the order in which the nodes were
+ * encountered (i.e. their position in selectedNodes), so that the memory
+ * used by a workspace follows the number of nodes hit by the queries and
+ * not the size of the tree. The position of a node is found through a
+ * small open addressing table (sparse) or, when a query hits many nodes or
+ * when the tree is small, through an array indexed by nodeId (dense).
+ * Neither index is reset between queries, their entries are invalidated by
+ * incrementing a generation stamp: an entry is valid only if its stamp is
+ * equal to the current generation.
+ * @author ben
+ */
+public class ScoringWorkspace {
+
+    //list of nodes encountered during matches search in the hash
+    //expanded only at 1st encounter with the node, reset at each read
+    IntArrayList selectedNodes=new IntArrayList(10);
+    //index=position of the node in selectedNodes
+    int[] occurences=null; // tab[#times_encoutered]
+    float[] scores=null; // tab[score]
+    int generation=1;
+    //integer scoring, replaces scores and occurences during the scan
+    //sum of the fixed-point PP*, see FrozenHash.prepareFixedPoint()
+    int[] gains=null; // tab[gain]
+    boolean fixedPoint=false; //integer scoring available
+    boolean fixedPointQuery=false; //integer scoring used for the current query
+    float fixedPointUnit=0.0f; // 1/scale
+    int maxFixedPointWords=0; //above it, sums could overflow
+    
+    //sparse index, linear probing, a slot is empty if its stamp is not
+    //the current generation
+    int[] tableNodes=null;
+    int[] tablePositions=null;
+    int[] tableGenerations=null;
+    int tableMask=0;
+    int tableShift=0; //fibonacci hashing, the high bits give the slot
+    //dense index, index=nodeId, allocated at the 1st query which needs it
+    int[] nodePositions=null; // tab[position in selectedNodes]
+    int[] nodeGeneration=null; // tab[generation of last encounter]
+    int nodeCount=0;
+    boolean dense=false; //dense index used for the current query
+    boolean alwaysDense=false; //small tree, the sparse index is not used
+    int denseThreshold=0; // # selected nodes from which the query is dense
+    //below this # nodes, the dense index costs less than 32ko and is used
+    //for all queries (nodeIds are chars, trees have at most 65536 nodes)
+    public static final int SPARSE_MIN_NODES=4096;
+    //a query becomes dense when it hits this fraction of the nodes
+    public static final int DENSE_FRACTION=16;
+    private static final int INITIAL_CAPACITY=256;
+    
+    //bounded min-heap of the best scores, positions in selectedNodes
+    float[] heapScores=null;
+    int[] heapPositions=null;
+    //preallocated score slots, in ascending order after selection
+    Score[] bestScoreList=null;
+
+    //early termination, the 2 nodes with the highest gain, i.e. score
+    //minus the score obtained if all their words were unmatched
+    //gains only increase during the scan, unencountered nodes have a gain 0
+    boolean trackLeaders=false;
+    float threshold=0.0f;
+    int leader=-1;
+    float leaderGain=0.0f;
+    int runnerUp=-1;
+    float runnerUpGain=0.0f;
+
+    //query k-mers
+    SequenceKnife knife=null;
+    byte[] word=null;
+    byte[] compressedWord=null;
+    //codes of the query k-mers and their posting ranges, when they are
+    //resolved in a batch (see FrozenHash.getPostingRanges())
+    long[] codes=new long[256];
+    int codeCount=0;
+    int[] rangeStarts=new int[256];
+    int[] rangeEnds=new int[256];
+    long[] rangeOrder=new long[256];
+    //true when the codes belong to a block of queries, they are then kept
+    //until clearCodes() is called
+    boolean keepCodes=false;
+
+    /**
+     *
+     * @param nodeCount # nodes of the tree in which nodeIds are defined
+     * @param keepAtMost # best nodes reported per query
+     * @param k
+     * @param minK
+     * @param s
+     * @param queryWordSampling one of SequenceKnife.SAMPLING_*
+     */
+    public ScoringWorkspace(int nodeCount, int keepAtMost, int k, int minK, States s, int queryWordSampling) {
+        this.nodeCount=nodeCount;
+        occurences=new int[INITIAL_CAPACITY];
+        scores=new float[INITIAL_CAPACITY];
+        tableNodes=new int[2*INITIAL_CAPACITY];
+        tablePositions=new int[2*INITIAL_CAPACITY];
+        tableGenerations=new int[2*INITIAL_CAPACITY];
+        tableMask=2*INITIAL_CAPACITY-1;
+        tableShift=Integer.numberOfLeadingZeros(tableMask);
+        alwaysDense=(nodeCount<SPARSE_MIN_NODES);
+        if (alwaysDense) {
+            nodePositions=new int[nodeCount];
+            nodeGeneration=new int[nodeCount];
+            dense=true;
+        }
+        denseThreshold=Math.max(INITIAL_CAPACITY, nodeCount/DENSE_FRACTION);
+        heapScores=new float[keepAtMost];
+        heapPositions=new int[keepAtMost];
+        bestScoreList=new Score[keepAtMost];
+        for (int i = 0; i < bestScoreList.length; i++) {
+            bestScoreList[i]=new Score(-1, Float.NEGATIVE_INFINITY);
+        }
+        knife=new SequenceKnife(k, minK, s, queryWordSampling);
+        word=new byte[k];
+        //DNA compression, 4 bases per byte
+        compressedWord=new byte[(k+3)/4];
+    }
+    
+    /**
+     * position of a node in selectedNodes, the node is selected at its
+     * 1st encounter
+     * @param nodeId
+     * @return 
+     */
+    private int position(int nodeId) {
+        if (dense) {
+            if (nodeGeneration[nodeId]==generation) {
+                return nodePositions[nodeId];
+            }
+            nodeGeneration[nodeId]=generation;
+            int p=select(nodeId);
+            nodePositions[nodeId]=p;
+            return p;
+        }
+        int slot=(nodeId*0x9E3779B9)>>>tableShift;
+        while (tableGenerations[slot]==generation) {
+            if (tableNodes[slot]==nodeId) {
+                return tablePositions[slot];
+            }
+            slot=(slot+1)&tableMask;
+        }
+        int p=select(nodeId);
+        tableGenerations[slot]=generation;
+        tableNodes[slot]=nodeId;
+        tablePositions[slot]=p;
+        if (selectedNodes.size()>=denseThreshold) {
+            toDense();
+        } else if (2*selectedNodes.size()>tableMask) {
+            growTable();
+        }
+        return p;
+    }
+    
+    /**
+     * appends a node to selectedNodes, with empty counters
+     * @param nodeId
+     * @return its position
+     */
+    private int select(int nodeId) {
+        int p=selectedNodes.size();
+        selectedNodes.add(nodeId);
+        if (p==scores.length) {
+            int capacity=2*scores.length;
+            occurences=Arrays.copyOf(occurences, capacity);
+            scores=Arrays.copyOf(scores, capacity);
+            if (gains!=null) {
+                gains=Arrays.copyOf(gains, capacity);
+            }
+        }
+        occurences[p]=0;
+        scores[p]=0.0f;
+        if (gains!=null) {
+            gains[p]=0;
+        }
+        return p;
+    }
+    
+    /**
+     * doubles the sparse index, the selected nodes are inserted again
+     */
+    private void growTable() {
+        int capacity=2*(tableMask+1);
+        tableNodes=new int[capacity];
+        tablePositions=new int[capacity];
+        tableGenerations=new int[capacity];
+        tableMask=capacity-1;
+        tableShift=Integer.numberOfLeadingZeros(tableMask);
+        for (int p = 0; p < selectedNodes.size(); p++) {
+            int nodeId=selectedNodes.getInt(p);
+            int slot=(nodeId*0x9E3779B9)>>>tableShift;
+            while (tableGenerations[slot]==generation) {
+                slot=(slot+1)&tableMask;
+            }
+            tableGenerations[slot]=generation;
+            tableNodes[slot]=nodeId;
+            tablePositions[slot]=p;
+        }
+    }
+    
+    /**
+     * the query hits too many nodes for the sparse index, the selected
+     * nodes are moved to the dense index, used until the end of the query
+     */
+    private void toDense() {
+        if (nodePositions==null) {
+            nodePositions=new int[nodeCount];
+            nodeGeneration=new int[nodeCount];
+        }
+        for (int p = 0; p < selectedNodes.size(); p++) {
+            int nodeId=selectedNodes.getInt(p);
+            nodeGeneration[nodeId]=generation;
+            nodePositions[nodeId]=p;
+        }
+        dense=true;
+    }
+
+    /**
+     * register a (nodeId,PP*) pair matched by a query k-mer
+     * @param nodeId
+     * @param PPStar
+     */
+    public void hit(int nodeId, float PPStar) {
+        //we will score only encountered nodes, node registered
+        //at 1st encouter
+        int p=position(nodeId);
+        //count # times node encountered
+        occurences[p]+=1;
+        //score associated to node x for current read
+        scores[p]+=PPStar;
+        if (trackLeaders) {
+            updateLeaders(nodeId, scores[p]-threshold*occurences[p]);
+        }
+    }
+    
+    /**
+     * correction of the scores by the unmatched words, for all selected
+     * nodes, see ScoreKernel.correct()
+     * @param threshold score of an unmatched word
+     * @param wordCount # words looked up
+     * @param extrapolation factor applied to the corrected scores
+     */
+    public void correctScores(float threshold, int wordCount, float extrapolation) {
+        ScoreKernel.correct(scores, occurences, selectedNodes.size(), threshold, wordCount, extrapolation);
+    }
+    
+    /**
+     * scores of the integer scoring, converted for all selected nodes,
+     * see ScoreKernel.convert()
+     * @param unmatchedScore score of the query if no word was matched
+     * @param extrapolation factor applied to the scores
+     */
+    public void convertGains(float unmatchedScore, float extrapolation) {
+        ScoreKernel.convert(scores, gains, selectedNodes.size(), unmatchedScore, fixedPointUnit, extrapolation);
+    }
+    
+    /**
+     * register a (nodeId,PP*) pair matched by a query k-mer, in the
+     * integer scoring
+     * @param nodeId
+     * @param gain fixed-point PP*
+     */
+    public void hitGain(int nodeId, int gain) {
+        int p=position(nodeId);
+        gains[p]+=gain;
+        if (trackLeaders) {
+            updateLeaders(nodeId, gains[p]*fixedPointUnit);
+        }
+    }
+    
+    /**
+     * activates the integer scoring, which will be used by the queries
+     * for which useFixedPoint() returns true
+     * @param frozenHash with fixed-point PP* prepared
+     */
+    public void enableFixedPoint(FrozenHash frozenHash) {
+        if (gains==null) {
+            gains=new int[scores.length];
+        }
+        fixedPoint=true;
+        fixedPointUnit=1.0f/frozenHash.getFixedPointScale();
+        maxFixedPointWords=Integer.MAX_VALUE/Math.max(1, frozenHash.getMaxGain());
+    }
+    
+    /**
+     * chooses the scoring of the next query, the integer scoring is not
+     * used when sums could overflow
+     * @param wordCount # words of the query
+     * @return true if the integer scoring is used
+     */
+    public boolean useFixedPoint(int wordCount) {
+        fixedPointQuery=fixedPoint && wordCount<=maxFixedPointWords;
+        return fixedPointQuery;
+    }
+    
+    /**
+     * keep track of the 2 best gains, as gains only increase, it is enough
+     * to compare the node that was just hit to the current leaders
+     * @param nodeId 
+     * @param gain
+     */
+    private void updateLeaders(int nodeId, float gain) {
+        if (nodeId==leader) {
+            leaderGain=gain;
+        } else if (gain>leaderGain) {
+            runnerUp=leader;
+            runnerUpGain=leaderGain;
+            leader=nodeId;
+            leaderGain=gain;
+        } else if (nodeId==runnerUp || gain>runnerUpGain) {
+            runnerUp=nodeId;
+            runnerUpGain=gain;
+        }
+    }
+    
+    /**
+     * activates the tracking of the leading nodes, used by the early
+     * termination of the scan
+     * @param PPStarThresholdAsLog10 score of an unmatched word
+     */
+    public void trackLeaders(float PPStarThresholdAsLog10) {
+        this.trackLeaders=true;
+        this.threshold=PPStarThresholdAsLog10;
+    }
+    
+    /**
+     * lead of the best node over all other nodes, only valid if
+     * trackLeaders() was called
+     * @return 
+     */
+    public float getLead() {
+        return leaderGain-runnerUpGain;
+    }
+
+    /**
+     * register all (nodeId,PP*) pairs associated to a query k-mer
+     * @param allPairs 
+     */
+    public void hit(Char2FloatMap.FastEntrySet allPairs) {
+        //fastIterator() reuses the same entry object, nothing allocated
+        ObjectIterator<Char2FloatMap.Entry> it=allPairs.fastIterator();
+        while (it.hasNext()) {
+            Char2FloatMap.Entry entry=it.next();
+            hit(entry.getCharKey(), entry.getFloatValue());
+        }
+    }
+    
+    /**
+     * register all (nodeId,PP*) pairs of a row of the frozen hash
+     * @param frozenHash
+     * @param row 
+     */
+    public void hit(FrozenHash frozenHash, int row) {
+        IntTable offsets=frozenHash.getOffsets();
+        hit(frozenHash, offsets.get(row), offsets.get(row+1));
+    }
+    
+    /**
+     * register all (nodeId,PP*) pairs of a posting range of the frozen hash
+     * @param frozenHash
+     * @param start
+     * @param end excluded
+     */
+    public void hit(FrozenHash frozenHash, int start, int end) {
+        if (frozenHash.isCompressed()) {
+            hitCompressed(frozenHash, start, end);
+            return;
+        }
+        CharTable nodeIds=frozenHash.getNodeIds();
+        if (fixedPointQuery) {
+            //a single int add per pair
+            IntBuffer gains=frozenHash.getGains();
+            for (int i = start; i < end; i++) {
+                hitGain(nodeIds.get(i), gains.get(i));
+            }
+            return;
+        }
+        FloatTable PPStars=frozenHash.getPPStars();
+        for (int i = start; i < end; i++) {
+            hit(nodeIds.get(i), PPStars.get(i));
+        }
+    }
+    
+    /**
+     * decodes the pairs of a posting range of a compressed hash while
+     * registering them, nodeIds are varint deltas followed by the
+     * quantized PP*
+     * @param frozenHash
+     * @param start byte offset
+     * @param end byte offset, excluded
+     */
+    private void hitCompressed(FrozenHash frozenHash, int start, int end) {
+        ByteBuffer postings=frozenHash.getPostings();
+        float min=frozenHash.getQuantizationMin();
+        float step=frozenHash.getQuantizationStep();
+        boolean onByte=(frozenHash.getQuantizationBits()==8);
+        int[] quantizedGains=fixedPointQuery?frozenHash.getQuantizedGains():null;
+        int pos=start;
+        int nodeId=0;
+        while (pos<end) {
+            int b=postings.get(pos++);
+            int delta=b & 0x7F;
+            int shift=7;
+            while (b<0) {
+                b=postings.get(pos++);
+                delta|=(b & 0x7F)<<shift;
+                shift+=7;
+            }
+            nodeId+=delta;
+            int q;
+            if (onByte) {
+                q=postings.get(pos++) & 0xFF;
+            } else {
+                q=postings.getChar(pos);
+                pos+=2;
+            }
+            if (quantizedGains!=null) {
+                hitGain(nodeId, quantizedGains[q]);
+            } else {
+                hit(nodeId, min+q*step);
+            }
+        }
+    }
+    
+    /**
+     * appends the code of a query k-mer to the batch resolved by
+     * resolveCodes()
+     * @param code 
+     */
+    public void addCode(long code) {
+        if (codeCount==codes.length) {
+            int capacity=2*codes.length;
+            codes=Arrays.copyOf(codes, capacity);
+            rangeStarts=new int[capacity];
+            rangeEnds=new int[capacity];
+            rangeOrder=new long[capacity];
+        }
+        codes[codeCount++]=code;
+    }
+    
+    /**
+     * resolves the codes added since the last reset in a single batch,
+     * then registers their pairs in the order of the codes, so that the
+     * scores are the same than with a resolution word per word
+     * @param frozenHash
+     * @return # codes present in the hash
+     */
+    public int hitCodes(FrozenHash frozenHash) {
+        resolveCodes(frozenHash);
+        return hitRanges(frozenHash, 0, codeCount);
+    }
+    
+    /**
+     * resolves in a single batch the posting ranges of the codes added
+     * since the last call to clearCodes(), identical codes are looked up
+     * only once
+     * @param frozenHash 
+     */
+    public void resolveCodes(FrozenHash frozenHash) {
+        frozenHash.getPostingRanges(codes, codeCount, rangeStarts, rangeEnds, rangeOrder);
+    }
+    
+    /**
+     * registers the pairs of already resolved codes, in the order of the
+     * codes
+     * @param frozenHash
+     * @param from index of the 1st code
+     * @param to index of the last code, excluded
+     * @return # codes present in the hash
+     */
+    public int hitRanges(FrozenHash frozenHash, int from, int to) {
+        int found=0;
+        for (int i = from; i < to; i++) {
+            if (rangeEnds[i]>rangeStarts[i]) {
+                hit(frozenHash, rangeStarts[i], rangeEnds[i]);
+                found++;
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * # codes added since the last call to clearCodes()
+     * @return 
+     */
+    public int getCodeCount() {
+        return codeCount;
+    }
+    
+    /**
+     * forgets the codes, done by reset() when codes belong to a single
+     * query
+     */
+    public void clearCodes() {
+        codeCount=0;
+    }
+    
+    /**
+     * to call after each query, invalidates all counters
+     */
+    public void reset() {
+        selectedNodes.clear();
+        dense=alwaysDense;
+        if (!keepCodes) {
+            codeCount=0;
+        }
+        leader=-1;
+        leaderGain=0.0f;
+        runnerUp=-1;
+        runnerUpGain=0.0f;
+        generation++;
+        //very unlikely, but stamps must stay unique
+        if (generation==Integer.MAX_VALUE) {
+            Arrays.fill(tableGenerations, 0);
+            if (nodeGeneration!=null) {
+                Arrays.fill(nodeGeneration, 0);
+            }
+            generation=1;
+        }
+        for (int i = 0; i < bestScoreList.length; i++) {
+            bestScoreList[i].nodeId=-1;
+            bestScoreList[i].score=Float.NEGATIVE_INFINITY;
+        }
+    }
+
+}
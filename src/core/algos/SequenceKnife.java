@@ -40,6 +40,24 @@ public class SequenceKnife {
      * ie, [0,k],[k+1,2k],[2k+1,3k],...
      */
     final public static int SAMPLING_NON_OVERLAPPING=4;
+    /**
+     * ie, (w,k)-minimizers: in each window of w consecutive mers, the mer
+     * of lowest hash is returned, each selected mer once, in sequence order.
+     * About 2/(w+1) of the mers are returned, always the same for a given
+     * sequence. Requires packed codes, otherwise mers are returned in
+     * linear order.
+     */
+    final public static int SAMPLING_MINIMIZER=5;
+    
+    /**
+     * returned by getNextCode() when all mers were returned
+     */
+    final public static long NO_MORE_CODES=-1L;
+    /**
+     * returned by getNextCode() when the mer cannot be packed
+     * (ambiguous state or mer shorter than k), it cannot match the DB
+     */
+    final public static long INVALID_CODE=-2L;
     
     private Long seed=null;
     
@@ -48,8 +66,23 @@ public class SequenceKnife {
     private int iterator=0; //last returned mer, as index of the merOrder table
     private byte[] sequence=null; //the inital sequence itself
     private int[] merOrder=null; //to define the order in which the mer are returned
+    private int sequenceLength=0; //tables can be larger when the knife is reused
+    private int merCount=0;
+    private int wordCount=0; //mers not shorter than minK, see getWordCount()
     private States s=null;
     private int step=-1;
+    private int samplingMode=SAMPLING_LINEAR;
+    private int minimizerWindow=10; //w, for SAMPLING_MINIMIZER
+    private long[] merHashes=null; //hash of the mer starting at each position
+    private int[] windowQueue=null; //positions of the candidate minimizers
+    
+    //rolling mer codes, see getNextCode()
+    private int bitsPerState=-1;
+    private long codeMask=0L;
+    private int packableStates=-1; //states >= to this value cannot be packed
+    private long code=0L; //code of the mer starting at codePosition
+    private int codePosition=-2;
+    private int lastUnpackable=-1; //position of last unpackable state in current mer
     
     /**
      * Basic constructor, will return mers in linear order
@@ -130,8 +163,51 @@ public class SequenceKnife {
 
     }
     
+    /**
+     * constructor for a reusable knife, no sequence is associated before
+     * a call to setSequence()
+     * @param k
+     * @param minK
+     * @param s
+     * @param samplingMode 
+     */
+    public SequenceKnife(int k, int minK, States s, int samplingMode) {
+        this.k=k;
+        this.minK=minK;
+        this.s=s;
+        this.samplingMode=samplingMode;
+        this.sequence=new byte[0];
+        this.merOrder=new int[0];
+        this.bitsPerState=s.getBitsPerState();
+        this.packableStates=s.getNonAmbiguousStatesCount();
+        if (supportsPackedCodes()) {
+            this.codeMask=(1L<<(bitsPerState*k))-1L;
+        }
+    }
+    
+    /**
+     * associates a new sequence to this knife, tables are reused
+     * and only expanded when the sequence is longer than the previous ones
+     * @param f 
+     */
+    public void setSequence(Fasta f) {
+        iterator=0;
+        codePosition=-2;
+        try {
+            initTables(f.getSequence(false), samplingMode);
+        } catch (NonSupportedStateException ex) {
+            ex.printStackTrace(System.err);
+            System.out.println("Query sequence contains not yet supported states. ("+f.getHeader()+")");
+            System.exit(1);
+        }
+    }
+    
     private void initTables(String seq, int samplingMode) throws NonSupportedStateException {
-        sequence=new byte[seq.length()];
+        this.samplingMode=samplingMode;
+        sequenceLength=seq.length();
+        if (sequence==null || sequence.length<sequenceLength) {
+            sequence=new byte[sequenceLength];
+        }
         for (int i = 0; i < seq.length(); i++) {
             
             //test all characters of query
@@ -153,14 +229,15 @@ public class SequenceKnife {
         //Infos.println("Binary seq: "+Arrays.toString(sequence));
         switch (samplingMode) {
             case SAMPLING_LINEAR:
-                merOrder=new int[seq.length()];
-                for (int i = 0; i < merOrder.length; i++) {
+                allocateMerOrder(seq.length());
+                for (int i = 0; i < merCount; i++) {
                     merOrder[i]=i;
                 }
                 this.step=1;
                 break;
             case SAMPLING_NON_OVERLAPPING:
-                merOrder=new int[(seq.length()/k)+1];
+                allocateMerOrder((seq.length()/k)+1);
+                Arrays.fill(merOrder, 0, merCount, 0);
                 for (int i = 0; i < seq.length(); i++) {
                     if (i%k==0) {
                         merOrder[i/k]=i;
@@ -169,19 +246,59 @@ public class SequenceKnife {
                 this.step=k;
                 break;
             case SAMPLING_STOCHASTIC:
-                merOrder=new int[seq.length()];
+                allocateMerOrder(seq.length());
                 shuffledMerOrder();
                 this.step=1;
                 break;
             case SAMPLING_SEQUENTIAL:
-                merOrder=new int[seq.length()];
+                allocateMerOrder(seq.length());
                 sequencialMerOrder();
                 this.step=1;
                 break;
+            case SAMPLING_MINIMIZER:
+                allocateMerOrder(seq.length());
+                if (supportsPackedCodes() && minimizerWindow>1) {
+                    minimizerMerOrder();
+                } else {
+                    for (int i = 0; i < merCount; i++) {
+                        merOrder[i]=i;
+                    }
+                }
+                this.step=1;
+                break;
             default:
                 Infos.println("Sampling mode not_recognized !");
                 break;
         }
+        countWords();
+    }
+    
+    /**
+     * number of mers not shorter than minK, from the tables just filled:
+     * all positions when merOrder is a permutation of the positions,
+     * all mers for the minimizers (never shorter than k)
+     */
+    private void countWords() {
+        if (samplingMode==SAMPLING_LINEAR || samplingMode==SAMPLING_STOCHASTIC || samplingMode==SAMPLING_SEQUENTIAL
+                || (samplingMode==SAMPLING_MINIMIZER && !(supportsPackedCodes() && minimizerWindow>1))) {
+            wordCount=getFullWordCount();
+        } else if (samplingMode==SAMPLING_MINIMIZER) {
+            wordCount=merCount;
+        } else {
+            wordCount=0;
+            for (int i = 0; i < merCount; i++) {
+                if (sequenceLength-merOrder[i]>=minK) {
+                    wordCount++;
+                }
+            }
+        }
+    }
+    
+    private void allocateMerOrder(int size) {
+        if (merOrder==null || merOrder.length<size) {
+            merOrder=new int[size];
+        }
+        merCount=size;
     }
     
     /**
@@ -192,7 +309,7 @@ public class SequenceKnife {
     @Deprecated
     public QueryWord getWordAt(int queryPosition) {
         assert queryPosition>-1;
-        assert queryPosition<(sequence.length-k+1);
+        assert queryPosition<(sequenceLength-k+1);
         //this needs optimization !!! to avoid the copy
         return new QueryWord(Arrays.copyOfRange(sequence, queryPosition, queryPosition+k),queryPosition);
     }
@@ -204,7 +321,10 @@ public class SequenceKnife {
      * @return 
      */
     public int[] getMerOrder() {
-       return merOrder; 
+        if (merOrder.length!=merCount) {
+            return Arrays.copyOf(merOrder, merCount);
+        }
+        return merOrder; 
     }
     
     /**
@@ -212,7 +332,25 @@ public class SequenceKnife {
      * @return 
      */
     public int getMerCount() {
-        return merOrder.length;
+        return merCount;
+    }
+    
+    /**
+     * number of words that will actually be returned by getNextCode() or
+     * getNextByteWord(), i.e. mers which are not shorter than minK
+     * @return 
+     */
+    public int getWordCount() {
+        return wordCount;
+    }
+    
+    /**
+     * number of words returned in linear order, i.e. when all the mers
+     * not shorter than minK are returned
+     * @return 
+     */
+    public int getFullWordCount() {
+        return Math.max(0, sequenceLength-minK+1);
     }
     
     /**
@@ -220,7 +358,7 @@ public class SequenceKnife {
      * @return 
      */
     public int getMaxMerCount() {
-        return (this.sequence.length-this.k+1)/this.step;
+        return (this.sequenceLength-this.k+1)/this.step;
     }
     
     
@@ -230,11 +368,11 @@ public class SequenceKnife {
      * @return the next mer as a @Word, null is no more mers to return
      */
     public QueryWord getNextWord() {
-        if (iterator>merOrder.length-1) {
+        if (iterator>merCount-1) {
             return null;
         }
         int currentPosition=merOrder[iterator];
-        int charactersLeft=sequence.length-currentPosition;
+        int charactersLeft=sequenceLength-currentPosition;
         if (charactersLeft>=minK) {
             byte[] word=null;
             if (charactersLeft<k) {
@@ -259,11 +397,11 @@ public class SequenceKnife {
      * @return the next mer as a @Word, null is no more mers to return
      */
     public byte[] getNextByteWord() {
-        if (iterator>merOrder.length-1) {
+        if (iterator>merCount-1) {
             return null;
         }
         int currentPosition=merOrder[iterator];
-        int charactersLeft=sequence.length-currentPosition;
+        int charactersLeft=sequenceLength-currentPosition;
         if (charactersLeft>=minK) {
             byte[] word=null;
             if (charactersLeft<k) {
@@ -284,6 +422,124 @@ public class SequenceKnife {
     }
     
     
+    /**
+     * must be called to retrieve mers one by one, without allocation:
+     * the mer is copied in the given buffer, which must be of length k
+     * @param word buffer filled with the next mer
+     * @return the length of the mer copied in the buffer (can be &lt; k
+     * if minK&lt;k), -1 if no more mers to return
+     */
+    public int getNextByteWord(byte[] word) {
+        while (iterator<merCount) {
+            int currentPosition=merOrder[iterator];
+            int charactersLeft=sequenceLength-currentPosition;
+            iterator++;
+            //skip words that are too short
+            if (charactersLeft>=minK) {
+                int length=Math.min(charactersLeft, k);
+                System.arraycopy(sequence, currentPosition, word, 0, length);
+                return length;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * true if the mers of this knife can be packed in a long by getNextCode(),
+     * i.e. knife built with the reusable constructor and k*bitsPerState&lt;64
+     * @return 
+     */
+    public boolean supportsPackedCodes() {
+        return bitsPerState>0 && bitsPerState*k<64;
+    }
+    
+    /**
+     * must be called to retrieve mers one by one, as packed codes
+     * (bitsPerState bits per state, 1st state in the highest bits).\n
+     * When mers are retrieved in linear order, the code is rolled from
+     * the previous one, in O(1) per mer.
+     * @return the code of the next mer, INVALID_CODE if this mer contains
+     * an ambiguous state or is shorter than k, NO_MORE_CODES if no more mers
+     * to return
+     */
+    public long getNextCode() {
+        while (iterator<merCount) {
+            int currentPosition=merOrder[iterator];
+            int charactersLeft=sequenceLength-currentPosition;
+            iterator++;
+            //skip words that are too short
+            if (charactersLeft<minK) {
+                continue;
+            }
+            //shorter mers (minK<k) are never in the DB
+            if (charactersLeft<k) {
+                return INVALID_CODE;
+            }
+            if (currentPosition==codePosition+1) {
+                //roll, only the last state of the mer is new
+                code=pushState(code, currentPosition+k-1);
+            } else {
+                //build the code from scratch
+                code=0L;
+                lastUnpackable=-1;
+                for (int i = currentPosition; i < currentPosition+k; i++) {
+                    code=pushState(code, i);
+                }
+            }
+            codePosition=currentPosition;
+            if (lastUnpackable>=currentPosition) {
+                return INVALID_CODE;
+            }
+            return code;
+        }
+        return NO_MORE_CODES;
+    }
+    
+    /**
+     * code of the mer starting at a given position, built from scratch,
+     * the iteration of getNextCode() is not modified
+     * @param position
+     * @return INVALID_CODE if this mer contains an ambiguous state or is
+     * shorter than k
+     */
+    public long getCodeAt(int position) {
+        if (position<0 || position+k>sequenceLength) {
+            return INVALID_CODE;
+        }
+        long c=0L;
+        for (int i = position; i < position+k; i++) {
+            int state=sequence[i];
+            if (state>=packableStates) {
+                return INVALID_CODE;
+            }
+            c=((c << bitsPerState) | state) & codeMask;
+        }
+        return c;
+    }
+    
+    /**
+     * length of the current sequence
+     * @return 
+     */
+    public int getSequenceLength() {
+        return sequenceLength;
+    }
+    
+    /**
+     * shift a state in the code, on the lowest bits
+     * @param code
+     * @param position position of the state in the sequence
+     * @return 
+     */
+    private long pushState(long code, int position) {
+        int state=sequence[position];
+        if (state>=packableStates) {
+            lastUnpackable=position;
+            state=0;
+        }
+        return ((code << bitsPerState) | state) & codeMask;
+    }
+    
     /**
      * must be called after instantiation if one is interested to retrieve \n
      * the same shuffled mer order
@@ -295,7 +551,7 @@ public class SequenceKnife {
     }
     
     private void shuffledMerOrder() {
-        for (int i = 0; i < merOrder.length; i++) {
+        for (int i = 0; i < merCount; i++) {
            merOrder[i]=i;
         }
         Random generator = null;
@@ -304,8 +560,8 @@ public class SequenceKnife {
         } else {
             generator=new Random(System.nanoTime());
         }
-        for (int i = 0; i < merOrder.length - 1; i++) {
-          int j = i + generator.nextInt(merOrder.length - i);
+        for (int i = 0; i < merCount - 1; i++) {
+          int j = i + generator.nextInt(merCount - i);
           int t = merOrder[j];
           merOrder[j] = merOrder[i];
           merOrder[i] = t;
@@ -313,14 +569,91 @@ public class SequenceKnife {
         
     }
     
+    /**
+     * window used by SAMPLING_MINIMIZER, to set before setSequence()
+     * @param w # consecutive mers in which 1 mer is selected
+     */
+    public void setMinimizerWindow(int w) {
+        this.minimizerWindow=w;
+    }
+    
+    public int getMinimizerWindow() {
+        return minimizerWindow;
+    }
+    
+    private void minimizerMerOrder() {
+        //only mers of length k can match the DB
+        int positions=sequenceLength-k+1;
+        if (positions<1) {
+            merCount=0;
+            return;
+        }
+        if (merHashes==null || merHashes.length<positions) {
+            merHashes=new long[positions];
+            windowQueue=new int[positions];
+        }
+        //hash of the rolled codes, mers with ambiguous states are never
+        //selected, unless a whole window is ambiguous
+        long c=0L;
+        lastUnpackable=-1;
+        for (int i = 0; i < k-1; i++) {
+            c=pushState(c, i);
+        }
+        for (int i = 0; i < positions; i++) {
+            c=pushState(c, i+k-1);
+            if (lastUnpackable>=i) {
+                merHashes[i]=Long.MAX_VALUE;
+            } else {
+                merHashes[i]=mix(c);
+            }
+        }
+        //sliding window minimum, queue of increasing hashes
+        //leftmost mer selected in case of equal hashes
+        int w=Math.min(minimizerWindow, positions);
+        int head=0;
+        int tail=0;
+        int count=0;
+        for (int i = 0; i < positions; i++) {
+            while (tail>head && merHashes[windowQueue[tail-1]]>merHashes[i]) {
+                tail--;
+            }
+            windowQueue[tail++]=i;
+            if (windowQueue[head]<=i-w) {
+                head++;
+            }
+            if (i>=w-1) {
+                int minimizer=windowQueue[head];
+                if (count==0 || merOrder[count-1]!=minimizer) {
+                    merOrder[count++]=minimizer;
+                }
+            }
+        }
+        merCount=count;
+    }
+    
+    /**
+     * 64 bits finalizer of MurmurHash3, so that minimizers are not biased
+     * toward the lowest codes (poly-A)
+     * @param code
+     * @return 
+     */
+    private static long mix(long code) {
+        code^=code>>>33;
+        code*=0xff51afd7ed558ccdL;
+        code^=code>>>33;
+        code*=0xc4ceb9fe1a85ec53L;
+        code^=code>>>33;
+        return code;
+    }
+    
     private void sequencialMerOrder() {
         //ie, [0,k],[k,2k],[2k,3k], ... ,[1,k+1],[k+1,2K+1], ... ,[2,k+2],[k+2,2k+2]
         int counter=0;
         int shift=0; //consumed on the left
-        for (int i = 0; i < merOrder.length ; i++) {
+        for (int i = 0; i < merCount ; i++) {
             if (shift==k) {break;}
-            for (int j = 0; j < (merOrder.length/k)+1; j++) { //+1 to get the last incomplete mer (length<k)
-                if ((shift+j*k)<merOrder.length) {
+            for (int j = 0; j < (merCount/k)+1; j++) { //+1 to get the last incomplete mer (length<k)
+                if ((shift+j*k)<merCount) {
                     merOrder[counter]=shift+j*k;
                     counter++;
                 }
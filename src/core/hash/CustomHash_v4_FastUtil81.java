@@ -142,6 +142,29 @@ public class CustomHash_v4_FastUtil81 implements Serializable{
             return null;
         }
     }
+    
+    /**
+     * builds a read-only copy of this hash, in which words are indexed
+     * by packed codes (see SequenceKnife.getNextCode())
+     * @param k
+     * @param s
+     * @return null if k is too large to pack the words in a long, or if
+     * there are too many (nodeId,PP*) pairs to index them with an int
+     */
+    public FrozenHash freeze(int k, States s) {
+        if (s.getBitsPerState()*k>=64) {
+            return null;
+        }
+        long pairCount=0;
+        for (Char2FloatOpenHashMap map:hash.values()) {
+            pairCount+=map.size();
+        }
+        if (pairCount>Integer.MAX_VALUE) {
+            return null;
+        }
+        return new FrozenHash(this, k, s);
+    }
+    
 //    public List<Pair> getPairsOfTopPosition2(byte[] w) {
 //        UnionPointer up=null;
 //        if ((up=hash.get(w))!=null) {
@@ -0,0 +1,694 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package core.hash;
+
+import core.States;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.chars.Char2FloatMap;
+import it.unimi.dsi.fastutil.chars.Char2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Read-only version of the hash, used during placement.\n
+ * Words are packed as long codes (see SequenceKnife.getNextCode()) and stored
+ * in an open addressing table, which points to a row of compressed sparse
+ * rows: the (nodeId,PP*) pairs of row r are stored in nodeIds[] and PPStars[],
+ * between offsets[r] (included) and offsets[r+1] (excluded).\n
+ * When all codes fit in DIRECT_ADDRESS_MAX_BITS bits (DNA with k&lt;=12),
+ * the code is directly the row: offsets[] has 2^(bits*k)+1 elements and
+ * no open addressing table is built.\n
+ * Compared to CustomHash_v4_FastUtil81, no object is allocated per word.\n
+ * Tables are accessed through nio buffers, backed by arrays when the hash
+ * is frozen in memory, or by the mapped file when loaded from a binary DB.
+ * The tables that can exceed 2Gb are split in several buffers (see
+ * IntTable, LongTable, CharTable, FloatTable).\n
+ * In the compressed layout (see compress()), nodeIds[] and PPStars[] are
+ * replaced by a single byte buffer, postings[]: the pairs of a row are
+ * sorted by nodeId, each pair is written as the varint of the difference
+ * with the previous nodeId, followed by PP* quantized on 8 or 16 bits.
+ * offsets[] are then byte offsets in postings[].\n
+ * Optionally, a blocked Bloom filter of the codes (see buildBloomFilter())
+ * is checked before the open addressing table: a word absent from the
+ * hash is then usually rejected by reading a single cache line, instead
+ * of probing the table, which may not be in memory when the DB is mapped.
+ * @author ben
+ */
+public class FrozenHash {
+
+    /**
+     * codes are always positive, this one marks empty slots
+     */
+    private static final long EMPTY_KEY=-1L;
+    
+    /**
+     * max size of the codes, in bits, for which the direct-address layout
+     * is used (int[2^24+1] offsets, i.e. 64MB)
+     */
+    public static final int DIRECT_ADDRESS_MAX_BITS=24;
+    
+    /**
+     * bits of the Bloom filter per word, about 1% of false positives
+     */
+    public static final int BLOOM_BITS_PER_WORD=10;
+    //blocks of 512 bits, i.e. 1 cache line, 7 bits set per code
+    private static final int BLOOM_BLOCK_LONGS=8;
+    private static final int BLOOM_HASHES=7;
+    //at most 2^24 blocks, i.e. 1Go
+    private static final int BLOOM_MAX_BLOCKS=1<<24;
+
+    int k=-1;
+    int bitsPerState=-1;
+    boolean directAddress=false;
+    int wordCount=0;
+
+    //open addressing table, linear probing
+    LongTable keys=null;
+    IntTable rows=null;
+    int mask=-1;
+
+    //compressed sparse rows, 1 row per word
+    IntTable offsets=null;
+    CharTable nodeIds=null;
+    FloatTable PPStars=null;
+    
+    //compressed layout, PP*=quantizationMin+q*quantizationStep
+    int quantizationBits=0; //0 if not compressed
+    float quantizationMin=0.0f;
+    float quantizationStep=0.0f;
+    int pairCount=0;
+    ByteBuffer postings=null;
+    
+    //fixed-point PP*, see prepareFixedPoint()
+    int fixedPointScale=0; //0 if not prepared
+    IntBuffer gains=null; //1 per pair, null if compressed
+    int[] quantizedGains=null; //1 per quantization level, if compressed
+    int maxGain=0;
+    
+    //blocked Bloom filter of the codes, null if not built
+    LongBuffer bloom=null;
+    int bloomBlockMask=-1;
+
+    /**
+     * freezes the content of a hash, the order of the pairs of each word
+     * is conserved; use CustomHash_v4_FastUtil81.freeze(), which returns
+     * null for hashes that cannot be frozen
+     * @param hash
+     * @param k
+     * @param s
+     */
+    public FrozenHash(CustomHash_v4_FastUtil81 hash, int k, States s) {
+        this.k=k;
+        this.bitsPerState=s.getBitsPerState();
+        this.wordCount=hash.getHash().size();
+        this.directAddress=(bitsPerState*k<=DIRECT_ADDRESS_MAX_BITS);
+        //count pairs to allocate the rows
+        long pairCount=0;
+        for (Char2FloatOpenHashMap map:hash.getHash().values()) {
+            pairCount+=map.size();
+        }
+        if (pairCount>Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many (nodeId,PP*) pairs in the hash to freeze it.");
+        }
+        char[] nodeIdsArray=new char[(int)pairCount];
+        float[] PPStarsArray=new float[(int)pairCount];
+        if (directAddress) {
+            fillDirectAddress(hash, s, nodeIdsArray, PPStarsArray);
+        } else {
+            fillOpenAddressing(hash, s, nodeIdsArray, PPStarsArray);
+        }
+        nodeIds=new CharTable(CharBuffer.wrap(nodeIdsArray));
+        PPStars=new FloatTable(FloatBuffer.wrap(PPStarsArray));
+        this.pairCount=(int)pairCount;
+    }
+    
+    /**
+     * hash built from existing tables, for instance mapped from a file
+     * @param k
+     * @param bitsPerState
+     * @param directAddress
+     * @param wordCount
+     * @param keys null if directAddress
+     * @param rows null if directAddress
+     * @param offsets
+     * @param nodeIds
+     * @param PPStars 
+     */
+    public FrozenHash(int k, int bitsPerState, boolean directAddress, int wordCount, LongTable keys, IntTable rows, IntTable offsets, CharTable nodeIds, FloatTable PPStars) {
+        this.k=k;
+        this.bitsPerState=bitsPerState;
+        this.directAddress=directAddress;
+        this.wordCount=wordCount;
+        this.keys=keys;
+        this.rows=rows;
+        if (keys!=null) {
+            this.mask=keys.capacity()-1;
+        }
+        this.offsets=offsets;
+        this.nodeIds=nodeIds;
+        this.PPStars=PPStars;
+        this.pairCount=nodeIds.capacity();
+    }
+    
+    /**
+     * compressed hash built from existing tables, for instance mapped
+     * from a file
+     * @param k
+     * @param bitsPerState
+     * @param directAddress
+     * @param wordCount
+     * @param keys null if directAddress
+     * @param rows null if directAddress
+     * @param offsets byte offsets in postings
+     * @param quantizationBits 8 or 16
+     * @param quantizationMin
+     * @param quantizationStep
+     * @param pairCount
+     * @param postings 
+     */
+    public FrozenHash(int k, int bitsPerState, boolean directAddress, int wordCount, LongTable keys, IntTable rows, IntTable offsets, int quantizationBits, float quantizationMin, float quantizationStep, int pairCount, ByteBuffer postings) {
+        this.k=k;
+        this.bitsPerState=bitsPerState;
+        this.directAddress=directAddress;
+        this.wordCount=wordCount;
+        this.keys=keys;
+        this.rows=rows;
+        if (keys!=null) {
+            this.mask=keys.capacity()-1;
+        }
+        this.offsets=offsets;
+        this.quantizationBits=quantizationBits;
+        this.quantizationMin=quantizationMin;
+        this.quantizationStep=quantizationStep;
+        this.pairCount=pairCount;
+        this.postings=postings;
+    }
+    
+    /**
+     * builds the compressed version of this hash, the open addressing
+     * table is shared. PP* are quantized between the lowest and highest
+     * PP* of the hash, nodeIds are delta-encoded as varints.
+     * @param bits 8 or 16
+     * @return 
+     */
+    public FrozenHash compress(int bits) {
+        if (isCompressed()) {
+            return this;
+        }
+        if (bits!=8 && bits!=16) {
+            throw new IllegalArgumentException("Quantization on 8 or 16 bits only.");
+        }
+        float min=Float.POSITIVE_INFINITY;
+        float max=Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < pairCount; i++) {
+            min=Math.min(min, PPStars.get(i));
+            max=Math.max(max, PPStars.get(i));
+        }
+        if (pairCount==0) {
+            min=0.0f;
+            max=0.0f;
+        }
+        int levels=(1<<bits)-1;
+        float step=(max-min)/levels;
+        
+        //pairs of a row, as (nodeId<<32|q) to sort them by nodeId
+        int rowCount=getRowCount();
+        int[] byteOffsets=new int[rowCount+1];
+        long[] pairs=new long[16];
+        //varint of a char delta is at most 3 bytes
+        int maxPairSize=3+bits/8;
+        byte[] buffer=new byte[1024];
+        int length=0;
+        for (int r = 0; r < rowCount; r++) {
+            byteOffsets[r]=length;
+            int start=offsets.get(r);
+            int n=offsets.get(r+1)-start;
+            if (pairs.length<n) {
+                pairs=new long[Math.max(n, 2*pairs.length)];
+            }
+            for (int i = 0; i < n; i++) {
+                int q=(step>0.0f)?Math.round((PPStars.get(start+i)-min)/step):0;
+                q=Math.max(0, Math.min(levels, q));
+                pairs[i]=((long)nodeIds.get(start+i)<<32)|q;
+            }
+            Arrays.sort(pairs, 0, n);
+            if (buffer.length-length<n*maxPairSize) {
+                buffer=Arrays.copyOf(buffer, Math.max(length+n*maxPairSize, (int)Math.min(Integer.MAX_VALUE-8, 2L*buffer.length)));
+            }
+            int previous=0;
+            for (int i = 0; i < n; i++) {
+                int nodeId=(int)(pairs[i]>>>32);
+                int q=(int)pairs[i];
+                int delta=nodeId-previous;
+                previous=nodeId;
+                while (delta>=0x80) {
+                    buffer[length++]=(byte)(delta|0x80);
+                    delta>>>=7;
+                }
+                buffer[length++]=(byte)delta;
+                if (bits==8) {
+                    buffer[length++]=(byte)q;
+                } else {
+                    //little-endian, as the mapped DB
+                    buffer[length++]=(byte)q;
+                    buffer[length++]=(byte)(q>>>8);
+                }
+            }
+        }
+        byteOffsets[rowCount]=length;
+        FrozenHash compressed=new FrozenHash(
+                k,
+                bitsPerState,
+                directAddress,
+                wordCount,
+                keys,
+                rows,
+                new IntTable(IntBuffer.wrap(byteOffsets)),
+                bits,
+                min,
+                step,
+                pairCount,
+                ByteBuffer.wrap(Arrays.copyOf(buffer, length)).order(ByteOrder.LITTLE_ENDIAN)
+        );
+        //same codes, the filter is shared
+        if (bloom!=null) {
+            compressed.setBloomFilter(bloom);
+        }
+        return compressed;
+    }
+    
+    /**
+     * rows in the order of the hash iteration, indexed by the open
+     * addressing table
+     */
+    private void fillOpenAddressing(CustomHash_v4_FastUtil81 hash, States s, char[] nodeIds, float[] PPStars) {
+        int rowCount=wordCount;
+        int capacity=HashCommon.arraySize(rowCount, 0.75f);
+        long[] keys=new long[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        int[] rows=new int[capacity];
+        mask=capacity-1;
+        int[] offsets=new int[rowCount+1];
+
+        int row=0;
+        int pair=0;
+        for (Object2ObjectMap.Entry<byte[],Char2FloatOpenHashMap> entry:hash.getHash().object2ObjectEntrySet()) {
+            long code=s.merToCode(entry.getKey(), k);
+            int pos=(int)HashCommon.mix(code) & mask;
+            while (keys[pos]!=EMPTY_KEY) {
+                pos=(pos+1) & mask;
+            }
+            keys[pos]=code;
+            rows[pos]=row;
+            offsets[row]=pair;
+            ObjectIterator<Char2FloatMap.Entry> it=entry.getValue().char2FloatEntrySet().fastIterator();
+            while (it.hasNext()) {
+                Char2FloatMap.Entry p=it.next();
+                nodeIds[pair]=p.getCharKey();
+                PPStars[pair]=p.getFloatValue();
+                pair++;
+            }
+            row++;
+        }
+        offsets[row]=pair;
+        this.keys=new LongTable(LongBuffer.wrap(keys));
+        this.rows=new IntTable(IntBuffer.wrap(rows));
+        this.offsets=new IntTable(IntBuffer.wrap(offsets));
+    }
+    
+    /**
+     * 1 row per possible code, rows ordered by code
+     */
+    private void fillDirectAddress(CustomHash_v4_FastUtil81 hash, States s, char[] nodeIds, float[] PPStars) {
+        int codeCount=1<<(bitsPerState*k);
+        int[] offsets=new int[codeCount+1];
+        //count pairs per code, shifted by 1 to do the prefix sum in place
+        for (Object2ObjectMap.Entry<byte[],Char2FloatOpenHashMap> entry:hash.getHash().object2ObjectEntrySet()) {
+            offsets[(int)s.merToCode(entry.getKey(), k)+1]=entry.getValue().size();
+        }
+        for (int i = 0; i < codeCount; i++) {
+            offsets[i+1]+=offsets[i];
+        }
+        for (Object2ObjectMap.Entry<byte[],Char2FloatOpenHashMap> entry:hash.getHash().object2ObjectEntrySet()) {
+            int pair=offsets[(int)s.merToCode(entry.getKey(), k)];
+            ObjectIterator<Char2FloatMap.Entry> it=entry.getValue().char2FloatEntrySet().fastIterator();
+            while (it.hasNext()) {
+                Char2FloatMap.Entry p=it.next();
+                nodeIds[pair]=p.getCharKey();
+                PPStars[pair]=p.getFloatValue();
+                pair++;
+            }
+        }
+        this.offsets=new IntTable(IntBuffer.wrap(offsets));
+    }
+
+    /**
+     * row associated to a word
+     * @param code the word, as a packed code
+     * @return -1 if word not present in the hash
+     */
+    public int getRow(long code) {
+        if (directAddress) {
+            //empty rows are words absent from the hash
+            int row=(int)code;
+            if (offsets.get(row)<offsets.get(row+1)) {
+                return row;
+            }
+            return -1;
+        }
+        if (bloom!=null && !mightContain(code)) {
+            return -1;
+        }
+        int pos=(int)HashCommon.mix(code) & mask;
+        long curr;
+        while ((curr=keys.get(pos))!=EMPTY_KEY) {
+            if (curr==code) {
+                return rows.get(pos);
+            }
+            pos=(pos+1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * builds the Bloom filter of the codes of this hash, checked by
+     * getRow() before the open addressing table. Not built for the
+     * direct-address layout, which already resolves a word by reading
+     * a single row.
+     * @param bitsPerWord 
+     */
+    public void buildBloomFilter(int bitsPerWord) {
+        if (directAddress) {
+            return;
+        }
+        long blocks=HashCommon.nextPowerOfTwo(Math.max(1L, ((long)wordCount*bitsPerWord+511)/512));
+        blocks=Math.min(blocks, BLOOM_MAX_BLOCKS);
+        long[] filter=new long[(int)blocks*BLOOM_BLOCK_LONGS];
+        int blockMask=(int)blocks-1;
+        for (int pos = 0; pos < keys.capacity(); pos++) {
+            long code=keys.get(pos);
+            if (code==EMPTY_KEY) {
+                continue;
+            }
+            long h=HashCommon.murmurHash3(code);
+            int block=((int)h & blockMask)*BLOOM_BLOCK_LONGS;
+            //bits of the block, 9 bits per position
+            long g=HashCommon.murmurHash3(h);
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                int bit=(int)(g>>>(9*i)) & 511;
+                filter[block+(bit>>>6)]|=1L<<bit;
+            }
+        }
+        setBloomFilter(LongBuffer.wrap(filter));
+    }
+    
+    /**
+     * filter built by buildBloomFilter(), for instance mapped from a file
+     * @param filter 
+     */
+    public void setBloomFilter(LongBuffer filter) {
+        this.bloom=filter;
+        this.bloomBlockMask=filter.capacity()/BLOOM_BLOCK_LONGS-1;
+    }
+    
+    /**
+     * 
+     * @return null if no filter was built
+     */
+    public LongBuffer getBloomFilter() {
+        return bloom;
+    }
+    
+    /**
+     * test of the Bloom filter, all bits are in the same block
+     * @param code
+     * @return false if the word is certainly absent from the hash
+     */
+    private boolean mightContain(long code) {
+        long h=HashCommon.murmurHash3(code);
+        int block=((int)h & bloomBlockMask)*BLOOM_BLOCK_LONGS;
+        long g=HashCommon.murmurHash3(h);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit=(int)(g>>>(9*i)) & 511;
+            if ((bloom.get(block+(bit>>>6)) & (1L<<bit))==0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * prepares the fixed-point version of the PP*, used by the integer
+     * scoring: each PP* is stored as round((PP*-threshold)*scale), i.e. its
+     * offset above the score of an unmatched word, so that the score of a
+     * node is threshold*#words+sum(gains)/scale. For a compressed hash, the
+     * gain of each quantization level is precomputed.
+     * @param threshold PP* threshold (log10)
+     * @param scale 
+     */
+    public void prepareFixedPoint(float threshold, int scale) {
+        if (fixedPointScale==scale) {
+            return;
+        }
+        maxGain=0;
+        if (isCompressed()) {
+            quantizedGains=new int[1<<quantizationBits];
+            for (int q = 0; q < quantizedGains.length; q++) {
+                quantizedGains[q]=Math.round((quantizationMin+q*quantizationStep-threshold)*scale);
+                maxGain=Math.max(maxGain, quantizedGains[q]);
+            }
+        } else {
+            int[] gainsArray=new int[pairCount];
+            for (int i = 0; i < pairCount; i++) {
+                gainsArray[i]=Math.round((PPStars.get(i)-threshold)*scale);
+                maxGain=Math.max(maxGain, gainsArray[i]);
+            }
+            gains=IntBuffer.wrap(gainsArray);
+        }
+        fixedPointScale=scale;
+    }
+    
+    /**
+     * 
+     * @return true if prepareFixedPoint() was called
+     */
+    public boolean hasFixedPoint() {
+        return fixedPointScale>0;
+    }
+    
+    public int getFixedPointScale() {
+        return fixedPointScale;
+    }
+    
+    /**
+     * fixed-point PP*, 1 per pair
+     * @return null if compressed or if prepareFixedPoint() was not called
+     */
+    public IntBuffer getGains() {
+        return gains;
+    }
+    
+    /**
+     * fixed-point PP* of each quantization level
+     * @return null if not compressed or if prepareFixedPoint() was not called
+     */
+    public int[] getQuantizedGains() {
+        return quantizedGains;
+    }
+    
+    /**
+     * highest fixed-point PP*, bounds the score that a word can bring
+     * @return 
+     */
+    public int getMaxGain() {
+        return maxGain;
+    }
+    
+    /**
+     * resolves a batch of words, for instance all the words of a query.\n
+     * Words are resolved in the order of their slot in the open addressing
+     * table (of their row in the direct-address layout), so that the tables
+     * are read by increasing addresses instead of in the order of the
+     * query, identical words being resolved once. Results are given in
+     * the order of the words.
+     * @param codes packed codes, negative codes (invalid words) are ignored
+     * @param count # codes
+     * @param starts filled with the start of the posting range of each
+     * word, in the unit of getOffsets()
+     * @param ends filled with the end (excluded) of the posting range of
+     * each word, equal to its start if the word is not present
+     * @param order buffer of at least count elements
+     * @return # words present in the hash
+     */
+    public int getPostingRanges(long[] codes, int count, int[] starts, int[] ends, long[] order) {
+        //bucket in the 32 highest bits, index of the word in the lowest
+        int n=0;
+        for (int i = 0; i < count; i++) {
+            long code=codes[i];
+            if (code<0) {
+                starts[i]=0;
+                ends[i]=0;
+                continue;
+            }
+            long bucket=directAddress?code:((int)HashCommon.mix(code) & mask);
+            order[n++]=(bucket<<32)|i;
+        }
+        Arrays.sort(order, 0, n);
+        int found=0;
+        long previousCode=EMPTY_KEY;
+        int start=0;
+        int end=0;
+        for (int j = 0; j < n; j++) {
+            int i=(int)order[j];
+            long code=codes[i];
+            if (code!=previousCode) {
+                int row=getRow(code);
+                if (row<0) {
+                    start=0;
+                    end=0;
+                } else {
+                    start=offsets.get(row);
+                    end=offsets.get(row+1);
+                }
+                previousCode=code;
+            }
+            starts[i]=start;
+            ends[i]=end;
+            if (end>start) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * pairs of row r are in [offsets[r],offsets[r+1]), these are byte
+     * offsets in postings[] if the hash is compressed
+     * @return
+     */
+    public IntTable getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * @return null if compressed
+     */
+    public CharTable getNodeIds() {
+        return nodeIds;
+    }
+
+    /**
+     * @return null if compressed
+     */
+    public FloatTable getPPStars() {
+        return PPStars;
+    }
+    
+    /**
+     * @return null if not compressed
+     */
+    public ByteBuffer getPostings() {
+        return postings;
+    }
+    
+    public boolean isCompressed() {
+        return quantizationBits>0;
+    }
+    
+    /**
+     * 
+     * @return 8 or 16 if compressed, 0 if not
+     */
+    public int getQuantizationBits() {
+        return quantizationBits;
+    }
+
+    public float getQuantizationMin() {
+        return quantizationMin;
+    }
+
+    public float getQuantizationStep() {
+        return quantizationStep;
+    }
+    
+    /**
+     * open addressing table
+     * @return null if directAddress
+     */
+    public LongTable getKeys() {
+        return keys;
+    }
+    
+    /**
+     * row of each slot of the open addressing table
+     * @return null if directAddress
+     */
+    public IntTable getRows() {
+        return rows;
+    }
+    
+    public int getBitsPerState() {
+        return bitsPerState;
+    }
+
+    /**
+     * number of rows, larger than the number of words when the
+     * direct-address layout is used
+     * @return
+     */
+    public int getRowCount() {
+        return offsets.capacity()-1;
+    }
+    
+    /**
+     * size of the tables read to resolve a word (open addressing table
+     * and offsets), the pairs themselves excluded
+     * @return in bytes
+     */
+    public long getTableBytes() {
+        long bytes=4L*offsets.capacity();
+        if (!directAddress) {
+            bytes+=12L*keys.capacity();
+        }
+        return bytes;
+    }
+    
+    /**
+     * number of words in this hash
+     * @return
+     */
+    public int getWordCount() {
+        return wordCount;
+    }
+    
+    /**
+     * 
+     * @return true if the code of a word is directly its row
+     */
+    public boolean isDirectAddress() {
+        return directAddress;
+    }
+
+    /**
+     * number of (nodeId,PP*) pairs in this hash
+     * @return
+     */
+    public int getPairCount() {
+        return pairCount;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package core.hash;
+
+import java.nio.IntBuffer;
+
+/**
+ * Table of ints stored in one or several nio buffers, the windows, so
+ * that a table mapped from a file can exceed the 2Gb of a single mapping
+ * (see BinaryDB).\n
+ * All windows but the last have the same capacity, a power of 2: value
+ * i is in window i&gt;&gt;&gt;shift, at position i&amp;mask. A table of
+ * a single window, for instance wrapping an array, has shift=31 and is
+ * read as the buffer itself.
+ * @author ben
+ */
+public class IntTable {
+
+    private final IntBuffer[] windows;
+    private final int shift;
+    private final int mask;
+    private final int capacity;
+
+    /**
+     * table of a single window
+     * @param b
+     */
+    public IntTable(IntBuffer b) {
+        this(new IntBuffer[]{b});
+    }
+
+    /**
+     * @param windows all but the last with the same capacity, a power of 2
+     */
+    public IntTable(IntBuffer[] windows) {
+        this.windows=windows;
+        long total=0;
+        for (IntBuffer w:windows) {
+            total+=w.capacity();
+        }
+        if (total>Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("More than 2^31-1 values in a table.");
+        }
+        this.capacity=(int)total;
+        if (windows.length==1) {
+            this.shift=31;
+            this.mask=Integer.MAX_VALUE;
+        } else {
+            int size=windows[0].capacity();
+            for (int w = 0; w < windows.length-1; w++) {
+                if (Integer.bitCount(size)!=1 || windows[w].capacity()!=size) {
+                    throw new IllegalArgumentException("Windows of a table must have the same capacity, a power of 2.");
+                }
+            }
+            this.shift=Integer.numberOfTrailingZeros(size);
+            this.mask=size-1;
+        }
+    }
+
+    public int get(int i) {
+        return windows[i>>>shift].get(i & mask);
+    }
+
+    /**
+     * number of values of the table
+     * @return
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * windows of the table, in order
+     * @return
+     */
+    public IntBuffer[] getWindows() {
+        return windows;
+    }
+
+}
@@ -36,6 +36,15 @@ public class Infos {
     }
     
     
+    /**
+     * true if debug outputs are enabled, allows to skip the construction
+     * of debug messages in time critical loops
+     * @return 
+     */
+    public static boolean isVerbose() {
+        return "1".equals(System.getProperty("debug.verbose"));
+    }
+    
     public static String getCallerClassName() { 
         StackTraceElement[] stElements = Thread.currentThread().getStackTrace();
         for (int i=1; i<stElements.length; i++) {
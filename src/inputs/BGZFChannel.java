@@ -0,0 +1,292 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package inputs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompressed content of a BGZF file (bgzip), the blocks being inflated
+ * on several threads.\n
+ * A BGZF file is a series of gzip members (blocks of at most 64ko),
+ * each one giving its compressed size in the 'BC' subfield of its extra
+ * field. The blocks can then be read from the file without being
+ * decompressed: they are read in order, submitted to a pool of threads,
+ * and their content is returned in the same order. The number of blocks
+ * in flight is bounded, to avoid decompressing the whole file in memory.
+ * @author ben
+ */
+public class BGZFChannel implements ReadableByteChannel {
+
+    private final static int FIXED_HEADER_SIZE=12; //up to XLEN
+    private final static int TRAILER_SIZE=8; //CRC32 + ISIZE
+    private final static int MAX_BLOCK_SIZE=65536;
+
+    FileChannel file=null;
+    ExecutorService executor=null;
+    //blocks submitted to the threads, in file order
+    ArrayDeque<Future<byte[]>> pendingBlocks=new ArrayDeque<>();
+    int maxPendingBlocks=0;
+    boolean endOfFile=false;
+    long blockOffset=0;
+    ByteBuffer header=ByteBuffer.allocate(FIXED_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    //decompressed block currently returned
+    byte[] block=new byte[0];
+    int blockPosition=0;
+    boolean open=true;
+
+    /**
+     *
+     * @param file positioned on the 1st block
+     * @param threads number of decompression threads
+     */
+    public BGZFChannel(FileChannel file, int threads) {
+        this.file=file;
+        this.blockOffset=0;
+        executor=Executors.newFixedThreadPool(threads, (Runnable r) -> {
+            Thread t=new Thread(r, "bgzf-inflater");
+            t.setDaemon(true);
+            return t;
+        });
+        maxPendingBlocks=Math.max(16, threads*4);
+    }
+
+    /**
+     * true if the file starts with a BGZF block, i.e. a gzip member with
+     * a 'BC' subfield in its extra field
+     * @param file read with absolute positions, its position is unchanged
+     * @return
+     * @throws IOException
+     */
+    public static boolean isBGZF(FileChannel file) throws IOException {
+        ByteBuffer h=ByteBuffer.allocate(FIXED_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(file, h, 0);
+        if (h.hasRemaining() || !isGzipHeader(h)) {
+            return false;
+        }
+        ByteBuffer extra=ByteBuffer.allocate(h.getShort(10) & 0xFFFF).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(file, extra, FIXED_HEADER_SIZE);
+        return !extra.hasRemaining() && blockSize(extra)>-1;
+    }
+
+    /**
+     * gzip magic bytes, deflate method, FEXTRA as only flag
+     */
+    private static boolean isGzipHeader(ByteBuffer h) {
+        return (h.get(0) & 0xFF)==0x1f && (h.get(1) & 0xFF)==0x8b
+                && h.get(2)==8 && h.get(3)==4;
+    }
+
+    /**
+     * @param extra extra field of a gzip member
+     * @return total size of the block minus 1 (BSIZE), -1 if there is no
+     * 'BC' subfield
+     */
+    private static int blockSize(ByteBuffer extra) {
+        int i=0;
+        while (i+4<=extra.limit()) {
+            int length=extra.getShort(i+2) & 0xFFFF;
+            if (extra.get(i)=='B' && extra.get(i+1)=='C' && length==2 && i+6<=extra.limit()) {
+                return extra.getShort(i+4) & 0xFFFF;
+            }
+            i+=4+length;
+        }
+        return -1;
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            if (file.read(b, position+b.position())<0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * next compressed block of the file
+     * @return null at the end of the file
+     * @throws IOException
+     */
+    private byte[] readBlock() throws IOException {
+        header.clear();
+        while (header.hasRemaining() && file.read(header)>-1) {}
+        if (header.position()==0) {
+            return null;
+        }
+        if (header.hasRemaining() || !isGzipHeader(header)) {
+            throw new IOException("Not a BGZF block at offset "+blockOffset);
+        }
+        int extraLength=header.getShort(10) & 0xFFFF;
+        ByteBuffer compressed=ByteBuffer.allocate(extraLength).order(ByteOrder.LITTLE_ENDIAN);
+        while (compressed.hasRemaining() && file.read(compressed)>-1) {}
+        int size=blockSize(compressed)+1;
+        if (compressed.hasRemaining() || size<FIXED_HEADER_SIZE+extraLength+TRAILER_SIZE) {
+            throw new IOException("Not a BGZF block at offset "+blockOffset);
+        }
+        //whole block, headers included
+        byte[] b=new byte[size];
+        header.flip();
+        header.get(b, 0, FIXED_HEADER_SIZE);
+        compressed.flip();
+        compressed.get(b, FIXED_HEADER_SIZE, extraLength);
+        compressed=ByteBuffer.wrap(b, FIXED_HEADER_SIZE+extraLength, size-FIXED_HEADER_SIZE-extraLength);
+        while (compressed.hasRemaining() && file.read(compressed)>-1) {}
+        if (compressed.hasRemaining()) {
+            throw new IOException("Truncated BGZF block at offset "+blockOffset);
+        }
+        blockOffset+=size;
+        return b;
+    }
+
+    /**
+     * inflates a block, run by the decompression threads
+     * @param b whole block, as read by readBlock()
+     * @return decompressed content
+     * @throws IOException
+     */
+    private static byte[] inflate(byte[] b) throws IOException {
+        ByteBuffer trailer=ByteBuffer.wrap(b, b.length-TRAILER_SIZE, TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int crc=trailer.getInt();
+        int contentLength=trailer.getInt();
+        if (contentLength<0 || contentLength>MAX_BLOCK_SIZE) {
+            throw new IOException("Corrupted BGZF block, content of "+contentLength+" bytes.");
+        }
+        byte[] content=new byte[contentLength];
+        int start=FIXED_HEADER_SIZE+(((b[11] & 0xFF)<<8)|(b[10] & 0xFF));
+        Inflater inflater=new Inflater(true);
+        try {
+            inflater.setInput(b, start, b.length-TRAILER_SIZE-start);
+            int length=0;
+            while (length<content.length && !inflater.finished()) {
+                int n=inflater.inflate(content, length, content.length-length);
+                if (n==0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length+=n;
+            }
+            if (length<content.length) {
+                throw new IOException("Corrupted BGZF block, "+length+" bytes inflated instead of "+content.length);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupted BGZF block.", ex);
+        } finally {
+            inflater.end();
+        }
+        CRC32 checksum=new CRC32();
+        checksum.update(content, 0, content.length);
+        if ((int)checksum.getValue()!=crc) {
+            throw new IOException("Corrupted BGZF block, CRC32 mismatch.");
+        }
+        return content;
+    }
+
+    /**
+     * reads blocks and submits them to the threads, up to the maximum
+     * number of blocks in flight
+     * @throws IOException
+     */
+    private void submitBlocks() throws IOException {
+        while (!endOfFile && pendingBlocks.size()<maxPendingBlocks) {
+            final byte[] compressed=readBlock();
+            if (compressed==null) {
+                endOfFile=true;
+                break;
+            }
+            pendingBlocks.add(executor.submit(() -> inflate(compressed)));
+        }
+    }
+
+    /**
+     * waits for a block submitted to the decompression threads
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    private byte[] waitForBlock(Future<byte[]> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Decompression interrupted.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * copies the decompressed content to dst, waits only if no block is
+     * ready yet
+     * @param dst
+     * @return number of bytes copied, -1 at the end of the file
+     * @throws IOException
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        int n=0;
+        while (dst.hasRemaining()) {
+            if (blockPosition==block.length) {
+                submitBlocks();
+                Future<byte[]> next=pendingBlocks.peek();
+                if (next==null) {
+                    break;
+                }
+                //something was already copied, do not wait
+                if (n>0 && !next.isDone()) {
+                    break;
+                }
+                block=waitForBlock(pendingBlocks.poll());
+                blockPosition=0;
+                continue;
+            }
+            int length=Math.min(dst.remaining(), block.length-blockPosition);
+            dst.put(block, blockPosition, length);
+            blockPosition+=length;
+            n+=length;
+        }
+        if (n==0 && dst.hasRemaining()) {
+            return -1;
+        }
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * stops the decompression threads, the file itself is not closed
+     */
+    @Override
+    public void close() {
+        open=false;
+        for (Future<byte[]> f:pendingBlocks) {
+            f.cancel(true);
+        }
+        pendingBlocks.clear();
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package inputs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a fasta file in a single pass, at the byte level.\n
+ * The file is read by large chunks (see NioSequencePointer), headers and
+ * residues are copied from the chunk to reusable byte buffers, line
+ * returns being skipped on the fly. Each sequence is then converted once
+ * to a String, without intermediate StringBuffer or regular expression.\n
+ * Same parsing than FASTAPointer: empty lines and lines starting with
+ * '#' are ignored, the sequence is trimmed.
+ * @author ben
+ */
+public class FASTANioPointer extends NioSequencePointer {
+
+    //the '>' of the next header was already read
+    boolean headerPending=false;
+    boolean lineStart=true;
+
+    public FASTANioPointer(File f, int threads) throws IOException {
+        super(f, threads);
+    }
+
+    FASTANioPointer(File f, long start, long end) throws IOException {
+        super(f, start, end);
+    }
+
+    @Override
+    protected void reset() {
+        headerPending=false;
+        lineStart=true;
+    }
+
+    /**
+     * return the next fasta
+     * @return null at the end of the file
+     */
+    @Override
+    public Fasta nextSequenceAsFastaObject() {
+        try {
+            int b;
+            //skip anything before the 1st header
+            if (!headerPending) {
+                while ((b=nextByte())>-1) {
+                    if (lineStart && b=='>') {
+                        headerPending=true;
+                        break;
+                    }
+                    lineStart=(b=='\n');
+                }
+                if (!headerPending) {
+                    return null;
+                }
+            }
+            headerPending=false;
+            //header, up to the end of the line
+            headerLength=0;
+            while ((b=nextByte())>-1 && b!='\n') {
+                appendHeader(b);
+            }
+            //residues, up to the next line starting with '>'
+            residuesLength=0;
+            lineStart=true;
+            boolean comment=false;
+            while ((b=nextByte())>-1) {
+                if (lineStart) {
+                    if (b=='>') {
+                        headerPending=true;
+                        break;
+                    }
+                    comment=(b=='#');
+                }
+                if (b=='\n') {
+                    lineStart=true;
+                    comment=false;
+                    continue;
+                }
+                lineStart=false;
+                if (comment || b=='\r') {
+                    continue;
+                }
+                appendResidue(b);
+            }
+            return toFasta();
+        } catch (IOException ex) {
+            Logger.getLogger(FASTANioPointer.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+}
@@ -202,6 +202,18 @@ public class FASTAPointer implements SequencePointer {
     public double getContentMean() {
         return this.mean;
     }
+    
+    /**
+     * proportion of the fasta read so far
+     * @return
+     */
+    @Override
+    public double getProgress() {
+        if (size==0) {
+            return 1.0;
+        }
+        return ((double)fastaChecked)/size;
+    }
 
     /**
      * call it at the end of the parsing
@@ -0,0 +1,101 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package inputs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a fastq file in a single pass, at the byte level, and returns its
+ * reads as Fasta objects.\n
+ * Records are '@' header, sequence lines, '+' line, quality lines. The
+ * sequence lines end at the 1st line starting with '+', then as many
+ * quality symbols as residues are skipped in the chunk, line returns
+ * excluded, without being copied: a quality line starting with '@' or '+'
+ * is not mistaken for a new record.
+ * @author ben
+ */
+public class FASTQNioPointer extends NioSequencePointer {
+
+    boolean lineStart=true;
+
+    public FASTQNioPointer(File f, int threads) throws IOException {
+        super(f, threads);
+    }
+
+    FASTQNioPointer(File f, long start, long end) throws IOException {
+        super(f, start, end);
+    }
+
+    @Override
+    protected void reset() {
+        lineStart=true;
+    }
+
+    /**
+     * return the next read
+     * @return null at the end of the file
+     */
+    @Override
+    public Fasta nextSequenceAsFastaObject() {
+        try {
+            int b;
+            //skip anything up to the next header
+            boolean found=false;
+            while ((b=nextByte())>-1) {
+                if (lineStart && b=='@') {
+                    found=true;
+                    break;
+                }
+                lineStart=(b=='\n');
+            }
+            if (!found) {
+                return null;
+            }
+            //header, up to the end of the line
+            headerLength=0;
+            while ((b=nextByte())>-1 && b!='\n') {
+                appendHeader(b);
+            }
+            //residues, up to the line starting with '+'
+            residuesLength=0;
+            lineStart=true;
+            while ((b=nextByte())>-1) {
+                if (lineStart && b=='+') {
+                    break;
+                }
+                if (b=='\n') {
+                    lineStart=true;
+                    continue;
+                }
+                lineStart=false;
+                if (b=='\r') {
+                    continue;
+                }
+                appendResidue(b);
+            }
+            //rest of the '+' line
+            while (b>-1 && b!='\n') {
+                b=nextByte();
+            }
+            //quality, 1 symbol per residue
+            int quality=0;
+            while (quality<residuesLength && (b=nextByte())>-1) {
+                if (b!='\n' && b!='\r') {
+                    quality++;
+                }
+            }
+            lineStart=false;
+            return toFasta();
+        } catch (IOException ex) {
+            Logger.getLogger(FASTQNioPointer.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+}
@@ -228,6 +228,18 @@ private StringBuffer sb=new StringBuffer();
     public double getContentMean() {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
+    
+    /**
+     * proportion of the fastq read so far
+     * @return
+     */
+    @Override
+    public double getProgress() {
+        if (size==0) {
+            return 1.0;
+        }
+        return ((double)fastqChecked)/size;
+    }
 
     @Override
     public Fasta nextSequenceAsFastaObject() {
@@ -0,0 +1,364 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package inputs;
+
+import etc.Infos;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Base of the sequence pointers reading a file in a single pass, at the
+ * byte level.\n
+ * The file is read by large chunks, headers and residues are copied from
+ * the chunk to reusable byte buffers by the subclasses, which define the
+ * format. Each sequence is then converted once to a String.\n
+ * Gzip files are detected from their magic bytes (1f 8b) and decompressed
+ * on the fly. The blocks of bgzip files (BGZF) are inflated on several
+ * threads (see BGZFChannel), other gzip files are inflated by a single
+ * thread running ahead of the parsing (see ReadAheadChannel).
+ * Use open() to get the pointer matching the content of the file.
+ * A pointer can also be limited to a byte range of an uncompressed file,
+ * see SplitSequencePointer.\n
+ * The file is not parsed beforehand to count the sequences:
+ * getContentSize() and getContentMean() describe the sequences read so
+ * far, the progress is given by getProgress(), from the byte offset in the
+ * file (compressed bytes for a gzip file).
+ * @author ben
+ */
+public abstract class NioSequencePointer implements SequencePointer {
+
+    private final static int BUFFER_SIZE=8388608; // chunks of 8mo
+    private final static int GZIP_BUFFER_SIZE=65536;
+
+    File myFile=null;
+    int threads=1;
+    //byte range parsed, rangeEnd=-1 for the whole file
+    long rangeStart=0;
+    long rangeEnd=-1;
+    FileChannel file=null;
+    ReadableByteChannel channel=null;
+    boolean gzip=false;
+    boolean bgzf=false;
+    long fileSize=0;
+    //current chunk, and offset of its 1st byte in the (decompressed) stream
+    ByteBuffer buffer=null;
+    byte[] chunk=null;
+    int position=0;
+    int limit=0;
+    long chunkOffset=0;
+    //compressed bytes consumed by the decompression, after the last chunk
+    long compressedOffset=0;
+
+    byte[] header=new byte[256];
+    int headerLength=0;
+    byte[] residues=new byte[4096];
+    int residuesLength=0;
+
+    //sequences read so far
+    int size=0;
+    long residuesSum=0;
+
+    /**
+     * pointer matching the content of the file, fasta or fastq, compressed
+     * with gzip/bgzip or not
+     * @param f
+     * @param threads number of threads inflating the blocks of a bgzip
+     * file, or parsing the byte ranges of a large uncompressed file
+     * @return a FASTQNioPointer if the 1st symbol of the (decompressed)
+     * content is '@', a FASTANioPointer otherwise, or a
+     * SplitSequencePointer over one of them if the file can be split
+     * @throws IOException
+     */
+    public static SequencePointer open(File f, int threads) throws IOException {
+        NioSequencePointer p=new FASTANioPointer(f, threads);
+        boolean fastq=(p.peekByte()=='@');
+        if (fastq) {
+            p.closePointer();
+            p=new FASTQNioPointer(f, threads);
+        }
+        Infos.println("Queries read as "+(fastq?"fastq":"fasta")+(p.isBGZF()?" (bgzip)":(p.isGzip()?" (gzip)":"")));
+        if (threads>1 && !p.isGzip() && p.fileSize>=2*SplitSequencePointer.RANGE_SIZE) {
+            SplitSequencePointer split=new SplitSequencePointer(f, fastq, threads);
+            if (split.isSplittable()) {
+                p.closePointer();
+                Infos.println("Queries parsed by byte ranges on "+threads+" threads.");
+                return split;
+            }
+            split.closePointer();
+            Infos.println("Multi-line fastq records, queries parsed on a single thread.");
+        }
+        return p;
+    }
+
+    protected NioSequencePointer(File f, int threads) throws IOException {
+        this.myFile=f;
+        this.threads=Math.max(1, threads);
+        buffer=ByteBuffer.allocate(BUFFER_SIZE);
+        chunk=buffer.array();
+        open();
+    }
+
+    /**
+     * pointer limited to a byte range of an uncompressed file
+     * @param f
+     * @param start offset of the 1st byte of the range
+     * @param end offset following the last byte of the range
+     * @throws IOException
+     */
+    protected NioSequencePointer(File f, long start, long end) throws IOException {
+        this.myFile=f;
+        this.rangeStart=start;
+        this.rangeEnd=end;
+        buffer=ByteBuffer.allocate((int)Math.max(1, Math.min(BUFFER_SIZE, end-start)));
+        chunk=buffer.array();
+        open();
+    }
+
+    private void open() throws IOException {
+        file=FileChannel.open(myFile.toPath(), StandardOpenOption.READ);
+        fileSize=file.size();
+        if (rangeEnd>-1) {
+            //the range is read as a whole file
+            fileSize=rangeEnd-rangeStart;
+            file.position(rangeStart);
+        }
+        //gzip magic bytes
+        ByteBuffer magic=ByteBuffer.allocate(2);
+        while (magic.hasRemaining() && file.read(magic, magic.position())>-1) {}
+        gzip=(rangeEnd<0 && magic.position()==2 && (magic.get(0) & 0xFF)==0x1f && (magic.get(1) & 0xFF)==0x8b);
+        bgzf=gzip && BGZFChannel.isBGZF(file);
+        if (bgzf) {
+            channel=new BGZFChannel(file, threads);
+        } else if (gzip) {
+            //GZIPInputStream continues with the next members, if any
+            channel=new ReadAheadChannel(new GZIPInputStream(Channels.newInputStream(file), GZIP_BUFFER_SIZE));
+        } else {
+            channel=file;
+        }
+        position=0;
+        limit=0;
+        chunkOffset=0;
+        compressedOffset=0;
+        size=0;
+        residuesSum=0;
+        reset();
+    }
+
+    /**
+     * resets the parsing state of the subclass, called when the file is
+     * (re)opened
+     */
+    protected abstract void reset();
+
+    /**
+     * next byte of the (decompressed) file, reads the next chunk when needed
+     * @return -1 at the end of the file
+     * @throws IOException
+     */
+    protected final int nextByte() throws IOException {
+        if (position==limit && !fill()) {
+            return -1;
+        }
+        return chunk[position++] & 0xFF;
+    }
+
+    /**
+     * next byte of the (decompressed) file, without consuming it
+     * @return -1 at the end of the file
+     * @throws IOException
+     */
+    protected final int peekByte() throws IOException {
+        if (position==limit && !fill()) {
+            return -1;
+        }
+        return chunk[position] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        chunkOffset+=limit;
+        buffer.clear();
+        if (rangeEnd>-1) {
+            long left=fileSize-chunkOffset;
+            if (left<=0) {
+                position=0;
+                limit=0;
+                return false;
+            }
+            buffer.limit((int)Math.min(buffer.capacity(), left));
+        }
+        //what the channel has ready, the decompressing channels do not
+        //wait to fill the whole chunk
+        while (buffer.position()==0 && channel.read(buffer)>-1) {}
+        position=0;
+        limit=buffer.position();
+        if (gzip) {
+            compressedOffset=file.position();
+        }
+        return limit>0;
+    }
+
+    /**
+     * appends a byte to the header buffer
+     * @param b
+     */
+    protected final void appendHeader(int b) {
+        if (headerLength==header.length) {
+            header=Arrays.copyOf(header, 2*header.length);
+        }
+        header[headerLength++]=(byte)b;
+    }
+
+    /**
+     * appends a byte to the residues buffer
+     * @param b
+     */
+    protected final void appendResidue(int b) {
+        if (residuesLength==residues.length) {
+            residues=Arrays.copyOf(residues, 2*residues.length);
+        }
+        residues[residuesLength++]=(byte)b;
+    }
+
+    /**
+     * builds the sequence from the header and residues buffers, the
+     * residues being trimmed
+     * @return
+     */
+    protected final Fasta toFasta() {
+        if (headerLength>0 && header[headerLength-1]=='\r') {
+            headerLength--;
+        }
+        int start=0;
+        int end=residuesLength;
+        while (start<end && (residues[start] & 0xFF)<=' ') {
+            start++;
+        }
+        while (end>start && (residues[end-1] & 0xFF)<=' ') {
+            end--;
+        }
+        size++;
+        residuesSum+=end-start;
+        return new Fasta(
+                new String(header, 0, headerLength, StandardCharsets.UTF_8),
+                new String(residues, start, end-start, StandardCharsets.ISO_8859_1)
+        );
+    }
+
+    /**
+     * true if the file is compressed with gzip/bgzip
+     * @return
+     */
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * true if the file is compressed with bgzip, i.e. inflated in parallel
+     * @return
+     */
+    public boolean isBGZF() {
+        return bgzf;
+    }
+
+    /**
+     * return the next fasta, as text
+     * @return null at the end of the file
+     */
+    @Override
+    public StringBuffer nextSequenceAsFasta() {
+        Fasta f=nextSequenceAsFastaObject();
+        if (f==null) {
+            return null;
+        }
+        return new StringBuffer(f.getFormatedFasta()).append('\n');
+    }
+
+    /**
+     * number of sequences read so far, i.e. the number of sequences of
+     * the file once it was entirely read
+     * @return
+     */
+    @Override
+    public int getContentSize() {
+        return size;
+    }
+
+    /**
+     * mean length of the sequences read so far
+     * @return
+     */
+    @Override
+    public double getContentMean() {
+        if (size==0) {
+            return 0.0;
+        }
+        return ((double)residuesSum)/size;
+    }
+
+    /**
+     * proportion of the file read so far
+     * @return
+     */
+    @Override
+    public double getProgress() {
+        if (fileSize==0) {
+            return 1.0;
+        }
+        if (gzip) {
+            return Math.min(1.0, ((double)compressedOffset)/fileSize);
+        }
+        return ((double)(chunkOffset+position))/fileSize;
+    }
+
+    /**
+     * call it at the end of the parsing
+     */
+    @Override
+    public void closePointer() {
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException ex) {
+            Logger.getLogger(NioSequencePointer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    @Override
+    public void resetPointer() {
+        try {
+            closePointer();
+            open();
+        } catch (IOException ex) {
+            Logger.getLogger(NioSequencePointer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * moves the pointer before a sequence of the file; the records are not
+     * indexed, the file is read again from its start up to this sequence
+     * @param fastaNumber # sequences skipped, 0 for the 1st sequence
+     */
+    @Override
+    public void setPointerPosition(int fastaNumber) {
+        resetPointer();
+        for (int i = 0; i < fastaNumber; i++) {
+            if (nextSequenceAsFastaObject()==null) {
+                break;
+            }
+        }
+    }
+
+}
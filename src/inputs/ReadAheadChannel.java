@@ -0,0 +1,156 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package inputs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Content of an input stream read by a dedicated thread, ahead of the
+ * consumer of the channel.\n
+ * Used for plain gzip files, which cannot be decompressed in parallel:
+ * the inflater then runs on its own thread while the sequences are
+ * parsed. The thread fills a few chunks in advance, chunks are recycled
+ * once consumed.
+ * @author ben
+ */
+public class ReadAheadChannel implements ReadableByteChannel {
+
+    private final static int CHUNK_SIZE=1048576; // chunks of 1mo
+    private final static int CHUNKS_AHEAD=4;
+    //end of the stream, or error of the reading thread
+    private final static ByteBuffer END=ByteBuffer.allocate(0);
+
+    InputStream in=null;
+    Thread reader=null;
+    ArrayBlockingQueue<ByteBuffer> filled=new ArrayBlockingQueue<>(CHUNKS_AHEAD);
+    ArrayBlockingQueue<ByteBuffer> free=new ArrayBlockingQueue<>(CHUNKS_AHEAD+2);
+    volatile IOException error=null;
+
+    //chunk currently returned
+    ByteBuffer current=null;
+    boolean endOfStream=false;
+    volatile boolean open=true;
+
+    public ReadAheadChannel(InputStream in) {
+        this.in=in;
+        reader=new Thread(() -> readAhead(), "read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * loop of the reading thread
+     */
+    private void readAhead() {
+        try {
+            while (open) {
+                ByteBuffer chunk=free.poll();
+                if (chunk==null) {
+                    chunk=ByteBuffer.allocate(CHUNK_SIZE);
+                }
+                byte[] b=chunk.array();
+                int length=0;
+                int n=0;
+                while (length<b.length && (n=in.read(b, length, b.length-length))>-1) {
+                    length+=n;
+                }
+                if (length>0) {
+                    chunk.clear();
+                    chunk.limit(length);
+                    filled.put(chunk);
+                }
+                if (n<0) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            if (open) {
+                error=ex;
+            }
+        } catch (InterruptedException ex) {
+            //channel closed
+            return;
+        }
+        try {
+            filled.put(END);
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    /**
+     * copies the content read ahead to dst, waits only if nothing is
+     * ready yet
+     * @param dst
+     * @return number of bytes copied, -1 at the end of the stream
+     * @throws IOException
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        int n=0;
+        while (dst.hasRemaining() && !endOfStream) {
+            if (current==null || !current.hasRemaining()) {
+                if (current!=null) {
+                    free.offer(current);
+                }
+                //something was already copied, do not wait
+                current=(n>0)?filled.poll():take();
+                if (current==null) {
+                    break;
+                }
+                if (current==END) {
+                    endOfStream=true;
+                    current=null;
+                    if (error!=null) {
+                        throw error;
+                    }
+                    break;
+                }
+            }
+            int length=Math.min(dst.remaining(), current.remaining());
+            dst.put(current.array(), current.position(), length);
+            current.position(current.position()+length);
+            n+=length;
+        }
+        if (n==0 && dst.hasRemaining()) {
+            return -1;
+        }
+        return n;
+    }
+
+    private ByteBuffer take() throws IOException {
+        try {
+            return filled.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Decompression interrupted.", ex);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * stops the reading thread and closes the stream
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        open=false;
+        reader.interrupt();
+        in.close();
+    }
+
+}
@@ -14,6 +14,11 @@ public interface SequencePointer {
     public Fasta nextSequenceAsFastaObject();
     public int getContentSize();
     public double getContentMean();
+    /**
+     * proportion of the input read so far
+     * @return between 0 and 1
+     */
+    public double getProgress();
     public void closePointer();
     public void resetPointer();
     public void setPointerPosition(int fastaNumber);
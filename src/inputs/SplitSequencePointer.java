@@ -0,0 +1,420 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package inputs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads an uncompressed fasta/fastq file by byte ranges parsed on several
+ * threads, the sequences being returned in the order of the file.\n
+ * The file is cut every RANGE_SIZE bytes, each cut being moved forward to
+ * the start of the next record: a line starting with '>' for a fasta,
+ * for a fastq a line starting with '@' followed by a complete 4 lines
+ * record and by the start of another one (a quality line can start with
+ * '@'). Multi-line fastq records are never taken as boundaries, their
+ * ranges are merged with the following ones: a fastq is split only if
+ * its 1st records are 4 lines records, see isSplittable().\n
+ * Each range is parsed entirely by a FASTANioPointer or FASTQNioPointer
+ * limited to it. Ranges are submitted in order to the threads, the number
+ * of ranges in flight being bounded to avoid loading the whole file in
+ * memory.
+ * @author ben
+ */
+public class SplitSequencePointer implements SequencePointer {
+
+    public final static long RANGE_SIZE=1048576; // ranges of 1mo
+    private final static int SCAN_WINDOW=65536;
+
+    File myFile=null;
+    boolean fastq=false;
+    int threads=1;
+    FileChannel file=null;
+    long fileSize=0;
+
+    //boundary search, bytes of the file around the current cut
+    ByteBuffer window=null;
+    long windowOffset=0;
+    int windowLength=0;
+
+    ExecutorService executor=null;
+    //ranges submitted to the threads, in file order
+    ArrayDeque<Future<ArrayList<Fasta>>> pendingRanges=new ArrayDeque<>();
+    ArrayDeque<Long> pendingEnds=new ArrayDeque<>();
+    int maxPendingRanges=0;
+    long nextStart=0;
+
+    //range currently returned
+    ArrayList<Fasta> current=null;
+    int currentIndex=0;
+    long currentStart=0;
+    long currentEnd=0;
+
+    //sequences read so far
+    int size=0;
+    long residuesSum=0;
+
+    /**
+     *
+     * @param f uncompressed file
+     * @param fastq format of the file
+     * @param threads number of parsing threads
+     * @throws IOException
+     */
+    public SplitSequencePointer(File f, boolean fastq, int threads) throws IOException {
+        this.myFile=f;
+        this.fastq=fastq;
+        this.threads=Math.max(1, threads);
+        window=ByteBuffer.allocate(SCAN_WINDOW);
+        open();
+    }
+
+    private void open() throws IOException {
+        file=FileChannel.open(myFile.toPath(), StandardOpenOption.READ);
+        fileSize=file.size();
+        windowOffset=0;
+        windowLength=0;
+        executor=Executors.newFixedThreadPool(threads, (Runnable r) -> {
+            Thread t=new Thread(r, "query-parser");
+            t.setDaemon(true);
+            return t;
+        });
+        maxPendingRanges=threads+2;
+        pendingRanges.clear();
+        pendingEnds.clear();
+        nextStart=0;
+        current=null;
+        currentIndex=0;
+        currentStart=0;
+        currentEnd=0;
+        size=0;
+        residuesSum=0;
+    }
+
+    /**
+     * byte of the file, read through the window
+     * @param offset
+     * @return -1 beyond the end of the file
+     * @throws IOException
+     */
+    private int byteAt(long offset) throws IOException {
+        if (offset>=fileSize) {
+            return -1;
+        }
+        if (offset<windowOffset || offset>=windowOffset+windowLength) {
+            window.clear();
+            while (window.hasRemaining() && file.read(window, offset+window.position())>0) {}
+            windowOffset=offset;
+            windowLength=window.position();
+        }
+        return window.get((int)(offset-windowOffset)) & 0xFF;
+    }
+
+    /**
+     * start of the line following offset
+     * @param offset
+     * @return fileSize if there is none
+     * @throws IOException
+     */
+    private long nextLine(long offset) throws IOException {
+        int b;
+        while ((b=byteAt(offset))>-1) {
+            offset++;
+            if (b=='\n') {
+                return offset;
+            }
+        }
+        return fileSize;
+    }
+
+    /**
+     * number of symbols of a line, '\r' excluded
+     * @param offset start of the line
+     * @return
+     * @throws IOException
+     */
+    private int lineLength(long offset) throws IOException {
+        int length=0;
+        int b;
+        while ((b=byteAt(offset++))>-1 && b!='\n') {
+            if (b!='\r') {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * end of the 4 lines fastq record starting at offset
+     * @param offset start of a line
+     * @return -1 if the lines starting at offset are not a fastq record
+     * @throws IOException
+     */
+    private long fastqRecordEnd(long offset) throws IOException {
+        if (byteAt(offset)!='@') {
+            return -1;
+        }
+        long sequence=nextLine(offset);
+        long plus=nextLine(sequence);
+        if (byteAt(plus)!='+') {
+            return -1;
+        }
+        long quality=nextLine(plus);
+        if (quality>=fileSize || lineLength(sequence)!=lineLength(quality)) {
+            return -1;
+        }
+        return nextLine(quality);
+    }
+
+    /**
+     * moves a cut to the start of the next record
+     * @param offset
+     * @return the start of the 1st record at or after offset, fileSize if
+     * there is none
+     * @throws IOException
+     */
+    private long alignToRecord(long offset) throws IOException {
+        //start of a line
+        long line=(offset==0 || byteAt(offset-1)=='\n')?offset:nextLine(offset);
+        while (line<fileSize) {
+            if (!fastq) {
+                if (byteAt(line)=='>') {
+                    return line;
+                }
+            } else {
+                long end=fastqRecordEnd(line);
+                if (end>-1 && (end>=fileSize || fastqRecordEnd(end)>-1)) {
+                    return line;
+                }
+            }
+            line=nextLine(line);
+        }
+        return fileSize;
+    }
+
+    /**
+     * a fasta can always be split, a fastq only if the records at the
+     * start of the file are 4 lines records (otherwise no boundary might
+     * be found and the whole file would be scanned to place a cut)
+     * @return
+     * @throws IOException
+     */
+    public boolean isSplittable() throws IOException {
+        if (!fastq) {
+            return true;
+        }
+        long limit=Math.min(fileSize, SCAN_WINDOW);
+        //1st record
+        long line=0;
+        while (line<limit && byteAt(line)!='@') {
+            line=nextLine(line);
+        }
+        if (line>=limit) {
+            return false;
+        }
+        while (line<limit) {
+            line=fastqRecordEnd(line);
+            if (line<0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * parses a range, run by the parsing threads
+     * @param start
+     * @param end
+     * @return the sequences of the range
+     * @throws IOException
+     */
+    private ArrayList<Fasta> parseRange(long start, long end) throws IOException {
+        NioSequencePointer p=fastq?new FASTQNioPointer(myFile, start, end):new FASTANioPointer(myFile, start, end);
+        ArrayList<Fasta> sequences=new ArrayList<>();
+        try {
+            Fasta f=null;
+            while ((f=p.nextSequenceAsFastaObject())!=null) {
+                sequences.add(f);
+            }
+        } finally {
+            p.closePointer();
+        }
+        return sequences;
+    }
+
+    /**
+     * cuts the next ranges and submits them to the threads, up to the
+     * maximum number of ranges in flight
+     * @throws IOException
+     */
+    private void submitRanges() throws IOException {
+        while (nextStart<fileSize && pendingRanges.size()<maxPendingRanges) {
+            final long start=nextStart;
+            final long end=alignToRecord(start+RANGE_SIZE);
+            pendingRanges.add(executor.submit(() -> parseRange(start, end)));
+            pendingEnds.add(end);
+            nextStart=end;
+        }
+    }
+
+    /**
+     * waits for a range submitted to the parsing threads
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    private ArrayList<Fasta> waitForRange(Future<ArrayList<Fasta>> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Parsing interrupted.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * return the next fasta
+     * @return null at the end of the file
+     */
+    @Override
+    public Fasta nextSequenceAsFastaObject() {
+        try {
+            while (current==null || currentIndex==current.size()) {
+                submitRanges();
+                if (pendingRanges.isEmpty()) {
+                    current=null;
+                    return null;
+                }
+                current=waitForRange(pendingRanges.poll());
+                currentIndex=0;
+                currentStart=currentEnd;
+                currentEnd=pendingEnds.poll();
+            }
+            Fasta f=current.get(currentIndex);
+            //released once returned
+            current.set(currentIndex++, null);
+            size++;
+            residuesSum+=f.getSequence(false).length();
+            return f;
+        } catch (IOException ex) {
+            Logger.getLogger(SplitSequencePointer.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * return the next fasta, as text
+     * @return null at the end of the file
+     */
+    @Override
+    public StringBuffer nextSequenceAsFasta() {
+        Fasta f=nextSequenceAsFastaObject();
+        if (f==null) {
+            return null;
+        }
+        return new StringBuffer(f.getFormatedFasta()).append('\n');
+    }
+
+    /**
+     * number of sequences read so far, i.e. the number of sequences of
+     * the file once it was entirely read
+     * @return
+     */
+    @Override
+    public int getContentSize() {
+        return size;
+    }
+
+    /**
+     * mean length of the sequences read so far
+     * @return
+     */
+    @Override
+    public double getContentMean() {
+        if (size==0) {
+            return 0.0;
+        }
+        return ((double)residuesSum)/size;
+    }
+
+    /**
+     * proportion of the file read so far, interpolated in the current
+     * range
+     * @return
+     */
+    @Override
+    public double getProgress() {
+        if (fileSize==0) {
+            return 1.0;
+        }
+        double offset=currentEnd;
+        if (current!=null && current.size()>0) {
+            offset=currentStart+((double)currentIndex)/current.size()*(currentEnd-currentStart);
+        }
+        return offset/fileSize;
+    }
+
+    /**
+     * call it at the end of the parsing
+     */
+    @Override
+    public void closePointer() {
+        //ranges being parsed are not interrupted, an interrupted channel
+        //would be reported as a read error; they are short and the
+        //results are dropped
+        for (Future<ArrayList<Fasta>> f:pendingRanges) {
+            f.cancel(false);
+        }
+        executor.shutdown();
+        try {
+            file.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SplitSequencePointer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    @Override
+    public void resetPointer() {
+        try {
+            closePointer();
+            open();
+        } catch (IOException ex) {
+            Logger.getLogger(SplitSequencePointer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * moves the pointer before a sequence of the file; the records are not
+     * indexed, the file is read again from its start up to this sequence
+     * @param fastaNumber # sequences skipped, 0 for the 1st sequence
+     */
+    @Override
+    public void setPointerPosition(int fastaNumber) {
+        resetPointer();
+        for (int i = 0; i < fastaNumber; i++) {
+            if (nextSequenceAsFastaObject()==null) {
+                break;
+            }
+        }
+    }
+
+}
@@ -75,6 +75,9 @@ public class ArgumentsParser_v2 {
     public boolean onlyX1Nodes=false;
     public boolean jsondb=false;
     public boolean acceptUnrootedRefTree=false;
+    public boolean placementDB=false;
+    public int compressionBits=0; //0=PP* stored as floats, else 8 or 16
+    public boolean bloomFilter=false;
     
     //RAPPAS parameters for placement
     public int minOverlap=100; //used in entropy computation
@@ -84,6 +87,14 @@ public class ArgumentsParser_v2 {
     public int keepAtMost=7; //as in pplacer
     public float keepFactor=0.01f; //as in pplacer
     public boolean guppyCompatible=false;
+    public int threads=1;
+    public int duplicatesMemory=0; //in Mb, 0=no limit
+    public boolean earlyStop=false;
+    public int minimizerWindow=0; //0=all query k-mers looked up
+    public boolean minimizersReport=false;
+    public boolean sharedLookups=false;
+    public boolean integerScores=false;
+    public int rejectSample=0; //0=no pre-check of the queries
     
     //call string
     public String callString=null;
@@ -566,6 +577,33 @@ public class ArgumentsParser_v2 {
                         System.out.println("DB will be written as json.");
                     }
                     
+                    //test --compress-db
+                    if (argsMap.get(index).equals("--compress-db")) {
+                        String val=argsMap.get(index+1);
+                        try {
+                            this.compressionBits=Integer.parseInt(val);
+                            if (this.compressionBits!=8 && this.compressionBits!=16) {
+                                System.out.println("--compress-db must be 8 or 16.");
+                                System.exit(1);
+                            }
+                        } catch (NumberFormatException ex ) {
+                            System.out.println("Cannot parse '--compress-db' as an integer value.");
+                            System.exit(1);
+                        }
+                    }
+                    
+                    //test --bloom-filter
+                    if (argsMap.get(index).equals("--bloom-filter")) {
+                        this.bloomFilter=true;
+                        System.out.println("A Bloom filter of the k-mers will be stored with the DB.");
+                    }
+                    
+                    //test --placement-db
+                    if (argsMap.get(index).equals("--placement-db")) {
+                        this.placementDB=true;
+                        System.out.println("A placement DB will also be written.");
+                    }
+                    
                     //test --use_unrooted 
                     if (argsMap.get(index).equals("--use_unrooted")) {
                         this.acceptUnrootedRefTree=true;
@@ -693,6 +731,90 @@ public class ArgumentsParser_v2 {
                         System.out.println("Jplace format changed to be guppy-compatible.");
                     }
                     
+                    //test --threads
+                    if (argsMap.get(index).equals("--threads")) {
+                        String val=argsMap.get(index+1);
+                        try {
+                            this.threads=Integer.parseInt(val);
+                            if (this.threads<1) {
+                                this.threads=1;
+                                System.out.println("--threads set to 1 .");
+                            }
+                        } catch (NumberFormatException ex ) {
+                            System.out.println("Cannot parse '--threads' as an integer value.");
+                            System.exit(1);
+                        }
+                    }
+                    
+                    //test --dedup-memory
+                    if (argsMap.get(index).equals("--dedup-memory")) {
+                        String val=argsMap.get(index+1);
+                        try {
+                            this.duplicatesMemory=Integer.parseInt(val);
+                            if (this.duplicatesMemory<0) {
+                                this.duplicatesMemory=0;
+                                System.out.println("--dedup-memory set to 0 (no limit).");
+                            }
+                        } catch (NumberFormatException ex ) {
+                            System.out.println("Cannot parse '--dedup-memory' as an integer value.");
+                            System.exit(1);
+                        }
+                    }
+                    
+                    //test --early-stop
+                    if (argsMap.get(index).equals("--early-stop")) {
+                        this.earlyStop=true;
+                        System.out.println("Scan of query k-mers will stop once the best placement is certain.");
+                    }
+                    
+                    //test --minimizers
+                    if (argsMap.get(index).equals("--minimizers")) {
+                        String val=argsMap.get(index+1);
+                        try {
+                            this.minimizerWindow=Integer.parseInt(val);
+                            if (this.minimizerWindow<2) {
+                                this.minimizerWindow=0;
+                                System.out.println("--minimizers <2, all query k-mers will be used.");
+                            }
+                        } catch (NumberFormatException ex ) {
+                            System.out.println("Cannot parse '--minimizers' as an integer value.");
+                            System.exit(1);
+                        }
+                    }
+                    
+                    //test --shared-lookups
+                    if (argsMap.get(index).equals("--shared-lookups")) {
+                        this.sharedLookups=true;
+                        System.out.println("K-mers shared by queries of a same block will be looked up once.");
+                    }
+                    
+                    //test --integer-scores
+                    if (argsMap.get(index).equals("--integer-scores")) {
+                        this.integerScores=true;
+                        System.out.println("Queries will be scored with fixed-point integers.");
+                    }
+                    
+                    //test --reject-sample
+                    if (argsMap.get(index).equals("--reject-sample")) {
+                        String val=argsMap.get(index+1);
+                        try {
+                            this.rejectSample=Integer.parseInt(val);
+                            if (this.rejectSample<1) {
+                                this.rejectSample=0;
+                                System.out.println("--reject-sample <1, queries will not be pre-checked.");
+                            }
+                        } catch (NumberFormatException ex ) {
+                            System.out.println("Cannot parse '--reject-sample' as an integer value.");
+                            System.exit(1);
+                        }
+                    }
+                    
+                    //test --minimizers-report
+                    if (argsMap.get(index).equals("--minimizers-report")) {
+                        this.minimizersReport=true;
+                        System.out.println("Accuracy of the minimizers will be reported.");
+                    }
+                    
                     //////////////////////////////////////
                     //////////////////////////////////////
                     //DEBUG OPTIONS END HERE
@@ -759,6 +881,7 @@ public class ArgumentsParser_v2 {
         "-t (--reftree)    [file] Reference tree, in newick format.\n"+
         "-q (--queries)    [file[,file,...]] Fasta queries to place on the tree.\n" +
         "                  Can be a list of files separated by ','. (b|p phase)\n"+
+        "                  Fastq and gzip/bgzip files are also accepted.\n"+
         "-v (--verbosity)  [0] Verbosity level: -1=none ; 0=default ; 1=high\n" +  
         "-w (--workdir)    [path] Working directory for temp files. (b|p phase)\n" +  
         "\n" +
@@ -770,6 +893,39 @@ public class ArgumentsParser_v2 {
         "                  than (factor x best_likelihood_ratio). (p phase)\n" +      
         "--write-reduction [file] Write reduced alignment to file. (b phase)\n" +
         "--guppy-compat    [] Ensures output is Guppy compatible. (p phase)\n" +
+        "--threads         [1] # threads used to place queries. (p phase)\n" +
+        "--dedup-memory    [0] Memory (Mb) used to detect identical queries,\n" +
+        "                  above it data is written in the logs directory.\n" +
+        "                  0 means no limit. (p phase)\n" +
+        "--early-stop      [] Stop the scan of query k-mers once the best\n" +
+        "                  placement cannot change. Only the best placement\n" +
+        "                  is exact: the scores of the other placements,\n" +
+        "                  and so all like_weight_ratio, are extrapolated\n" +
+        "                  from the k-mers scanned. (p phase)\n" +
+        "--minimizers      [w] Look up only the (w,k)-minimizers of the queries,\n" +
+        "                  about 2/(w+1) of their k-mers. Scores are\n" +
+        "                  approximated. (p phase)\n" +
+        "--shared-lookups  [] Look up once the k-mers shared by the queries\n" +
+        "                  of a block (1000 queries), for redundant\n" +
+        "                  query sets such as amplicons. Queries are still\n" +
+        "                  scored one by one, scores are unchanged. (p phase)\n" +
+        "--integer-scores  [] Score with fixed-point integers instead of\n" +
+        "                  floats, scores are approximated. (p phase)\n" +
+        "--reject-sample   [int] Look up this # of k-mers of each query before\n" +
+        "                  scoring it, queries whose score cannot reach\n" +
+        "                  --nsbound given this sample are not scored\n" +
+        "                  (error<=1% if hits are spread along the query).\n" +
+        "                  They are written to logs/rejected_*.fasta, not\n" +
+        "                  to the not placed queries. (p phase)\n" +
+        "--minimizers-report [] Report the accuracy of several windows on the\n" +
+        "                  first queries, in the logs directory. (p phase)\n" +
+        "--placement-db    [] Also write a lighter DB (*.placement.union) which\n" +
+        "                  contains only what is used by the placement. (b phase)\n" +
+        "--compress-db     [8|16] Compress the DB, PP* are quantized on 8 or 16\n" +
+        "                  bits (scores are approximated). (b phase)\n" +
+        "--bloom-filter    [] Store a Bloom filter of the k-mers with the DB,\n" +
+        "                  absent query k-mers are rejected before the hash\n" +
+        "                  is read. Not used for small k (nucl k<=12). (b phase)\n" +
         "\n" +
         "Algo options:     Use only if you know what you are doing...    \n" +
         "---------------------------------------------------------------------\n"+
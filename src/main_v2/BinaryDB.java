@@ -0,0 +1,716 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package main_v2;
+
+import alignement.Alignment;
+import core.States;
+import core.hash.CharTable;
+import core.hash.FloatTable;
+import core.hash.FrozenHash;
+import core.hash.IntTable;
+import core.hash.LongTable;
+import etc.Infos;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import tree.ExtendedTree;
+import tree.PhyloTree;
+
+/**
+ * Binary format of the DB.\n
+ * The file starts with a header and a table of sections:\n
+ * [magic "RAPPASDB"][int version][int #sections]\n
+ * then for each section [int id][int 0][long offset][long length].\n
+ * Sections start on 8 bytes boundaries. The hash is stored as the tables
+ * of its frozen version (see FrozenHash), which are memory-mapped at load,
+ * no object is rebuilt and several placement processes on the same host
+ * share the same pages. Trees, alignment and node mapping are small compared
+ * to the hash and keep java serialization, each in its own section.\n
+ * All values are little-endian.\n
+ * At load, only the requested sections are read (see SessionNext_v2.LOAD_*),
+ * and independent sections are decoded on several threads.\n
+ * The placement uses only the jplace edge ids and branch lengths of the
+ * original tree, stored as primitive arrays with the jplace newick. A
+ * placement DB contains only these sections, the hash, the parameters and
+ * the states: alignment, trees and node mapping are not written.\n
+ * A compressed hash (see FrozenHash.compress()) replaces the nodeIds and
+ * PP* sections by the quantization parameters and the postings section.\n
+ * The Bloom filter of the hash (see FrozenHash.buildBloomFilter()), when
+ * it was built, is stored in its own section and mapped as the tables.\n
+ * A single mapping cannot exceed 2Gb: the tables of the hash are mapped
+ * by windows of MAP_WINDOW_SIZE bytes, so that a section has no size
+ * limit (see IntTable, LongTable, CharTable, FloatTable). The postings
+ * of a compressed hash and the Bloom filter are smaller than 2Gb by
+ * construction and are mapped as a single buffer.
+ * @author ben
+ */
+public class BinaryDB {
+
+    public static final byte[] MAGIC={'R','A','P','P','A','S','D','B'};
+    public static final int VERSION=1;
+
+    //sections ids, never change existing ones
+    public static final int SECTION_PARAMETERS=1;
+    public static final int SECTION_STATES=2;
+    public static final int SECTION_ALIGNMENT=3;
+    public static final int SECTION_ORIGINAL_TREE=4;
+    public static final int SECTION_EXTENDED_TREE=5;
+    public static final int SECTION_AR_TREE=6;
+    public static final int SECTION_NODE_MAPPING=7;
+    public static final int SECTION_HASH_PARAMETERS=8;
+    public static final int SECTION_HASH_KEYS=9;
+    public static final int SECTION_HASH_ROWS=10;
+    public static final int SECTION_HASH_OFFSETS=11;
+    public static final int SECTION_HASH_NODEIDS=12;
+    public static final int SECTION_HASH_PPSTARS=13;
+    public static final int SECTION_PLACEMENT_EDGE_IDS=14;
+    public static final int SECTION_PLACEMENT_BRANCH_LENGTHS=15;
+    public static final int SECTION_PLACEMENT_TREE=16;
+    public static final int SECTION_HASH_QUANTIZATION=17;
+    public static final int SECTION_HASH_POSTINGS=18;
+    public static final int SECTION_HASH_BLOOM=19;
+
+    private static final int SECTION_ENTRY_SIZE=24;
+    private static final int CHUNK_SIZE=2097152; // buffer of 2mo
+    //sections of the hash are mapped by windows of 1Go, a power of 2
+    //multiple of all value sizes
+    private static final long MAP_WINDOW_SIZE=1L<<30;
+
+    /**
+     * test the magic number of a file
+     * @param f
+     * @return true if f is a DB in binary format
+     */
+    public static boolean isBinaryDB(File f) {
+        try (FileChannel ch=FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer b=ByteBuffer.allocate(MAGIC.length);
+            while (b.hasRemaining() && ch.read(b)>-1) {}
+            return !b.hasRemaining() && Arrays.equals(b.array(), MAGIC);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @param s the session, its hash field is not used
+     * @param h the frozen version of the hash
+     * @param f
+     * @param placementOnly if true, alignment, trees and node mapping
+     * are not written
+     * @throws IOException
+     */
+    public static void store(SessionNext_v2 s, FrozenHash h, File f, boolean placementOnly) throws IOException {
+        s.preparePlacementTree();
+        //sections, in the order they are written
+        ArrayList<Integer> ids=new ArrayList<>();
+        ids.add(SECTION_PARAMETERS);
+        ids.add(SECTION_STATES);
+        if (!placementOnly) {
+            ids.add(SECTION_ALIGNMENT);
+            ids.add(SECTION_ORIGINAL_TREE);
+            ids.add(SECTION_EXTENDED_TREE);
+            ids.add(SECTION_AR_TREE);
+            ids.add(SECTION_NODE_MAPPING);
+        }
+        ids.add(SECTION_PLACEMENT_EDGE_IDS);
+        ids.add(SECTION_PLACEMENT_BRANCH_LENGTHS);
+        ids.add(SECTION_PLACEMENT_TREE);
+        ids.add(SECTION_HASH_PARAMETERS);
+        if (!h.isDirectAddress()) {
+            ids.add(SECTION_HASH_KEYS);
+            ids.add(SECTION_HASH_ROWS);
+        }
+        ids.add(SECTION_HASH_OFFSETS);
+        if (h.isCompressed()) {
+            ids.add(SECTION_HASH_QUANTIZATION);
+            ids.add(SECTION_HASH_POSTINGS);
+        } else {
+            ids.add(SECTION_HASH_NODEIDS);
+            ids.add(SECTION_HASH_PPSTARS);
+        }
+        if (h.getBloomFilter()!=null) {
+            ids.add(SECTION_HASH_BLOOM);
+        }
+
+        long[] offsets=new long[ids.size()];
+        long[] lengths=new long[ids.size()];
+
+        try (FileChannel ch=FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer chunk=ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            //sections start after the header
+            long position=align(MAGIC.length+8+SECTION_ENTRY_SIZE*ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                offsets[i]=position;
+                ch.position(position);
+                switch (ids.get(i)) {
+                    case SECTION_PARAMETERS:
+                        chunk.clear();
+                        chunk.putInt(s.k);
+                        chunk.putInt(s.minK);
+                        chunk.putFloat(s.alpha);
+                        chunk.putInt(s.branchPerEdge);
+                        chunk.putFloat(s.stateThreshold);
+                        chunk.putFloat(s.PPStarThreshold);
+                        chunk.putFloat(s.PPStarThresholdAsLog10);
+                        chunk.putFloat(s.calibrationNormScore);
+                        chunk.putInt(s.onlyFakes?1:0);
+                        chunk.flip();
+                        lengths[i]=writeFully(ch, chunk);
+                        break;
+                    case SECTION_STATES:
+                        lengths[i]=writeFully(ch, ByteBuffer.wrap(serialize(s.states)));
+                        break;
+                    case SECTION_ALIGNMENT:
+                        lengths[i]=writeFully(ch, ByteBuffer.wrap(serialize(s.align)));
+                        break;
+                    case SECTION_ORIGINAL_TREE:
+                        lengths[i]=writeFully(ch, ByteBuffer.wrap(serialize(s.originalTree)));
+                        break;
+                    case SECTION_EXTENDED_TREE:
+                        lengths[i]=writeFully(ch, ByteBuffer.wrap(serialize(s.extendedTree)));
+                        break;
+                    case SECTION_AR_TREE:
+                        lengths[i]=writeFully(ch, ByteBuffer.wrap(serialize(s.ARTree)));
+                        break;
+                    case SECTION_NODE_MAPPING:
+                        lengths[i]=writeFully(ch, ByteBuffer.wrap(serialize(s.nodeMapping)));
+                        break;
+                    case SECTION_PLACEMENT_EDGE_IDS:
+                        lengths[i]=writeInts(ch, chunk, IntBuffer.wrap(s.jplaceEdgeIds));
+                        break;
+                    case SECTION_PLACEMENT_BRANCH_LENGTHS:
+                        lengths[i]=writeFloats(ch, chunk, FloatBuffer.wrap(s.branchLengths));
+                        break;
+                    case SECTION_PLACEMENT_TREE:
+                        lengths[i]=writeFully(ch, ByteBuffer.wrap(s.jplaceTree.getBytes(StandardCharsets.UTF_8)));
+                        break;
+                    case SECTION_HASH_PARAMETERS:
+                        chunk.clear();
+                        chunk.putInt(h.getK());
+                        chunk.putInt(h.getBitsPerState());
+                        chunk.putInt(h.isDirectAddress()?1:0);
+                        chunk.putInt(h.getWordCount());
+                        chunk.flip();
+                        lengths[i]=writeFully(ch, chunk);
+                        break;
+                    case SECTION_HASH_KEYS:
+                        lengths[i]=writeLongs(ch, chunk, h.getKeys());
+                        break;
+                    case SECTION_HASH_ROWS:
+                        lengths[i]=writeInts(ch, chunk, h.getRows());
+                        break;
+                    case SECTION_HASH_OFFSETS:
+                        lengths[i]=writeInts(ch, chunk, h.getOffsets());
+                        break;
+                    case SECTION_HASH_NODEIDS:
+                        lengths[i]=writeChars(ch, chunk, h.getNodeIds());
+                        break;
+                    case SECTION_HASH_PPSTARS:
+                        lengths[i]=writeFloats(ch, chunk, h.getPPStars());
+                        break;
+                    case SECTION_HASH_QUANTIZATION:
+                        chunk.clear();
+                        chunk.putInt(h.getQuantizationBits());
+                        chunk.putFloat(h.getQuantizationMin());
+                        chunk.putFloat(h.getQuantizationStep());
+                        chunk.putInt(h.getPairCount());
+                        chunk.flip();
+                        lengths[i]=writeFully(ch, chunk);
+                        break;
+                    case SECTION_HASH_POSTINGS:
+                        lengths[i]=writeBytes(ch, chunk, h.getPostings());
+                        break;
+                    case SECTION_HASH_BLOOM:
+                        lengths[i]=writeLongs(ch, chunk, h.getBloomFilter());
+                        break;
+                }
+                position=align(offsets[i]+lengths[i]);
+            }
+
+            //header and table of sections, written at the end
+            //so that an incomplete file has no magic number
+            ByteBuffer header=ByteBuffer.allocate(MAGIC.length+8+SECTION_ENTRY_SIZE*ids.size()).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                header.putInt(ids.get(i));
+                header.putInt(0);
+                header.putLong(offsets[i]);
+                header.putLong(lengths[i]);
+            }
+            header.flip();
+            ch.position(0);
+            writeFully(ch, header);
+        }
+    }
+
+    /**
+     * only the requested sections are decoded, independent sections
+     * are decoded concurrently
+     * @param f
+     * @param sections combination of SessionNext_v2.LOAD_* flags
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static SessionNext_v2 load(File f, int sections) throws IOException, ClassNotFoundException {
+        try (FileChannel ch=FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            //header
+            ByteBuffer header=readFully(ch, 0, MAGIC.length+8);
+            byte[] magic=new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a binary RAPPAS DB: "+f.getAbsolutePath());
+            }
+            int version=header.getInt();
+            if (version>VERSION) {
+                throw new IOException("DB format version "+version+" is not supported by this RAPPAS version (max="+VERSION+"), please update RAPPAS.");
+            }
+            int sectionCount=header.getInt();
+            //table of sections
+            HashMap<Integer,long[]> table=new HashMap<>();
+            ByteBuffer tableBuffer=readFully(ch, MAGIC.length+8, SECTION_ENTRY_SIZE*sectionCount);
+            for (int i = 0; i < sectionCount; i++) {
+                int id=tableBuffer.getInt();
+                tableBuffer.getInt();
+                table.put(id, new long[]{tableBuffer.getLong(),tableBuffer.getLong()});
+            }
+
+            //parameters and states are always loaded
+            ByteBuffer params=readSection(ch, table, SECTION_PARAMETERS);
+            int k=params.getInt();
+            int minK=params.getInt();
+            float alpha=params.getFloat();
+            int branchPerEdge=params.getInt();
+            float stateThreshold=params.getFloat();
+            float PPStarThreshold=params.getFloat();
+            float PPStarThresholdAsLog10=params.getFloat();
+            SessionNext_v2 s=new SessionNext_v2(k, minK, alpha, branchPerEdge, stateThreshold, PPStarThreshold, PPStarThresholdAsLog10);
+            s.calibrationNormScore=params.getFloat();
+            s.onlyFakes=(params.getInt()==1);
+            Infos.println("Loading States");
+            s.states=(States)deserialize(readSection(ch, table, SECTION_STATES));
+
+            //trees and mapping of AR nodes, needed at placement only
+            //if the hash contains kmers of original nodes
+            if (((sections & SessionNext_v2.LOAD_ORIGINAL_NODES_MAPPING)!=0) && !s.onlyFakes) {
+                sections|=SessionNext_v2.LOAD_EXTENDED_TREE|SessionNext_v2.LOAD_AR_TREE|SessionNext_v2.LOAD_NODE_MAPPING;
+            }
+            //DBs written before the placement sections existed,
+            //the arrays are extracted from the original tree
+            boolean extractPlacementTree=false;
+            if (((sections & SessionNext_v2.LOAD_PLACEMENT_TREE)!=0) && !table.containsKey(SECTION_PLACEMENT_EDGE_IDS)) {
+                sections|=SessionNext_v2.LOAD_ORIGINAL_TREE;
+                extractPlacementTree=true;
+            }
+
+            //1 task per independent section
+            ArrayList<Callable<Void>> tasks=new ArrayList<>();
+            if ((sections & SessionNext_v2.LOAD_ALIGNMENT)!=0) {
+                tasks.add(() -> {
+                    Infos.println("Loading Alignment");
+                    s.align=(Alignment)deserialize(readSection(ch, table, SECTION_ALIGNMENT));
+                    return null;
+                });
+            }
+            if ((sections & SessionNext_v2.LOAD_ORIGINAL_TREE)!=0) {
+                tasks.add(() -> {
+                    Infos.println("Loading Original Tree");
+                    s.originalTree=(PhyloTree)deserialize(readSection(ch, table, SECTION_ORIGINAL_TREE));
+                    return null;
+                });
+            }
+            if ((sections & SessionNext_v2.LOAD_EXTENDED_TREE)!=0) {
+                tasks.add(() -> {
+                    Infos.println("Loading Extended Tree");
+                    s.extendedTree=(ExtendedTree)deserialize(readSection(ch, table, SECTION_EXTENDED_TREE));
+                    return null;
+                });
+            }
+            if ((sections & SessionNext_v2.LOAD_AR_TREE)!=0) {
+                tasks.add(() -> {
+                    Infos.println("Loading AR Tree");
+                    s.ARTree=(PhyloTree)deserialize(readSection(ch, table, SECTION_AR_TREE));
+                    return null;
+                });
+            }
+            if ((sections & SessionNext_v2.LOAD_NODE_MAPPING)!=0) {
+                tasks.add(() -> {
+                    Infos.println("Loading of AR node mappings");
+                    //written from the same type, the generic cast is safe
+                    @SuppressWarnings("unchecked")
+                    HashMap<Integer,Integer> nodeMapping=(HashMap<Integer,Integer>)deserialize(readSection(ch, table, SECTION_NODE_MAPPING));
+                    s.nodeMapping=nodeMapping;
+                    return null;
+                });
+            }
+            if (((sections & SessionNext_v2.LOAD_PLACEMENT_TREE)!=0) && !extractPlacementTree) {
+                tasks.add(() -> {
+                    Infos.println("Loading Placement Tree");
+                    int[] edgeIds=new int[(int)getSection(table, SECTION_PLACEMENT_EDGE_IDS)[1]/4];
+                    readSection(ch, table, SECTION_PLACEMENT_EDGE_IDS).asIntBuffer().get(edgeIds);
+                    float[] lengths=new float[(int)getSection(table, SECTION_PLACEMENT_BRANCH_LENGTHS)[1]/4];
+                    readSection(ch, table, SECTION_PLACEMENT_BRANCH_LENGTHS).asFloatBuffer().get(lengths);
+                    ByteBuffer tree=readSection(ch, table, SECTION_PLACEMENT_TREE);
+                    s.jplaceTree=new String(tree.array(), tree.position(), tree.remaining(), StandardCharsets.UTF_8);
+                    s.branchLengths=lengths;
+                    s.jplaceEdgeIds=edgeIds;
+                    return null;
+                });
+            }
+            if ((sections & SessionNext_v2.LOAD_HASH)!=0) {
+                if (!s.onlyFakes) {
+                    System.out.println("Loaded DB only also contain ancestral kmers associated to original nodes.");
+                }
+                tasks.add(() -> {
+                    Infos.println("Mapping Hash");
+                    s.frozenHash=mapHash(ch, table);
+                    return null;
+                });
+            }
+
+            if (tasks.size()>0) {
+                int threads=Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+                ExecutorService executor=Executors.newFixedThreadPool(threads);
+                try {
+                    for (Future<Void> future:executor.invokeAll(tasks)) {
+                        future.get();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("DB loading interrupted.", ex);
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof IOException) {
+                        throw (IOException)ex.getCause();
+                    }
+                    if (ex.getCause() instanceof ClassNotFoundException) {
+                        throw (ClassNotFoundException)ex.getCause();
+                    }
+                    throw new IOException(ex.getCause());
+                } finally {
+                    executor.shutdown();
+                }
+            }
+            if (extractPlacementTree) {
+                s.preparePlacementTree();
+            }
+            return s;
+        }
+    }
+    
+    /**
+     * maps the tables of the frozen hash
+     * @param ch
+     * @param table
+     * @return
+     * @throws IOException 
+     */
+    private static FrozenHash mapHash(FileChannel ch, HashMap<Integer,long[]> table) throws IOException {
+        ByteBuffer hashParams=readSection(ch, table, SECTION_HASH_PARAMETERS);
+        int hashK=hashParams.getInt();
+        int bitsPerState=hashParams.getInt();
+        boolean directAddress=(hashParams.getInt()==1);
+        int wordCount=hashParams.getInt();
+        LongTable keys=null;
+        IntTable rows=null;
+        if (!directAddress) {
+            keys=mapLongs(ch, table, SECTION_HASH_KEYS);
+            rows=mapInts(ch, table, SECTION_HASH_ROWS);
+        }
+        FrozenHash h=null;
+        if (table.containsKey(SECTION_HASH_POSTINGS)) {
+            ByteBuffer quantization=readSection(ch, table, SECTION_HASH_QUANTIZATION);
+            h=new FrozenHash(
+                    hashK,
+                    bitsPerState,
+                    directAddress,
+                    wordCount,
+                    keys,
+                    rows,
+                    mapInts(ch, table, SECTION_HASH_OFFSETS),
+                    quantization.getInt(),
+                    quantization.getFloat(),
+                    quantization.getFloat(),
+                    quantization.getInt(),
+                    mapSection(ch, table, SECTION_HASH_POSTINGS)
+            );
+        } else {
+            h=new FrozenHash(
+                    hashK,
+                    bitsPerState,
+                    directAddress,
+                    wordCount,
+                    keys,
+                    rows,
+                    mapInts(ch, table, SECTION_HASH_OFFSETS),
+                    mapChars(ch, table, SECTION_HASH_NODEIDS),
+                    mapFloats(ch, table, SECTION_HASH_PPSTARS)
+            );
+        }
+        if (table.containsKey(SECTION_HASH_BLOOM)) {
+            h.setBloomFilter(mapSection(ch, table, SECTION_HASH_BLOOM).asLongBuffer());
+            Infos.println("Bloom filter of the hash: "+(8L*h.getBloomFilter().capacity()/1024)+" ko");
+        }
+        return h;
+    }
+
+
+    private static long align(long position) {
+        return (position+7) & ~7L;
+    }
+
+    private static long writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+        long length=b.remaining();
+        while (b.hasRemaining()) {
+            ch.write(b);
+        }
+        return length;
+    }
+
+    private static long writeBytes(FileChannel ch, ByteBuffer chunk, ByteBuffer src) throws IOException {
+        long length=0;
+        ByteBuffer values=src.duplicate();
+        values.clear();
+        while (values.hasRemaining()) {
+            chunk.clear();
+            int n=Math.min(chunk.remaining(), values.remaining());
+            ByteBuffer part=values.duplicate();
+            part.limit(values.position()+n);
+            chunk.put(part);
+            values.position(values.position()+n);
+            chunk.flip();
+            length+=writeFully(ch, chunk);
+        }
+        return length;
+    }
+
+    private static long writeLongs(FileChannel ch, ByteBuffer chunk, LongTable src) throws IOException {
+        long length=0;
+        for (LongBuffer window:src.getWindows()) {
+            length+=writeLongs(ch, chunk, window);
+        }
+        return length;
+    }
+
+    private static long writeLongs(FileChannel ch, ByteBuffer chunk, LongBuffer src) throws IOException {
+        long length=0;
+        LongBuffer values=src.duplicate();
+        values.clear();
+        while (values.hasRemaining()) {
+            chunk.clear();
+            LongBuffer view=chunk.asLongBuffer();
+            int n=Math.min(view.remaining(), values.remaining());
+            LongBuffer part=values.duplicate();
+            part.limit(values.position()+n);
+            view.put(part);
+            values.position(values.position()+n);
+            chunk.limit(n*8);
+            length+=writeFully(ch, chunk);
+        }
+        return length;
+    }
+
+    private static long writeInts(FileChannel ch, ByteBuffer chunk, IntTable src) throws IOException {
+        long length=0;
+        for (IntBuffer window:src.getWindows()) {
+            length+=writeInts(ch, chunk, window);
+        }
+        return length;
+    }
+
+    private static long writeInts(FileChannel ch, ByteBuffer chunk, IntBuffer src) throws IOException {
+        long length=0;
+        IntBuffer values=src.duplicate();
+        values.clear();
+        while (values.hasRemaining()) {
+            chunk.clear();
+            IntBuffer view=chunk.asIntBuffer();
+            int n=Math.min(view.remaining(), values.remaining());
+            IntBuffer part=values.duplicate();
+            part.limit(values.position()+n);
+            view.put(part);
+            values.position(values.position()+n);
+            chunk.limit(n*4);
+            length+=writeFully(ch, chunk);
+        }
+        return length;
+    }
+
+    private static long writeChars(FileChannel ch, ByteBuffer chunk, CharTable src) throws IOException {
+        long length=0;
+        for (CharBuffer window:src.getWindows()) {
+            length+=writeChars(ch, chunk, window);
+        }
+        return length;
+    }
+
+    private static long writeChars(FileChannel ch, ByteBuffer chunk, CharBuffer src) throws IOException {
+        long length=0;
+        CharBuffer values=src.duplicate();
+        values.clear();
+        while (values.hasRemaining()) {
+            chunk.clear();
+            CharBuffer view=chunk.asCharBuffer();
+            int n=Math.min(view.remaining(), values.remaining());
+            CharBuffer part=values.duplicate();
+            part.limit(values.position()+n);
+            view.put(part);
+            values.position(values.position()+n);
+            chunk.limit(n*2);
+            length+=writeFully(ch, chunk);
+        }
+        return length;
+    }
+
+    private static long writeFloats(FileChannel ch, ByteBuffer chunk, FloatTable src) throws IOException {
+        long length=0;
+        for (FloatBuffer window:src.getWindows()) {
+            length+=writeFloats(ch, chunk, window);
+        }
+        return length;
+    }
+
+    private static long writeFloats(FileChannel ch, ByteBuffer chunk, FloatBuffer src) throws IOException {
+        long length=0;
+        FloatBuffer values=src.duplicate();
+        values.clear();
+        while (values.hasRemaining()) {
+            chunk.clear();
+            FloatBuffer view=chunk.asFloatBuffer();
+            int n=Math.min(view.remaining(), values.remaining());
+            FloatBuffer part=values.duplicate();
+            part.limit(values.position()+n);
+            view.put(part);
+            values.position(values.position()+n);
+            chunk.limit(n*4);
+            length+=writeFully(ch, chunk);
+        }
+        return length;
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long position, int length) throws IOException {
+        ByteBuffer b=ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining()) {
+            if (ch.read(b, position+b.position())<0) {
+                throw new IOException("Unexpected end of DB file, the file may be truncated.");
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    private static long[] getSection(HashMap<Integer,long[]> sections, int id) throws IOException {
+        long[] section=sections.get(id);
+        if (section==null) {
+            throw new IOException("Section "+id+" not found in DB file (placement DBs contain only the sections used by the placement).");
+        }
+        return section;
+    }
+
+    private static ByteBuffer readSection(FileChannel ch, HashMap<Integer,long[]> sections, int id) throws IOException {
+        long[] section=getSection(sections, id);
+        return readFully(ch, section[0], (int)section[1]);
+    }
+
+    private static ByteBuffer mapSection(FileChannel ch, HashMap<Integer,long[]> sections, int id) throws IOException {
+        long[] section=getSection(sections, id);
+        return ch.map(FileChannel.MapMode.READ_ONLY, section[0], section[1]).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * maps a section by windows of MAP_WINDOW_SIZE bytes, the last one
+     * being shorter
+     * @param ch
+     * @param sections
+     * @param id
+     * @return
+     * @throws IOException
+     */
+    private static ByteBuffer[] mapWindows(FileChannel ch, HashMap<Integer,long[]> sections, int id) throws IOException {
+        long[] section=getSection(sections, id);
+        int count=(int)Math.max(1, (section[1]+MAP_WINDOW_SIZE-1)/MAP_WINDOW_SIZE);
+        ByteBuffer[] windows=new ByteBuffer[count];
+        for (int w = 0; w < count; w++) {
+            long start=w*MAP_WINDOW_SIZE;
+            long length=Math.min(MAP_WINDOW_SIZE, section[1]-start);
+            windows[w]=ch.map(FileChannel.MapMode.READ_ONLY, section[0]+start, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return windows;
+    }
+
+    private static LongTable mapLongs(FileChannel ch, HashMap<Integer,long[]> sections, int id) throws IOException {
+        ByteBuffer[] windows=mapWindows(ch, sections, id);
+        LongBuffer[] values=new LongBuffer[windows.length];
+        for (int w = 0; w < windows.length; w++) {
+            values[w]=windows[w].asLongBuffer();
+        }
+        return new LongTable(values);
+    }
+
+    private static IntTable mapInts(FileChannel ch, HashMap<Integer,long[]> sections, int id) throws IOException {
+        ByteBuffer[] windows=mapWindows(ch, sections, id);
+        IntBuffer[] values=new IntBuffer[windows.length];
+        for (int w = 0; w < windows.length; w++) {
+            values[w]=windows[w].asIntBuffer();
+        }
+        return new IntTable(values);
+    }
+
+    private static CharTable mapChars(FileChannel ch, HashMap<Integer,long[]> sections, int id) throws IOException {
+        ByteBuffer[] windows=mapWindows(ch, sections, id);
+        CharBuffer[] values=new CharBuffer[windows.length];
+        for (int w = 0; w < windows.length; w++) {
+            values[w]=windows[w].asCharBuffer();
+        }
+        return new CharTable(values);
+    }
+
+    private static FloatTable mapFloats(FileChannel ch, HashMap<Integer,long[]> sections, int id) throws IOException {
+        ByteBuffer[] windows=mapWindows(ch, sections, id);
+        FloatBuffer[] values=new FloatBuffer[windows.length];
+        for (int w = 0; w < windows.length; w++) {
+            values[w]=windows[w].asFloatBuffer();
+        }
+        return new FloatTable(values);
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream bos=new ByteArrayOutputStream();
+        try (ObjectOutputStream oos=new ObjectOutputStream(bos)) {
+            oos.writeObject(o);
+        }
+        return bos.toByteArray();
+    }
+
+    private static Object deserialize(ByteBuffer b) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois=new ObjectInputStream(new ByteArrayInputStream(b.array(), b.position(), b.remaining()))) {
+            return ois.readObject();
+        }
+    }
+
+}
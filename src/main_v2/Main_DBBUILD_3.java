@@ -98,6 +98,9 @@ public class Main_DBBUILD_3 {
      * @param onlyX1Nodes 
      * @param jsondb 
      * @param acceptUnrootedRefTree 
+     * @param placementDB also writes a DB containing only the sections used by the placement 
+     * @param compressionBits 0, or 8|16 to quantize the PP* of the stored DB 
+     * @param bloomFilter stores a Bloom filter of the k-mers with the DB 
      * @throws java.io.FileNotFoundException 
      * @throws java.lang.ClassNotFoundException 
      */
@@ -133,7 +136,10 @@ public class Main_DBBUILD_3 {
                                         String arparameters,
                                         boolean onlyX1Nodes,
                                         boolean jsondb,
-                                        boolean acceptUnrootedRefTree
+                                        boolean acceptUnrootedRefTree,
+                                        boolean placementDB,
+                                        int compressionBits,
+                                        boolean bloomFilter
                                     ) throws FileNotFoundException, IOException, ClassNotFoundException {
         
 
@@ -491,6 +497,10 @@ public class Main_DBBUILD_3 {
             //are set after instanciation
             //session.states
             session.associateStates(s);
+            //session.compressionBits
+            session.compressionBits=compressionBits;
+            //session.bloomFilter
+            session.bloomFilter=bloomFilter;
             //session.originalTree
             //session.extendedTree
             //session.ARTree
@@ -834,6 +844,7 @@ public class Main_DBBUILD_3 {
             File dbsmall=new File(db.getAbsoluteFile()+".small");
             File dbunion=new File(db.getAbsoluteFile()+".union");
             File dbunionjson=new File(db.getAbsoluteFile()+".json");
+            File dbunionplacement=new File(db.getAbsoluteFile()+".placement.union");
             //File dbsmallunion=new File(db.getAbsoluteFile()+".sunion");
             
             
@@ -891,7 +902,7 @@ public class Main_DBBUILD_3 {
                     Main_PLACEMENT_v07 placer=new Main_PLACEMENT_v07(session,dbInRAM);
                     for (int i = 0; i < queries.size(); i++) {
                         File query = queries.get(i);
-                        placer.doPlacements(query, dbmedium, workDir, callString, nsBound,keepAtMost,keepRatio,false);
+                        placer.doPlacements(query, dbmedium, workDir, callString, nsBound,keepAtMost,keepRatio);
                     }
                     //reduction to small DB
                     System.out.println("Reduction to small DB...");
@@ -904,7 +915,7 @@ public class Main_DBBUILD_3 {
                     placer=new Main_PLACEMENT_v07(session,dbInRAM);
                     for (int i = 0; i < queries.size(); i++) {
                         File query = queries.get(i);
-                        placer.doPlacements(query, dbmedium, workDir, callString, nsBound,keepAtMost,keepRatio,false);
+                        placer.doPlacements(query, dbmedium, workDir, callString, nsBound,keepAtMost,keepRatio);
                     }
                     
                 } else  if (session.hash.getHashType()==CustomHash_v2.NODES_UNION) {
@@ -935,7 +946,7 @@ public class Main_DBBUILD_3 {
                     Main_PLACEMENT_v07 placer=new Main_PLACEMENT_v07(session,dbInRAM);
                     for (int i = 0; i < queries.size(); i++) {
                         File query = queries.get(i);
-                        placer.doPlacements(query, dbunion, workDir, callString, nsBound,keepAtMost,keepRatio,false);
+                        placer.doPlacements(query, dbunion, workDir, callString, nsBound,keepAtMost,keepRatio);
                     }
                     //reduction to small DB
                     //System.out.println("Reduction to small union DB...");
@@ -1168,6 +1179,12 @@ public class Main_DBBUILD_3 {
                 if (!jsondb) {
                     session.storeHash(dbunion);
                     Infos.println("DB UNION: "+Environement.getFileSize(dbunion)+" Mb saved");
+                    if (placementDB) {
+                        System.out.println("Serialization of the placement database...");
+                        if (session.storePlacementDB(dbunionplacement)) {
+                            Infos.println("DB PLACEMENT: "+Environement.getFileSize(dbunionplacement)+" Mb saved");
+                        }
+                    }
                 } else {
                     session.saveToJSON(dbunionjson);
                     Infos.println("DB UNION: "+Environement.getFileSize(dbunionjson)+" Mb saved");
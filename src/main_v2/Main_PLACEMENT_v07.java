@@ -10,18 +10,16 @@ import core.algos.PlacementProcess;
 import core.algos.SequenceKnife;
 import etc.Environement;
 import etc.Infos;
-import inputs.FASTAPointer;
+import inputs.NioSequencePointer;
+import inputs.SequencePointer;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import tree.NewickWriter;
+import outputs.JplaceWriter;
 
 /**
  * Algo in this version:
@@ -68,6 +66,31 @@ public class Main_PLACEMENT_v07 {
     
 
     
+    /**
+     * placement with the default options: single thread, no guppy
+     * compatibility, no limit on the register of identical queries, all
+     * words of the queries scanned with float scores, no rejection before
+     * the scan; used by the placements done during the DB build
+     * @param q
+     * @param db if null, will attempt debug operation (--dbinram)
+     * @param workDir
+     * @param callString
+     * @param nsBound
+     * @param keepAtMost
+     * @param keepRatio
+     * @return 
+     */
+    public int doPlacements(    File q,
+                                File db,
+                                File workDir,
+                                String callString,
+                                Float nsBound,
+                                int keepAtMost,
+                                float keepRatio) {
+        return doPlacements(q, db, workDir, callString, nsBound, keepAtMost, keepRatio,
+                            false, 1, 0, false, 0, false, false, false, 0);
+    }
+    
     /**
      * 
      * @param q
@@ -77,6 +100,15 @@ public class Main_PLACEMENT_v07 {
      * @param nsBound
      * @param keepAtMost
      * @param keepRatio
+     * @param guppyCompatible
+     * @param threads number of threads used for the placement
+     * @param duplicatesMemory memory (Mb) of the register of identical queries, 0 for no limit
+     * @param earlyStop stop the scan of the query words once the best node is certain
+     * @param minimizerWindow if &gt;1, only the minimizers of the queries are looked up
+     * @param minimizersReport report the accuracy of several minimizer windows
+     * @param sharedLookups look up once the words shared by the queries of a block
+     * @param integerScores score with fixed-point integers
+     * @param rejectSample if &gt;0, # words probed to reject a query before its scan
      * @return 
      */
     public int doPlacements(    File q,
@@ -86,7 +118,15 @@ public class Main_PLACEMENT_v07 {
                                 Float nsBound,
                                 int keepAtMost,
                                 float keepRatio,
-                                boolean guppyCompatible) {
+                                boolean guppyCompatible,
+                                int threads,
+                                int duplicatesMemory,
+                                boolean earlyStop,
+                                int minimizerWindow,
+                                boolean minimizersReport,
+                                boolean sharedLookups,
+                                boolean integerScores,
+                                int rejectSample) {
 
         try {
                         
@@ -101,6 +141,17 @@ public class Main_PLACEMENT_v07 {
             int minOverlap=100;
             //word sampling method
             int queryWordSampling=SequenceKnife.SAMPLING_LINEAR;
+            //early termination needs words spread over the whole query
+            if (earlyStop) {
+                queryWordSampling=SequenceKnife.SAMPLING_SEQUENTIAL;
+            }
+            //subsampling of the query words
+            if (minimizerWindow>1) {
+                queryWordSampling=SequenceKnife.SAMPLING_MINIMIZER;
+            }
+            //windows compared by --minimizers-report, on the first queries
+            int[] reportedWindows={3,5,8,11,15,19};
+            int reportedQueries=10000;
 
             //debug 
             int queryLimit=50000;
@@ -134,10 +185,15 @@ public class Main_PLACEMENT_v07 {
 
             
             //SOME BASIC DISPLAY TO CONTROL SESSION LOAD////////////////////////
-            Infos.println(session.align.describeAlignment(false));
-            Infos.println("# nodes in the tree: "+session.ARTree.getNodeCount());
-            Infos.println("# leaves in the tree: "+session.ARTree.getLeavesCount());
-            Infos.println("# internal nodes in the tree: "+session.ARTree.getInternalNodesByDFS().size());
+            //alignment and AR tree are not loaded if not used by the placement
+            if (session.align!=null) {
+                Infos.println(session.align.describeAlignment(false));
+            }
+            if (session.ARTree!=null) {
+                Infos.println("# nodes in the tree: "+session.ARTree.getNodeCount());
+                Infos.println("# leaves in the tree: "+session.ARTree.getLeavesCount());
+                Infos.println("# internal nodes in the tree: "+session.ARTree.getInternalNodesByDFS().size());
+            }
             
             //LOAD THE POSTERIOR PROBAS/////////////////////////////////////////
 //            PProbasSorted pprobas = session.parsedProbas;
@@ -148,7 +204,9 @@ public class Main_PLACEMENT_v07 {
             
             String[] elts=db.getName().split("\\.");
             String dbSize=elts[elts.length-1];
-            Infos.println("Hash type: "+session.hash.getHashType());
+            if (session.hash!=null) {
+                Infos.println("Hash type: "+session.hash.getHashType());
+            }
             if ( ! (dbSize.equals("large") || dbSize.equals("medium") || dbSize.equals("small") || dbSize.equals("union") || dbSize.equals("sunion")) ) {
                 System.out.println("dbSize not recognized (from DB filename): "+dbSize);
                 System.exit(1);
@@ -157,6 +215,16 @@ public class Main_PLACEMENT_v07 {
 //            if (session.hash.getHashType()==CustomHash_v2.NODES_UNION) {
 //                dbSize="union";
 //            }
+            //read-only index used by the placement, the hash itself can
+            //be released if it was loaded from a file
+            session.freezeHash(!dbInRAM);
+            //edge ids and branch lengths used in the jplace output,
+            //already loaded if the DB is in binary format
+            session.preparePlacementTree();
+            if (session.frozenHash!=null && session.frozenHash.isCompressed()) {
+                Infos.println("Compressed hash, PP* quantized on "+session.frozenHash.getQuantizationBits()+" bits.");
+            }
+            
             Infos.println(Environement.getMemoryUsage());
 
             Environement.printMemoryUsageDescription();
@@ -178,12 +246,9 @@ public class Main_PLACEMENT_v07 {
             ////////////////////////////////////////////////
             //LOADING THE QUERIES PROVIDED BY USER
             
-            System.out.println("Analyzing query sequences...");
-            FASTAPointer fp=new FASTAPointer(q, false);
-            int totalQueries=fp.getContentSize();
-            Infos.println("Input fasta contains "+totalQueries+" sequences");
-            Infos.println("Mean sequence size: "+fp.getContentMean());
-            fp.resetPointer();
+            //queries are read in a single pass, while they are placed,
+            //fasta or fastq, gzip/bgzip compressed or not
+            SequencePointer fp=NioSequencePointer.open(q, threads);
             //FileWriter fw =new FileWriter(new File(logPath+"queries.fasta"));
             
             
@@ -199,27 +264,25 @@ public class Main_PLACEMENT_v07 {
             BufferedWriter bwTSVPlacement=new BufferedWriter(new FileWriter(new File(logPath+"placements_"+q.getName()+"_"+dbSize+".tsv")),bufferSize);
             //unplaced query log
             BufferedWriter bwNotPlaced=new BufferedWriter(new FileWriter(new File(logPath+"notplaced_"+q.getName()+"_"+dbSize+".tsv")),bufferSize);
+            //queries rejected by the pre-check, to be placed with a full scan
+            BufferedWriter bwRejected=null;
+            if (rejectSample>0) {
+                bwRejected=new BufferedWriter(new FileWriter(new File(logPath+"rejected_"+q.getName()+"_"+dbSize+".fasta")),bufferSize);
+            }
 
             ////////////////////////////////////////////////////////////////////
-            //PREPARE STRUCTURE (JSON OBJECT) FOR JPLACE OUTPUT 
-            //this need to be done outside the alignment/scoring loop
-            //because identical sequences (same score) will be in the same 
-            //json "placement" (p) object
-            //with library json.simple
-            
-            //top level of the json tree
-            JSONObject top=new JSONObject(); 
-            LinkedHashMap topMap=new LinkedHashMap();
-            //object tree (mandatory)
+            //PREPARE THE WRITER FOR JPLACE OUTPUT 
+            //the tree, fields and metadata are written immediately, then
+            //each placement object is written as soon as it is complete,
+            //identical sequences (same score) being in the same json
+            //placement (p) object
             //write a newick version of the loaded original tree for control
-            NewickWriter nw=new NewickWriter();
-            String relaxedTreeForJplace=nw.getNewickTree(session.originalTree, true, true, true, false);
-            nw.close();
-            topMap.put("tree",relaxedTreeForJplace);  
-            //we do an array of placement object
-            //all identical reads with be injected in the same object
-            JSONArray placements=new JSONArray();
-            
+            JplaceWriter jplaceWriter=new JplaceWriter(
+                    new File(workDir.getAbsoluteFile()+File.separator+"placements_"+q.getName()+"_"+dbSize+".jplace"),
+                    session.jplaceTree,
+                    guppyCompatible,
+                    "viromeplacer"+callString
+            );
             
 
                         
@@ -229,7 +292,6 @@ public class Main_PLACEMENT_v07 {
             ////////////////////////////////////////////////////////////////////
             //NORMALIZED SCORE BELOW THE CALIBRATION RESULT WILL NOT BE OUTPUT
             //IN THE JPLACE OUPUT
-            //TODO: HERE EXTEND WITH PARALLELISM
             PlacementProcess asp=null;
             if (nsBound!=null) {  //norm score bound was set manually via command line
                 System.out.println("User provided nsBound !");
@@ -237,64 +299,40 @@ public class Main_PLACEMENT_v07 {
             } else {
                 asp=new PlacementProcess(session,session.calibrationNormScore, queryLimit);
             }
-            int queryCounter=asp.processQueries(fp,placements,bwTSVPlacement,bwNotPlaced,queryWordSampling,minOverlap,new File(logPath),keepAtMost,keepRatio,guppyCompatible);
+            asp.setDuplicatesMemoryBudget(duplicatesMemory*1048576L);
+            asp.setEarlyStop(earlyStop);
+            asp.setMinimizerWindow(minimizerWindow);
+            asp.setSharedLookups(sharedLookups);
+            asp.setIntegerScores(integerScores);
+            asp.setRejectSample(rejectSample);
+            asp.setRejectedOutput(bwRejected);
+            if (minimizersReport) {
+                asp.minimizersReport(fp, reportedWindows, reportedQueries, new File(logPath+"minimizers_"+q.getName()+"_"+dbSize+".tsv"));
+                fp.resetPointer();
+            }
+            int queryCounter=-1;
+            if (threads>1) {
+                System.out.println("Placement on "+threads+" threads.");
+                queryCounter=asp.parallelProcessReads(fp,jplaceWriter,bwTSVPlacement,bwNotPlaced,queryWordSampling,minOverlap,new File(logPath),keepAtMost,keepRatio,guppyCompatible,threads);
+            } else {
+                queryCounter=asp.processQueries(fp,jplaceWriter,bwTSVPlacement,bwNotPlaced,queryWordSampling,minOverlap,new File(logPath),keepAtMost,keepRatio,guppyCompatible);
+            }
             //close TSV logs
             bwTSVPlacement.close();
             bwNotPlaced.close();
+            if (bwRejected!=null) {
+                bwRejected.close();
+            }
             fp.closePointer();
+            int totalQueries=fp.getContentSize();
+            Infos.println("Input contains "+totalQueries+" sequences");
+            Infos.println("Mean sequence size: "+fp.getContentMean());
 
             
             ////////////////////////////////////////////////////////////////////
             // FINALIZE JSON OUTPUT
             ////////////////////////////////////////////////////////////////////
-            //finish the json strucutre and output it to a file
-            //associate the list of placements to the top level
-            top.put("placements",placements);
-            //object version (mandatory
-            top.put("version",3);
-            //object metadata (mandatory): sub-objet "version is mandatory"
-            JSONObject invoc=new JSONObject();
-            invoc.put("invocation", "viromeplacer"+callString);
-            top.put("metadata", invoc);
-            //object fields
-            //for info:
-            //- in pplacer: "distal_length", "edge_num", "like_weight_ratio", "likelihood", "pendant_length"
-            //- in EPA: "edge_num", "likelihood", "like_weight_ratio", "distal_length", "pendant_length"
-            JSONArray fList=new JSONArray();
-            if (!guppyCompatible) {
-                fList.add("edge_num"); //i.e equal to the id of the son originalNode
-                fList.add("likelihood"); //
-                fList.add("like_weight_ratio");
-                //add fake fields to be compatible with current visualisation tools
-                fList.add("distal_length");
-                fList.add("pendant_length");
-                top.put("fields", fList);
-            } else {
-                fList.add("distal_length");
-                fList.add("edge_num");
-                fList.add("like_weight_ratio");
-                fList.add("likelihood");
-                fList.add("pendant_length");
-                top.put("fields", fList);
-            }
-            
-            //put all the elements in the top JSON object
-            top.putAll(topMap);
-            String out=top.toJSONString();
-
-            //just some basic formatting for human readability
-            out=out.replaceAll("\\},\\{", "\n\\},\\{\n\t"); //},{
-            out=out.replaceAll("\\],\"","\\],\n\t\"");   //],"
-            out=out.replaceAll("\\]\\}\\],", "\\]\n\\}\n\\],\n"); //]}]
-            out=out.replaceAll(",\"placements\":\\[\\{\"p\"", ",\n\"placements\":\n[\n{\n\t\"p\"");
-            out=out.replaceAll("\\],\\[", "\\],\n\t\\[");
-            out=out.replaceAll("\"p\":\\[\\[","\"p\":\n\t\\[\\[");
-            out=out.replaceAll("\"nm\":\\[\\[","\"nm\":\n\t\\[\\[");
-            //out=out.replace("]},", "]},"); //]}
-            
-            FileWriter fwJSON =new FileWriter(new File(workDir.getAbsoluteFile()+File.separator+"placements_"+q.getName()+"_"+dbSize+".jplace"));
-            fwJSON.append(out);
-            fwJSON.close();
+            jplaceWriter.close();
             
             long endTotalTime=System.currentTimeMillis();
             
@@ -307,10 +345,16 @@ public class Main_PLACEMENT_v07 {
             Infos.println("### DONE, placement execution took (excluding DB load): "+(endTotalTime-startTotalTime)+" ms");
             Infos.println("#######################################################################");
             //just for coherent output, close the percentage
-            System.out.println(queryCounter+"/"+totalQueries+" queries analyzed ("+(((0.0+queryCounter)/totalQueries)*100)+"%)");
+            System.out.println(queryCounter+" queries analyzed ("+(fp.getProgress()*100)+"% of the input read)");
             //just for coherent output, close the percentage
-            System.out.println(placements.size()+" different placements reported in JPlace output.");
-            System.out.println("(Note: "+(((0.0+queryCounter-placements.size())/totalQueries)*100)+"% of the queries are duplicates)");            
+            System.out.println(jplaceWriter.getPlacementCount()+" different placements reported in JPlace output.");
+            System.out.println("(Note: "+(((0.0+asp.getDuplicateCount())/totalQueries)*100)+"% of the queries are duplicates)");            
+            if (earlyStop || minimizerWindow>1) {
+                System.out.println("(Note: "+(asp.getScannedWordsRatio()*100)+"% of the query k-mers were looked up in the DB)");
+            }
+            if (rejectSample>0) {
+                System.out.println("(Note: "+asp.getRejectedCount()+" queries were rejected before being scored, they are not in the not placed queries but in "+logPath+"rejected_"+q.getName()+"_"+dbSize+".fasta)");
+            }
             Infos.println("#######################################################################");
 
 
@@ -141,7 +141,10 @@ public class Main_v2 {
                                             argsParser.arparameters,
                                             argsParser.onlyX1Nodes,
                                             argsParser.jsondb,
-                                            argsParser.acceptUnrootedRefTree
+                                            argsParser.acceptUnrootedRefTree,
+                                            argsParser.placementDB,
+                                            argsParser.compressionBits,
+                                            argsParser.bloomFilter
                                             );
                 System.out.println("Have a coffee, you \"built\" your world.");
 
@@ -153,7 +156,8 @@ public class Main_v2 {
                 //load session itself (i.e the DB)
                 System.out.println("Loading ancestral words DB... ("+argsParser.databaseFile.getName()+")");
                 long startLoadTime=System.currentTimeMillis();
-                SessionNext_v2 session= SessionNext_v2.load(argsParser.databaseFile,true);
+                //only the DB sections used by the placement are loaded
+                SessionNext_v2 session= SessionNext_v2.load(argsParser.databaseFile,SessionNext_v2.LOAD_PLACEMENT);
                 long endLoadTime=System.currentTimeMillis();
                 System.out.println("Loading the database took "+(endLoadTime-startLoadTime)+" ms");
             
@@ -167,7 +171,15 @@ public class Main_v2 {
                                                 argsParser.nsBound,
                                                 argsParser.keepAtMost,
                                                 argsParser.keepFactor,
-                                                argsParser.guppyCompatible
+                                                argsParser.guppyCompatible,
+                                                argsParser.threads,
+                                                argsParser.duplicatesMemory,
+                                                argsParser.earlyStop,
+                                                argsParser.minimizerWindow,
+                                                argsParser.minimizersReport,
+                                                argsParser.sharedLookups,
+                                                argsParser.integerScores,
+                                                argsParser.rejectSample
                                                 );
                 }
                 System.out.println("Have a coffee, you \"placed\" your world.");
@@ -9,6 +9,7 @@ import alignement.Alignment;
 import core.PProbasSorted;
 import core.States;
 import core.hash.CustomHash_v4_FastUtil81;
+import core.hash.FrozenHash;
 import etc.Infos;
 import inputs.ARResults;
 import java.io.BufferedInputStream;
@@ -22,6 +23,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -29,6 +31,7 @@ import java.util.stream.Collectors;
 import org.json.simple.JSONObject;
 import tree.ExtendedTree;
 import tree.NewickWriter;
+import tree.PhyloNode;
 import tree.PhyloTree;
 
 /**
@@ -39,6 +42,29 @@ public class SessionNext_v2 {
     
     private final static int bufferSize=2097152; // buffer of 2mo
     
+    //sections of the DB which can be requested at load, to combine with '|'
+    public final static int LOAD_ALIGNMENT=1;
+    public final static int LOAD_ORIGINAL_TREE=2;
+    public final static int LOAD_EXTENDED_TREE=4;
+    public final static int LOAD_AR_TREE=8;
+    public final static int LOAD_NODE_MAPPING=16;
+    public final static int LOAD_HASH=32;
+    /**
+     * extended tree, AR tree and node mapping, loaded only if the DB
+     * contains kmers of original nodes (onlyFakes==false)
+     */
+    public final static int LOAD_ORIGINAL_NODES_MAPPING=64;
+    /**
+     * jplace edge ids, branch lengths and jplace newick of the original
+     * tree (see preparePlacementTree())
+     */
+    public final static int LOAD_PLACEMENT_TREE=128;
+    public final static int LOAD_ALL=LOAD_ALIGNMENT|LOAD_ORIGINAL_TREE|LOAD_EXTENDED_TREE|LOAD_AR_TREE|LOAD_NODE_MAPPING|LOAD_HASH|LOAD_PLACEMENT_TREE;
+    /**
+     * sections used by the placement process
+     */
+    public final static int LOAD_PLACEMENT=LOAD_PLACEMENT_TREE|LOAD_HASH|LOAD_ORIGINAL_NODES_MAPPING;
+    
     
     public int k=-1;
     public int minK=-1;
@@ -62,8 +88,19 @@ public class SessionNext_v2 {
     public HashMap<Integer,Integer> nodeMapping=null;
     public PProbasSorted parsedProbas=null;    
     public CustomHash_v4_FastUtil81 hash=null;
+    //read-only version of the hash, used in placement, not stored
+    public FrozenHash frozenHash=null;
     public boolean onlyFakes=false;
     public Float calibrationNormScore=null;
+    //original tree as used by the placement, index=original nodeId
+    //stored in binary DBs, so that placement-only DBs do not need the trees
+    public int[] jplaceEdgeIds=null;
+    public float[] branchLengths=null;
+    public String jplaceTree=null;
+    //0, or 8|16 to store a compressed hash in binary DBs
+    public int compressionBits=0;
+    //builds the Bloom filter of the hash stored in binary DBs
+    public boolean bloomFilter=false;
     
     /**
      *
@@ -103,11 +140,156 @@ public class SessionNext_v2 {
         this.onlyFakes=onlyFakes;
     }
     
+    /**
+     * builds the read-only version of the hash used for placement
+     * @param releaseHash if true, the hash is released after freezing,
+     * to be used only when it will not be modified or stored anymore
+     */
+    public void freezeHash(boolean releaseHash) {
+        //already frozen, hash released
+        if (hash==null) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        frozenHash=hash.freeze(k, states);
+        if (frozenHash==null) {
+            Infos.println("k too large or too many (nodeId,PP*) pairs, hash not frozen.");
+            return;
+        }
+        Infos.println("Hash frozen ("+frozenHash.getWordCount()+" words, "+frozenHash.getPairCount()+" pairs) in "+(System.currentTimeMillis()-startTime)+" ms");
+        if (releaseHash) {
+            hash=null;
+        }
+    }
+    
+    /**
+     * extracts from the original tree what is needed to write the jplace
+     * output, does nothing if already loaded from the DB
+     * @throws IOException 
+     */
+    public void preparePlacementTree() throws IOException {
+        if (jplaceEdgeIds!=null) {
+            return;
+        }
+        int maxId=-1;
+        for (int nodeId:originalTree.getNodeIdsByDFS()) {
+            maxId=Math.max(maxId, nodeId);
+        }
+        int[] edgeIds=new int[maxId+1];
+        float[] lengths=new float[maxId+1];
+        Arrays.fill(edgeIds, -1);
+        for (int nodeId:originalTree.getNodeIdsByDFS()) {
+            PhyloNode node=originalTree.getById(nodeId);
+            edgeIds[nodeId]=node.getJplaceEdgeId();
+            lengths[nodeId]=node.getBranchLengthToAncestor();
+        }
+        NewickWriter nw=new NewickWriter();
+        jplaceTree=nw.getNewickTree(originalTree, true, true, true, false);
+        nw.close();
+        branchLengths=lengths;
+        jplaceEdgeIds=edgeIds;
+    }
+    
+    /**
+     * frozen version of the hash as written in binary DBs, compressed
+     * if compressionBits>0, with its Bloom filter if bloomFilter.\n
+     * The hash is still used after its storage (reductions to medium and
+     * small DBs, placements of the build phase), it is then frozen as a
+     * copy: the peak memory of the DB build is the hash plus its frozen
+     * version, the latter being released once the DB is written.
+     * @return null if the hash cannot be frozen (k too large, or more
+     * than 2^31-1 (nodeId,PP*) pairs)
+     */
+    private FrozenHash freezeForStorage() {
+        FrozenHash h=frozenHash;
+        if (hash!=null) {
+            h=hash.freeze(k, states);
+        }
+        if (h!=null && compressionBits>0) {
+            h=h.compress(compressionBits);
+            Infos.println("Hash compressed, PP* quantized on "+compressionBits+" bits.");
+        }
+        if (h!=null && bloomFilter && h.getBloomFilter()==null) {
+            h.buildBloomFilter(FrozenHash.BLOOM_BITS_PER_WORD);
+            if (h.getBloomFilter()==null) {
+                Infos.println("No Bloom filter for the direct-address layout of the hash.");
+            } else {
+                Infos.println("Bloom filter of the hash built ("+(8L*h.getBloomFilter().capacity()/1024)+" ko).");
+            }
+        }
+        return h;
+    }
+    
     public void associateCalibrationScore(float score) {
         this.calibrationNormScore=score;
     }
 
+    /**
+     * stores the session in the binary DB format (see BinaryDB), or with
+     * java serialization if the hash cannot be frozen (k too large, or
+     * more than 2^31-1 (nodeId,PP*) pairs)
+     * @param f
+     * @return 
+     */
     public boolean storeHash(File f) {
+        FrozenHash h=freezeForStorage();
+        if (h==null) {
+            System.out.println("Hash cannot be frozen, DB is stored with java serialization.");
+            return storeSerializedHash(f);
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            Infos.println("Storing of binary DB");
+            BinaryDB.store(this, h, f, false);
+            long endTime = System.currentTimeMillis();
+            Infos.println("Complete session storage " + (endTime - startTime) + " ms");
+            Infos.println("Session stored in : "+f.getAbsolutePath());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * stores only what is needed by the placement: parameters, states,
+     * hash and the original tree as primitive arrays (see BinaryDB).
+     * Not possible if the hash contains kmers of original nodes,
+     * as the placement then needs the extended and AR trees.
+     * @param f
+     * @return 
+     */
+    public boolean storePlacementDB(File f) {
+        if (!onlyFakes) {
+            System.out.println("Placement DB not written, the DB contains kmers of original nodes.");
+            return false;
+        }
+        FrozenHash h=freezeForStorage();
+        if (h==null) {
+            System.out.println("Hash cannot be frozen, placement DB not written.");
+            return false;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            Infos.println("Storing of placement DB");
+            BinaryDB.store(this, h, f, true);
+            long endTime = System.currentTimeMillis();
+            Infos.println("Complete session storage " + (endTime - startTime) + " ms");
+            Infos.println("Session stored in : "+f.getAbsolutePath());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * stores the session with java serialization, format of RAPPAS
+     * versions &lt;1.06
+     * @param f
+     * @return 
+     */
+    public boolean storeSerializedHash(File f) {
         try {
             long startTime = System.currentTimeMillis();
             
@@ -155,7 +337,43 @@ public class SessionNext_v2 {
     
     
     
+    /**
+     * loads a DB, in binary format or with java serialization
+     * (RAPPAS versions &lt;1.06)
+     * @param f
+     * @param loadHash
+     * @return null if the DB could not be loaded
+     */
     public static SessionNext_v2 load(File f,boolean loadHash) {
+        return load(f, loadHash?LOAD_ALL:(LOAD_ALL & ~LOAD_HASH));
+    }
+    
+    /**
+     * loads only some sections of a DB, sections which are not
+     * requested are left to null.\n
+     * DBs serialized by RAPPAS versions &lt;1.06 are not sectioned,
+     * all sections are loaded (excepted the hash, if not requested).
+     * @param f
+     * @param sections combination of LOAD_* flags
+     * @return null if the DB could not be loaded
+     */
+    public static SessionNext_v2 load(File f,int sections) {
+        if (!BinaryDB.isBinaryDB(f)) {
+            return loadSerialized(f, (sections & LOAD_HASH)!=0);
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            SessionNext_v2 s=BinaryDB.load(f, sections);
+            long endTime = System.currentTimeMillis();
+            Infos.println("Complete session loading " + (endTime - startTime) + " ms");
+            return s;
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+    
+    private static SessionNext_v2 loadSerialized(File f,boolean loadHash) {
         try {
             long startTime = System.currentTimeMillis();
             FileInputStream fis = new FileInputStream(f);
@@ -0,0 +1,114 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package outputs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.List;
+import org.json.simple.JSONValue;
+
+/**
+ * Writes a jplace file while the queries are placed.\n
+ * The tree, fields, version and metadata are written when the writer is
+ * opened, then each placement object is appended as soon as it is final,
+ * the file is completed by close(). Nothing is kept in memory, excepted
+ * the buffer of the writer.\n
+ * The layout is the same as the one previously obtained by formatting the
+ * whole json-simple output with regular expressions.
+ * @author ben
+ */
+public class JplaceWriter {
+
+    private final static int bufferSize=2097152; // buffer of 2mo
+
+    BufferedWriter bw=null;
+    int placementCount=0;
+    long nameCount=0;
+
+    /**
+     * opens the file and writes everything but the placements
+     * @param f
+     * @param tree jplace newick of the original tree
+     * @param guppyCompatible order of the fields
+     * @param invocation
+     * @throws IOException
+     */
+    public JplaceWriter(File f, String tree, boolean guppyCompatible, String invocation) throws IOException {
+        bw=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), Charset.forName("UTF-8")), bufferSize);
+        //object fields
+        //for info:
+        //- in pplacer: "distal_length", "edge_num", "like_weight_ratio", "likelihood", "pendant_length"
+        //- in EPA: "edge_num", "likelihood", "like_weight_ratio", "distal_length", "pendant_length"
+        //edge_num is the id of the son originalNode, distal_length and
+        //pendant_length are fake fields expected by the visualisation tools
+        String fields="[\"edge_num\",\"likelihood\",\"like_weight_ratio\",\"distal_length\",\"pendant_length\"]";
+        if (guppyCompatible) {
+            fields="[\"distal_length\",\"edge_num\",\"like_weight_ratio\",\"likelihood\",\"pendant_length\"]";
+        }
+        bw.append("{\"tree\":").append(JSONValue.toJSONString(tree)).append(",\n");
+        bw.append("\t\"fields\":").append(fields).append(",\n");
+        bw.append("\t\"version\":3,\n");
+        //object metadata (mandatory): sub-objet "version is mandatory"
+        bw.append("\t\"metadata\":{\"invocation\":").append(JSONValue.toJSONString(invocation)).append("},\n");
+        bw.append("\"placements\":\n[");
+    }
+
+    /**
+     * appends a placement object
+     * @param p json text of the "p" array, built by the placement process
+     * @param names identifiers of the queries associated to this placement,
+     * all with multiplicity 1
+     * @throws IOException
+     */
+    public void writePlacement(String p, List<String> names) throws IOException {
+        if (placementCount>0) {
+            bw.append(",{\n\t\"p\":\n\t");
+        } else {
+            bw.append("\n{\n\t\"p\":\n\t");
+        }
+        bw.append(p.replace("],[", "],\n\t["));
+        bw.append(",\n\t\"nm\":\n\t[");
+        for (int i = 0; i < names.size(); i++) {
+            if (i>0) {
+                bw.append(",\n\t");
+            }
+            bw.append("[").append(JSONValue.toJSONString(names.get(i))).append(",1]");
+        }
+        bw.append("]\n}");
+        placementCount++;
+        nameCount+=names.size();
+    }
+
+    /**
+     * number of placement objects written so far
+     * @return
+     */
+    public int getPlacementCount() {
+        return placementCount;
+    }
+
+    /**
+     * number of query identifiers written so far in the "nm" arrays
+     * @return
+     */
+    public long getNameCount() {
+        return nameCount;
+    }
+
+    /**
+     * ends the placements array and the top object
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        bw.append("\n]\n}\n");
+        bw.close();
+    }
+
+}
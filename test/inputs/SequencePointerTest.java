@@ -0,0 +1,233 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package inputs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Query readers: fasta and fastq, plain, gzip and bgzip, read on 1 or
+ * several threads, must return the records of the file, in order.
+ * @author ben
+ */
+public class SequencePointerTest {
+
+    @Rule
+    public TemporaryFolder folder=new TemporaryFolder();
+
+    ArrayList<String> headers=new ArrayList<>();
+    ArrayList<String> sequences=new ArrayList<>();
+
+    @Before
+    public void generateRecords() {
+        Random rand=new Random(11);
+        String states="ACGTN";
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder sb=new StringBuilder();
+            int length=50+rand.nextInt(400);
+            for (int j = 0; j < length; j++) {
+                sb.append(states.charAt(rand.nextInt(states.length())));
+            }
+            headers.add("read"+i+" sample=S"+(i%7));
+            sequences.add(sb.toString());
+        }
+    }
+
+    /**
+     * sequences cut in lines of 60 residues
+     */
+    byte[] fasta(int count) {
+        StringBuilder sb=new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append('>').append(headers.get(i)).append('\n');
+            String s=sequences.get(i);
+            for (int j = 0; j < s.length(); j+=60) {
+                sb.append(s, j, Math.min(s.length(), j+60)).append('\n');
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 4 lines records, qualities starting with '@' or '+' for some reads
+     */
+    byte[] fastq(int count) {
+        StringBuilder sb=new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            String s=sequences.get(i);
+            sb.append('@').append(headers.get(i)).append('\n').append(s).append("\n+\n");
+            for (int j = 0; j < s.length(); j++) {
+                sb.append(j==0?"@+I".charAt(i%3):'I');
+            }
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    File write(String name, byte[] content) throws IOException {
+        File f=folder.newFile(name);
+        try (OutputStream os=new FileOutputStream(f)) {
+            os.write(content);
+        }
+        return f;
+    }
+
+    File gzip(String name, byte[] content) throws IOException {
+        File f=folder.newFile(name);
+        try (OutputStream os=new GZIPOutputStream(new FileOutputStream(f))) {
+            os.write(content);
+        }
+        return f;
+    }
+
+    /**
+     * bgzip format: gzip members of at most 64kb with a 'BC' extra field
+     * giving the size of the block, then an empty end of file block
+     */
+    File bgzip(String name, byte[] content) throws IOException {
+        File f=folder.newFile(name);
+        try (OutputStream os=new FileOutputStream(f)) {
+            for (int start = 0; start < content.length; start+=60000) {
+                int length=Math.min(60000, content.length-start);
+                os.write(bgzfBlock(content, start, length));
+            }
+            os.write(bgzfBlock(content, 0, 0));
+        }
+        return f;
+    }
+
+    byte[] bgzfBlock(byte[] content, int start, int length) {
+        Deflater deflater=new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(content, start, length);
+        deflater.finish();
+        ByteArrayOutputStream deflated=new ByteArrayOutputStream();
+        byte[] buffer=new byte[65536];
+        while (!deflater.finished()) {
+            deflated.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        CRC32 crc=new CRC32();
+        crc.update(content, start, length);
+        ByteBuffer block=ByteBuffer.allocate(18+deflated.size()+8).order(ByteOrder.LITTLE_ENDIAN);
+        block.put(new byte[]{0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff});
+        block.putShort((short)6);
+        block.put((byte)'B').put((byte)'C').putShort((short)2);
+        block.putShort((short)(block.capacity()-1));
+        block.put(deflated.toByteArray());
+        block.putInt((int)crc.getValue());
+        block.putInt(length);
+        return block.array();
+    }
+
+    /**
+     * reads the whole file and compares it to the 1st records
+     */
+    void assertRecords(File f, int threads, int count, Class<?> expectedClass) throws IOException {
+        SequencePointer p=NioSequencePointer.open(f, threads);
+        try {
+            assertEquals(expectedClass, p.getClass());
+            Fasta fasta=null;
+            int i=0;
+            while ((fasta=p.nextSequenceAsFastaObject())!=null) {
+                assertTrue(f.getName()+": more records than written", i<count);
+                assertEquals(headers.get(i), fasta.getHeader());
+                assertEquals(headers.get(i), sequences.get(i), fasta.getSequence(false));
+                i++;
+            }
+            assertEquals(count, i);
+            assertEquals(count, p.getContentSize());
+            assertEquals(1.0, p.getProgress(), 1e-9);
+            //read again from a given record
+            p.setPointerPosition(count/2);
+            assertEquals(headers.get(count/2), p.nextSequenceAsFastaObject().getHeader());
+            p.setPointerPosition(count);
+            assertNull(p.nextSequenceAsFastaObject());
+        } finally {
+            p.closePointer();
+        }
+    }
+
+    @Test
+    public void testFasta() throws IOException {
+        File f=write("q.fasta", fasta(500));
+        assertRecords(f, 1, 500, FASTANioPointer.class);
+        assertRecords(f, 4, 500, FASTANioPointer.class);
+    }
+
+    @Test
+    public void testFastq() throws IOException {
+        File f=write("q.fastq", fastq(500));
+        assertRecords(f, 1, 500, FASTQNioPointer.class);
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        assertRecords(gzip("q.fasta.gz", fasta(2000)), 1, 2000, FASTANioPointer.class);
+        assertRecords(gzip("q.fastq.gz", fastq(2000)), 4, 2000, FASTQNioPointer.class);
+    }
+
+    @Test
+    public void testConcatenatedGzip() throws IOException {
+        //2 gzip members, read as a single stream
+        byte[] all=fasta(1000);
+        byte[] first=fasta(400);
+        File f=folder.newFile("q2.fasta.gz");
+        try (OutputStream os=new FileOutputStream(f)) {
+            for (byte[] part:new byte[][]{first, Arrays.copyOfRange(all, first.length, all.length)}) {
+                ByteArrayOutputStream member=new ByteArrayOutputStream();
+                try (GZIPOutputStream gz=new GZIPOutputStream(member)) {
+                    gz.write(part);
+                }
+                os.write(member.toByteArray());
+            }
+        }
+        assertRecords(f, 1, 1000, FASTANioPointer.class);
+    }
+
+    @Test
+    public void testBgzip() throws IOException {
+        File fa=bgzip("q.fasta.bgz", fasta(5000));
+        File fq=bgzip("q.fastq.bgz", fastq(5000));
+        for (int threads:new int[]{1, 4}) {
+            assertRecords(fa, threads, 5000, FASTANioPointer.class);
+            assertRecords(fq, threads, 5000, FASTQNioPointer.class);
+        }
+        SequencePointer p=NioSequencePointer.open(fa, 1);
+        assertTrue(((NioSequencePointer)p).isBGZF());
+        p.closePointer();
+    }
+
+    @Test
+    public void testSplit() throws IOException {
+        //large enough to be cut in byte ranges parsed on the threads
+        byte[] fasta=fasta(10000);
+        byte[] fastq=fastq(10000);
+        assertTrue(fasta.length>=2*SplitSequencePointer.RANGE_SIZE);
+        File fa=write("big.fasta", fasta);
+        File fq=write("big.fastq", fastq);
+        assertRecords(fa, 3, 10000, SplitSequencePointer.class);
+        assertRecords(fq, 3, 10000, SplitSequencePointer.class);
+        assertRecords(fa, 1, 10000, FASTANioPointer.class);
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package main_v2;
+
+import core.hash.FrozenHash;
+import java.io.File;
+import java.io.IOException;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * DBs stored in the binary format, then loaded and stored again: the
+ * parameters, placement tree and tables of the hash must be the same.
+ * Serialized sections (trees, states) are compared through their content,
+ * java serialization does not produce the same bytes at each store.
+ * @author ben
+ */
+public class BinaryDBTest {
+
+    @ClassRule
+    public static TemporaryFolder folder=new TemporaryFolder();
+
+    static File db=null;
+    static File compressedDB=null;
+
+    @BeforeClass
+    public static void buildDBs() throws IOException {
+        assumeTrue("phyml binary needed to build the DBs", TestData.PHYML.canExecute());
+        db=TestData.buildDB(folder.newFolder("plain"), 8, "--placement-db");
+        compressedDB=TestData.buildDB(folder.newFolder("compressed"), 8, "--compress-db", "8");
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        SessionNext_v2 s=SessionNext_v2.load(db, SessionNext_v2.LOAD_ALL);
+        assertNotNull(s);
+        File f=folder.newFile("roundtrip.union");
+        BinaryDB.store(s, s.frozenHash, f, false);
+        SessionNext_v2 s2=SessionNext_v2.load(f, SessionNext_v2.LOAD_ALL);
+        assertNotNull(s2);
+        assertSameSession(s, s2);
+        assertEquals(s.ARTree.getNodeCount(), s2.ARTree.getNodeCount());
+        assertEquals(s.extendedTree.getNodeCount(), s2.extendedTree.getNodeCount());
+        assertEquals(s.nodeMapping, s2.nodeMapping);
+        assertArrayEquals(s.align.getRowLabels(), s2.align.getRowLabels());
+        assertArrayEquals(s.align.getCharMatrix(), s2.align.getCharMatrix());
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException {
+        SessionNext_v2 s=SessionNext_v2.load(compressedDB, SessionNext_v2.LOAD_ALL);
+        assertNotNull(s);
+        assertTrue(s.frozenHash.isCompressed());
+        File f=folder.newFile("roundtrip_compressed.union");
+        BinaryDB.store(s, s.frozenHash, f, false);
+        SessionNext_v2 s2=SessionNext_v2.load(f, SessionNext_v2.LOAD_ALL);
+        assertNotNull(s2);
+        assertSameSession(s, s2);
+    }
+
+    @Test
+    public void testPlacementDB() {
+        //the lighter DB holds the same hash, without the trees
+        SessionNext_v2 s=SessionNext_v2.load(db, SessionNext_v2.LOAD_PLACEMENT);
+        SessionNext_v2 s2=SessionNext_v2.load(TestData.placementDB(db), SessionNext_v2.LOAD_PLACEMENT);
+        assertNotNull(s2);
+        assertSameSession(s, s2);
+        assertNull(s2.align);
+        assertNull(s2.extendedTree);
+    }
+
+    /**
+     * parameters, placement tree and hash of 2 sessions
+     */
+    static void assertSameSession(SessionNext_v2 s, SessionNext_v2 s2) {
+        assertEquals(s.k, s2.k);
+        assertEquals(s.minK, s2.minK);
+        assertEquals(s.alpha, s2.alpha, 0.0f);
+        assertEquals(s.branchPerEdge, s2.branchPerEdge);
+        assertEquals(s.PPStarThreshold, s2.PPStarThreshold, 0.0f);
+        assertEquals(s.PPStarThresholdAsLog10, s2.PPStarThresholdAsLog10, 0.0f);
+        assertEquals(s.calibrationNormScore, s2.calibrationNormScore);
+        assertEquals(s.states.getClass(), s2.states.getClass());
+        assertEquals(s.jplaceTree, s2.jplaceTree);
+        assertArrayEquals(s.jplaceEdgeIds, s2.jplaceEdgeIds);
+        assertArrayEquals(s.branchLengths, s2.branchLengths, 0.0f);
+        assertSameHash(s.frozenHash, s2.frozenHash);
+    }
+
+    static void assertSameHash(FrozenHash h, FrozenHash h2) {
+        assertNotNull(h2);
+        assertEquals(h.getK(), h2.getK());
+        assertEquals(h.getBitsPerState(), h2.getBitsPerState());
+        assertEquals(h.isDirectAddress(), h2.isDirectAddress());
+        assertEquals(h.isCompressed(), h2.isCompressed());
+        assertEquals(h.getWordCount(), h2.getWordCount());
+        assertEquals(h.getPairCount(), h2.getPairCount());
+        assertEquals(h.getRowCount(), h2.getRowCount());
+        if (!h.isDirectAddress()) {
+            assertEquals(h.getKeys().capacity(), h2.getKeys().capacity());
+            for (int i = 0; i < h.getKeys().capacity(); i++) {
+                assertEquals(h.getKeys().get(i), h2.getKeys().get(i));
+            }
+            for (int i = 0; i < h.getRows().capacity(); i++) {
+                assertEquals(h.getRows().get(i), h2.getRows().get(i));
+            }
+        }
+        assertEquals(h.getOffsets().capacity(), h2.getOffsets().capacity());
+        for (int i = 0; i < h.getOffsets().capacity(); i++) {
+            assertEquals(h.getOffsets().get(i), h2.getOffsets().get(i));
+        }
+        if (h.isCompressed()) {
+            assertEquals(h.getQuantizationBits(), h2.getQuantizationBits());
+            assertEquals(h.getQuantizationMin(), h2.getQuantizationMin(), 0.0f);
+            assertEquals(h.getQuantizationStep(), h2.getQuantizationStep(), 0.0f);
+            assertEquals(h.getPostings().duplicate().rewind(), h2.getPostings().duplicate().rewind());
+        } else {
+            assertEquals(h.getNodeIds().capacity(), h2.getNodeIds().capacity());
+            for (int i = 0; i < h.getNodeIds().capacity(); i++) {
+                assertEquals(h.getNodeIds().get(i), h2.getNodeIds().get(i));
+                assertEquals(h.getPPStars().get(i), h2.getPPStars().get(i), 0.0f);
+            }
+        }
+        //same pairs through the lookup itself
+        for (long code = 0; code < Math.min(1L<<(h.getK()*h.getBitsPerState()), 65536L); code++) {
+            assertEquals(h.getRow(code), h2.getRow(code));
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package main_v2;
+
+import inputs.SplitSequencePointer;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Queries placed on 1 thread and on several threads: the jplace placements,
+ * the TSV of the placements and the not placed queries must be identical,
+ * in the order of the input. The query file is large enough to be parsed
+ * by byte ranges (see SplitSequencePointer).
+ * @author ben
+ */
+public class ParallelPlacementTest {
+
+    @ClassRule
+    public static TemporaryFolder folder=new TemporaryFolder();
+
+    static File db=null;
+    static File queries=null;
+    static File reference=null;
+
+    @BeforeClass
+    public static void placeOnOneThread() throws IOException {
+        assumeTrue("phyml binary needed to build the DB", TestData.PHYML.canExecute());
+        db=TestData.buildDB(folder.newFolder("db"), 8);
+        queries=folder.newFile("queries.fasta");
+        new TestData().writeQueries(queries, 15000, 200);
+        assertTrue(queries.length()>=2*SplitSequencePointer.RANGE_SIZE);
+        reference=new File(folder.getRoot(), "t1");
+        TestData.place(db, queries, reference, "--threads", "1");
+    }
+
+    @Test
+    public void testThreads() throws IOException, ParseException {
+        File out=new File(folder.getRoot(), "t3");
+        TestData.place(db, queries, out, "--threads", "3");
+        assertSamePlacements(reference, out);
+    }
+
+    @Test
+    public void testThreadsSharedLookups() throws IOException, ParseException {
+        File out=new File(folder.getRoot(), "t3_shared");
+        TestData.place(db, queries, out, "--threads", "3", "--shared-lookups");
+        assertSamePlacements(reference, out);
+    }
+
+    @Test
+    public void testThreadsLightRegister() throws IOException, ParseException {
+        //register of the identical queries partly written to disk
+        File out=new File(folder.getRoot(), "t2_dedup");
+        TestData.place(db, queries, out, "--threads", "2", "--dedup-memory", "1");
+        assertSamePlacements(reference, out);
+    }
+
+    static void assertSamePlacements(File expectedDir, File dir) throws IOException, ParseException {
+        JSONObject expected=readJplace(expectedDir);
+        JSONObject actual=readJplace(dir);
+        assertEquals(expected.get("tree"), actual.get("tree"));
+        assertEquals(expected.get("fields"), actual.get("fields"));
+        assertFalse(((List)expected.get("placements")).isEmpty());
+        assertEquals(expected.get("placements"), actual.get("placements"));
+        for (String log:new String[]{"placements_", "notplaced_"}) {
+            assertEquals(log, readLog(expectedDir, log), readLog(dir, log));
+        }
+    }
+
+    static JSONObject readJplace(File dir) throws IOException, ParseException {
+        File[] f=dir.listFiles((File d, String name) -> name.endsWith(".jplace"));
+        assertEquals(1, f.length);
+        try (FileReader fr=new FileReader(f[0])) {
+            return (JSONObject)new JSONParser().parse(fr);
+        }
+    }
+
+    static String readLog(File dir, String prefix) throws IOException {
+        File[] f=new File(dir, "logs").listFiles((File d, String name) -> name.startsWith(prefix) && name.endsWith(".tsv"));
+        assertEquals(1, f.length);
+        return new String(Files.readAllBytes(f[0].toPath()), StandardCharsets.UTF_8);
+    }
+
+}
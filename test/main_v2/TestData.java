@@ -0,0 +1,172 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package main_v2;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Small reference generated for the tests: 16 sequences of 400 nucleotides
+ * evolved along a balanced tree, and queries cut from these sequences,
+ * with identical queries and random queries which cannot be placed.\n
+ * Everything is drawn from a fixed seed, the files are the same at each
+ * run. DBs are built with the phyml binary of bindep/.
+ * @author ben
+ */
+class TestData {
+
+    static final String STATES="ACGT";
+    static final int LENGTH=400;
+    static final int DEPTH=4;
+    static final int QUERY_LENGTH=150;
+    static final File PHYML=new File("bindep"+File.separator+"phyml_x64");
+
+    Random rand=new Random(7);
+    ArrayList<String> names=new ArrayList<>();
+    ArrayList<String> sequences=new ArrayList<>();
+    String newick=null;
+
+    TestData() {
+        StringBuilder root=new StringBuilder();
+        for (int i = 0; i < LENGTH; i++) {
+            root.append(STATES.charAt(rand.nextInt(4)));
+        }
+        newick=evolve(root.toString(), DEPTH)+";";
+    }
+
+    /**
+     * builds the subtree below a node, leaves are named L1, L2...
+     * @return the newick of the subtree
+     */
+    private String evolve(String seq, int depth) {
+        if (depth==0) {
+            names.add("L"+(names.size()+1));
+            sequences.add(seq);
+            return names.get(names.size()-1);
+        }
+        String left=evolve(mutate(seq, 0.05), depth-1);
+        String right=evolve(mutate(seq, 0.05), depth-1);
+        return "("+left+":0.05,"+right+":0.05)";
+    }
+
+    private String mutate(String seq, double rate) {
+        StringBuilder sb=new StringBuilder(seq);
+        for (int i = 0; i < sb.length(); i++) {
+            if (rand.nextDouble()<rate) {
+                sb.setCharAt(i, STATES.charAt(rand.nextInt(4)));
+            }
+        }
+        return sb.toString();
+    }
+
+    void writeReference(File align, File tree) throws IOException {
+        try (BufferedWriter bw=new BufferedWriter(new FileWriter(align))) {
+            for (int i = 0; i < names.size(); i++) {
+                bw.write(">"+names.get(i)+"\n"+sequences.get(i)+"\n");
+            }
+        }
+        try (BufferedWriter bw=new BufferedWriter(new FileWriter(tree))) {
+            bw.write(newick+"\n");
+        }
+    }
+
+    /**
+     * queries cut from the reference, sequences on 2 lines, 1 query out
+     * of 10 is followed by an identical query, the last ones are random
+     * @param f
+     * @param count # queries cut from the reference
+     * @param junk # random queries
+     * @throws IOException
+     */
+    void writeQueries(File f, int count, int junk) throws IOException {
+        try (BufferedWriter bw=new BufferedWriter(new FileWriter(f))) {
+            for (int i = 0; i < count; i++) {
+                int leaf=rand.nextInt(sequences.size());
+                int start=rand.nextInt(LENGTH-QUERY_LENGTH+1);
+                String s=mutate(sequences.get(leaf).substring(start, start+QUERY_LENGTH), 0.02);
+                bw.write(">q"+i+" from_"+names.get(leaf)+"\n"+s.substring(0, 70)+"\n"+s.substring(70)+"\n");
+                if (i%10==0) {
+                    bw.write(">dup"+i+"\n"+s+"\n");
+                }
+            }
+            for (int i = 0; i < junk; i++) {
+                StringBuilder sb=new StringBuilder();
+                for (int j = 0; j < QUERY_LENGTH; j++) {
+                    sb.append(STATES.charAt(rand.nextInt(4)));
+                }
+                bw.write(">junk"+i+"\n"+sb+"\n");
+            }
+        }
+    }
+
+    /**
+     * builds a DB from the reference, through the command line
+     * @param workDir
+     * @param k
+     * @param options additional options of the b phase
+     * @return the union DB file (see placementDB() for the lighter DB)
+     * @throws IOException
+     */
+    static File buildDB(File workDir, int k, String... options) throws IOException {
+        TestData data=new TestData();
+        File align=new File(workDir, "align.fasta");
+        File tree=new File(workDir, "tree.nwk");
+        data.writeReference(align, tree);
+        File dbDir=new File(workDir, "db");
+        dbDir.mkdir();
+        ArrayList<String> args=new ArrayList<>();
+        String[] base={"-p", "b", "-s", "nucl", "-b", PHYML.getAbsolutePath(),
+                       "-w", dbDir.getAbsolutePath(), "-r", align.getAbsolutePath(),
+                       "-t", tree.getAbsolutePath(), "-k", String.valueOf(k)};
+        for (String a:base) {
+            args.add(a);
+        }
+        for (String a:options) {
+            args.add(a);
+        }
+        Main_v2.main(args.toArray(new String[args.size()]));
+        File[] dbs=dbDir.listFiles((File d, String name) -> name.startsWith("DB_session") && name.endsWith(".union") && !name.endsWith(".placement.union"));
+        if (dbs==null || dbs.length!=1) {
+            throw new IOException("DB not built in "+dbDir.getAbsolutePath());
+        }
+        return dbs[0];
+    }
+
+    /**
+     * @param db union DB
+     * @return the lighter DB written with --placement-db
+     */
+    static File placementDB(File db) {
+        String name=db.getName();
+        return new File(db.getParentFile(), name.substring(0, name.length()-".union".length())+".placement.union");
+    }
+
+    /**
+     * places queries through the command line
+     * @param db
+     * @param queries
+     * @param workDir created if needed
+     * @param options additional options of the p phase
+     */
+    static void place(File db, File queries, File workDir, String... options) {
+        workDir.mkdirs();
+        ArrayList<String> args=new ArrayList<>();
+        String[] base={"-p", "p", "-s", "nucl", "-d", db.getAbsolutePath(),
+                       "-q", queries.getAbsolutePath(), "-w", workDir.getAbsolutePath()};
+        for (String a:base) {
+            args.add(a);
+        }
+        for (String a:options) {
+            args.add(a);
+        }
+        Main_v2.main(args.toArray(new String[args.size()]));
+    }
+
+}